@@ -0,0 +1,229 @@
+package mgabelmann.photo.workflow;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+import mgabelmann.util.ByteConversion;
+
+/**
+ * What a backup would do, built without copying anything. Files are counted by category along with the bytes
+ * involved, the free space of the destination and measured throughput are used to check the backup fits and
+ * estimate how long it will take.
+ *
+ * @author Mike Gabelmann
+ */
+public final class BackupPlan {
+    /** What happens to a file. */
+    public enum Category {
+        /** File does not exist remotely and will be copied. */
+        NEW,
+        /** File changed and will be copied. */
+        CHANGED,
+        /** File is the same and will be skipped. */
+        IDENTICAL,
+        /** Last modified date changed, the checksum decides if it is copied. */
+        VERIFY
+    }
+
+    /** Directory to back up. */
+    private final File directory;
+
+    /** Destination directory. */
+    private final File destination;
+
+    /** Number of files by category. */
+    private final Map<Category, Long> files = new EnumMap<>(Category.class);
+
+    /** Bytes by category. */
+    private final Map<Category, Long> sizes = new EnumMap<>(Category.class);
+
+    /** Largest file that will be copied. */
+    private File largestFile;
+
+    /** Size of the largest file that will be copied. */
+    private long largestSize = -1;
+
+    /** Usable space of the destination in bytes. */
+    private long freeSpace;
+
+    /** Measured read throughput in bytes per second, 0 if not measured. */
+    private long readThroughput;
+
+    /** Measured write throughput in bytes per second, 0 if not measured. */
+    private long writeThroughput;
+
+
+    /**
+     * Constructor.
+     * @param directory directory to back up
+     * @param destination destination directory
+     */
+    public BackupPlan(final File directory, final File destination) {
+        this.directory = directory;
+        this.destination = destination;
+
+        for (Category category : Category.values()) {
+            files.put(category, 0L);
+            sizes.put(category, 0L);
+        }
+    }
+
+    /**
+     * @return directory to back up
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return destination directory
+     */
+    public File getDestination() {
+        return destination;
+    }
+
+    /**
+     * Add a file to the plan.
+     * @param category what happens to the file
+     * @param file local file
+     * @param size size of the file
+     */
+    public synchronized void addFile(final Category category, final File file, final long size) {
+        files.merge(category, 1L, Long::sum);
+        sizes.merge(category, size, Long::sum);
+
+        if ((category == Category.NEW || category == Category.CHANGED || category == Category.VERIFY) && size > largestSize) {
+            largestFile = file;
+            largestSize = size;
+        }
+    }
+
+    /**
+     * @param category category
+     * @return number of files in the category
+     */
+    public synchronized long getNumFiles(final Category category) {
+        return files.get(category);
+    }
+
+    /**
+     * @param category category
+     * @return bytes in the category
+     */
+    public synchronized long getSize(final Category category) {
+        return sizes.get(category);
+    }
+
+    /**
+     * Files to verify are included since they are copied if their checksums differ.
+     * @return most bytes that will be copied
+     */
+    public synchronized long getTransferSize() {
+        return sizes.get(Category.NEW) + sizes.get(Category.CHANGED) + sizes.get(Category.VERIFY);
+    }
+
+    /**
+     * @return largest file that may be copied, null if nothing is copied
+     */
+    public synchronized File getLargestFile() {
+        return largestFile;
+    }
+
+    /**
+     * @return usable space of the destination in bytes
+     */
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * @param freeSpace usable space of the destination in bytes
+     */
+    public void setFreeSpace(final long freeSpace) {
+        this.freeSpace = freeSpace;
+    }
+
+    /**
+     * @return true if the destination has room for every byte that may be copied
+     */
+    public boolean isSpaceAvailable() {
+        return this.getTransferSize() <= freeSpace;
+    }
+
+    /**
+     * @return measured read throughput in bytes per second
+     */
+    public long getReadThroughput() {
+        return readThroughput;
+    }
+
+    /**
+     * @param readThroughput measured read throughput in bytes per second
+     */
+    public void setReadThroughput(final long readThroughput) {
+        this.readThroughput = readThroughput;
+    }
+
+    /**
+     * @return measured write throughput in bytes per second
+     */
+    public long getWriteThroughput() {
+        return writeThroughput;
+    }
+
+    /**
+     * @param writeThroughput measured write throughput in bytes per second
+     */
+    public void setWriteThroughput(final long writeThroughput) {
+        this.writeThroughput = writeThroughput;
+    }
+
+    /**
+     * Estimate how long copying will take. Each file is read and written at once, so the slower of the two
+     * limits the copy. Files to verify are assumed to be copied.
+     * @return estimated duration, null if throughput was not measured
+     */
+    public Duration getEstimatedDuration() {
+        final long bytes = this.getTransferSize();
+
+        if (bytes == 0) {
+            return Duration.ZERO;
+
+        } else if (readThroughput <= 0 || writeThroughput <= 0) {
+            return null;
+        }
+
+        final long throughput = Math.min(readThroughput, writeThroughput);
+
+        return Duration.ofMillis(bytes * 1000 / throughput);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("BackupPlan [directory=");
+        builder.append(directory);
+
+        for (Category category : Category.values()) {
+            builder.append(", ");
+            builder.append(category.toString().toLowerCase());
+            builder.append("=");
+            builder.append(this.getNumFiles(category));
+            builder.append(" (");
+            builder.append(ByteConversion.format(this.getSize(category)));
+            builder.append(")");
+        }
+
+        builder.append(", freeSpace=");
+        builder.append(ByteConversion.format(freeSpace));
+        builder.append(", estimatedDuration=");
+        builder.append(this.getEstimatedDuration());
+        builder.append("]");
+        return builder.toString();
+    }
+}
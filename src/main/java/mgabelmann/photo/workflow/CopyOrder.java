@@ -0,0 +1,100 @@
+package mgabelmann.photo.workflow;
+
+import java.io.Serializable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Orders the entries of a directory listing (name and attributes) before they are backed up, so the most valuable
+ * files are copied first when a run is cut short. Only the attributes already read by the listing are used.
+ *
+ * Each directory is ordered on its own, sub-directories are started in the order they are found. A directory's
+ * last modified time changes when entries are added, removed or renamed, so a new shoot is newer than the
+ * directories around it even though edits to existing files deeper in the tree do not change it.
+ *
+ * @author Mike Gabelmann
+ */
+public final class CopyOrder implements Comparator<Map.Entry<String, BasicFileAttributes>>, Serializable {
+    /** Available orders. */
+    public enum Policy {
+        /** By name, the order of the listing. */
+        NAME,
+
+        /** Newest last modified time first, files and directories together. */
+        NEWEST_FIRST,
+
+        /** Files before directories, smallest file first, to copy the most files in the least time. */
+        SMALLEST_FIRST,
+
+        /** Directories before files, most recently changed directory first. */
+        RECENT_DIRECTORIES_FIRST
+    }
+
+    /** Order being applied. */
+    private final Policy policy;
+
+    /**
+     * Constructor, uses Policy.NAME as default.
+     */
+    public CopyOrder() {
+        this(Policy.NAME);
+    }
+
+    /**
+     * Constructor.
+     * @param policy order to apply
+     */
+    public CopyOrder(final Policy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+
+        this.policy = policy;
+    }
+
+    /**
+     * @return order being applied
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public int compare(final Map.Entry<String, BasicFileAttributes> arg0, final Map.Entry<String, BasicFileAttributes> arg1) {
+        final BasicFileAttributes attrs0 = arg0.getValue();
+        final BasicFileAttributes attrs1 = arg1.getValue();
+        int compare;
+
+        switch (policy) {
+        case NEWEST_FIRST:
+            compare = attrs1.lastModifiedTime().compareTo(attrs0.lastModifiedTime());
+            break;
+
+        case SMALLEST_FIRST:
+            compare = Boolean.compare(attrs0.isDirectory(), attrs1.isDirectory());
+
+            if (compare == 0 && ! attrs0.isDirectory()) {
+                compare = Long.compare(attrs0.size(), attrs1.size());
+            }
+
+            break;
+
+        case RECENT_DIRECTORIES_FIRST:
+            compare = Boolean.compare(attrs1.isDirectory(), attrs0.isDirectory());
+
+            if (compare == 0 && attrs0.isDirectory()) {
+                compare = attrs1.lastModifiedTime().compareTo(attrs0.lastModifiedTime());
+            }
+
+            break;
+
+        case NAME:
+        default:
+            compare = 0;
+        }
+
+        return compare != 0 ? compare : arg0.getKey().compareTo(arg1.getKey());
+    }
+
+}
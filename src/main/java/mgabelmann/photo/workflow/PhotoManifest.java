@@ -8,6 +8,7 @@ import java.util.Collection;
 
 import mgabelmann.photo.ApplicationMode;
 import mgabelmann.photo.workflow.gui.PhotoManifestGUI;
+import mgabelmann.photo.workflow.io.ChecksumCache;
 import mgabelmann.photo.workflow.io.FileRecord;
 import mgabelmann.photo.workflow.io.FileRecordCodec;
 import org.slf4j.Logger;
@@ -38,6 +39,9 @@ public final class PhotoManifest {
     /**  */
     private transient PhotoManifestGUI pmg = null;
 
+    /** Remembers checksums of unchanged files, null to always calculate them. */
+    private final transient ChecksumCache checksumCache;
+
 
     /**
      * Constructor.
@@ -45,7 +49,18 @@ public final class PhotoManifest {
      * @param rootdir
      */
     public PhotoManifest(final ApplicationMode mode, final File rootdir) {
+        this(mode, rootdir, null);
+    }
+
+    /**
+     * Constructor.
+     * @param mode
+     * @param rootdir
+     * @param checksumCache remembers checksums of unchanged files, null to always calculate them
+     */
+    public PhotoManifest(final ApplicationMode mode, final File rootdir, final ChecksumCache checksumCache) {
         this.mode = mode;
+        this.checksumCache = checksumCache;
         this.rootdir = rootdir;
         this.records = new ArrayList<>();
         
@@ -63,7 +78,9 @@ public final class PhotoManifest {
      */
     public void processFile(final File f) {
         try {
-            final String checksum = FileRecordCodec.calculateChecksum(f, HashType.SHA256);
+            final String checksum = checksumCache != null
+                ? checksumCache.getChecksum(f, HashType.SHA256)
+                : FileRecordCodec.calculateChecksum(f, HashType.SHA256);
             
             final FileRecord record = new FileRecord(f.getAbsolutePath(), checksum, f.length(), LocalDateTime.now(), HashType.SHA256);
             records.add(record);
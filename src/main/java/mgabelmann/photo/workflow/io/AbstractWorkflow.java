@@ -1,9 +1,12 @@
 package mgabelmann.photo.workflow.io;
 
 import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
 
 import mgabelmann.photo.workflow.HashType;
 import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.util.Durability;
 
 /**
  * 
@@ -26,6 +29,15 @@ public abstract class AbstractWorkflow {
     /** Verify files. */
     protected transient final boolean verify;
 
+    /** Remembers checksums of unchanged files, null to always calculate them. */
+    private transient ChecksumCache checksumCache;
+
+    /** Store checksums in extended attributes of the files written. */
+    private transient boolean checksumAttributes = false;
+
+    /** How files written are made durable. */
+    private transient Durability durability = Durability.NONE;
+
 
     /**
      * Constructor, all args.
@@ -86,6 +98,90 @@ public abstract class AbstractWorkflow {
         return verify;
     }
 
+    /**
+     * @param checksumCache remembers checksums of unchanged source files, null to always calculate them
+     */
+    public final void setChecksumCache(final ChecksumCache checksumCache) {
+        this.checksumCache = checksumCache;
+    }
+
+    /**
+     * @return checksum cache, null if checksums are always calculated
+     */
+    public final ChecksumCache getChecksumCache() {
+        return checksumCache;
+    }
+
+    /**
+     * Calculate the checksum of a file, using the checksum cache if there is one. Only use this when the checksum
+     * describes the file, never to verify bytes that were just written.
+     * @param file file
+     * @return checksum in hex format
+     * @throws IOException error calculating checksum
+     */
+    protected final String calculateChecksum(final File file) throws IOException {
+        if (checksumCache != null) {
+            return checksumCache.getChecksum(file, type);
+        }
+
+        return FileRecordCodec.calculateChecksum(file, type);
+    }
+
+    /**
+     * @param checksumAttributes when true the checksum of each file written is stored in its extended attributes
+     *                           and used when the manifest has none
+     */
+    public final void setChecksumAttributes(final boolean checksumAttributes) {
+        this.checksumAttributes = checksumAttributes;
+    }
+
+    /**
+     * @return true if checksums are stored in extended attributes
+     */
+    public final boolean isChecksumAttributes() {
+        return checksumAttributes;
+    }
+
+    /**
+     * @param durability how files written are made durable, used by Backup and Archive
+     */
+    public final void setDurability(final Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("durability cannot be null");
+        }
+
+        this.durability = durability;
+    }
+
+    /**
+     * @return how files written are made durable
+     */
+    public final Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Store the checksum of a file that was just written or verified in its extended attributes, if enabled.
+     * @param file file, its last modified time must already be set
+     * @param checksum checksum of the file content
+     * @throws IOException error reading file attributes
+     */
+    protected final void storeChecksum(final File file, final String checksum) throws IOException {
+        if (checksumAttributes) {
+            ChecksumAttributes.write(file.toPath(), type, checksum, Instant.now());
+        }
+    }
+
+    /**
+     * Read the checksum stored in the extended attributes of a file, if enabled.
+     * @param file file
+     * @return checksum, null if disabled, not stored, of another type or the file changed since it was stored
+     * @throws IOException error reading file attributes
+     */
+    protected final String readChecksum(final File file) throws IOException {
+        return checksumAttributes ? ChecksumAttributes.read(file.toPath(), type) : null;
+    }
+
     /**
      * Process workflow.
      * @throws WorkflowException error processing
@@ -3,14 +3,19 @@ package mgabelmann.photo.workflow.io;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import mgabelmann.photo.workflow.HashType;
 import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.util.Durability;
+import mgabelmann.util.BlockCompressor;
 import mgabelmann.util.FileUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +37,12 @@ import org.slf4j.LoggerFactory;
  * 
  * The intent of an archive is that it will be moved to an archival format (ie: CD, DVD, BluRay).
  * 
+ * Files that compress well can be stored gzip compressed, with '.gz' added to their name. Their checksum is
+ * still the checksum of the original file.
+ * 
+ * Progress is kept in a journal next to the manifest until the manifest is written. A run that is interrupted
+ * is resumed by the next run: files it archived are not read again and a file it was writing is deleted.
+ * 
  * @author Mike Gabelmann
  */
 public final class Archive extends AbstractWorkflow {
@@ -48,6 +59,18 @@ public final class Archive extends AbstractWorkflow {
 
     /** Collected records. */
     private transient final Collection<FileRecord> records;
+
+    /** Records progress so an interrupted run can be resumed. */
+    private transient final RunJournal journal;
+
+    /** Records of files archived by an interrupted run, by local path. */
+    private transient final Map<String, FileRecord> recovered;
+
+    /** Makes the files written by the current run durable. */
+    private transient Durability.Tracker durable;
+
+    /** Compresses files that are worth compressing, null to copy every file as is. */
+    private transient BlockCompressor compressor;
     
     /**
      * Main method.
@@ -79,19 +102,54 @@ public final class Archive extends AbstractWorkflow {
         super(dirLocal, dirRemote, type, verify);
         
         records = new ArrayList<>();
+        journal = new RunJournal(new File(dirRemote, FileRecordCodec.FILENAME + RunJournal.SUFFIX));
+        recovered = new HashMap<>();
+    }
+
+    /**
+     * @param compressor compresses files that are worth compressing, null to copy every file as is
+     */
+    public void setCompressor(final BlockCompressor compressor) {
+        this.compressor = compressor;
     }
    
+    /**
+     * @return durability of the last run: files written, time spent forcing them and the throughput achieved, null
+     *         before the first run
+     */
+    public Durability.Tracker getDurabilityStatistics() {
+        return durable;
+    }
+
     /** {@inheritDoc} */
     public void process() throws WorkflowException {
-        this.archiveDirectory(dirLocal);
-
         try {
-            FileRecordCodec.writeFile(records, dirRemote);
+            this.recover();
+            durable = this.getDurability().open(dirRemote);
+            journal.setBarrier(durable);
+            journal.open();
+
+            try {
+                this.archiveDirectory(dirLocal);
+
+                //the manifest only describes files that are durable
+                durable.flush();
+                FileRecordCodec.writeFile(records, dirRemote);
+                durable.written(new File(dirRemote, FileRecordCodec.FILENAME));
+                durable.close();
+
+            } finally {
+                journal.close();
+            }
+
+            journal.delete();
 
         } catch (IOException ie) {
             throw new WorkflowException(ie);
         }
 
+        LOG.info("archive - {}", durable);
+
         if (LOG.isDebugEnabled()) {
             LOG.debug("finished archiving files");
         }
@@ -113,8 +171,14 @@ public final class Archive extends AbstractWorkflow {
 
                 remoteFile = new File(dirRemote, dirChecksumName + File.separator + record.getSum() + "." + extension);
 
+                final File compressedFile = new File(remoteFile.getParentFile(), remoteFile.getName() + BlockCompressor.SUFFIX);
+
                 try {
-                    if (FileRecordCodec.verifyFileChecksum(remoteFile, record.getType(), record.getSum())) {
+                    final boolean passed = ! remoteFile.exists() && compressedFile.exists()
+                        ? BlockCompressor.calculateChecksum(compressedFile, record.getType()).equals(record.getSum())
+                        : FileRecordCodec.verifyFileChecksum(remoteFile, record.getType(), record.getSum());
+
+                    if (passed) {
                         LOG.info("{} checksum - passed", record.getPath());
 
                     } else {
@@ -186,35 +250,100 @@ public final class Archive extends AbstractWorkflow {
         }
 
         try {
+            final LocalDateTime lastModified = Instant.ofEpochMilli(file.lastModified()).atZone(ZoneId.systemDefault()).toLocalDateTime();
+            final FileRecord previous = recovered.remove(file.getAbsolutePath());
+
+            if (previous != null && previous.getSize() == file.length() && previous.getDate().equals(lastModified)) {
+                LOG.debug("FILE: {} archived by an interrupted run - skipping", file.getAbsolutePath());
+                records.add(previous);
+                return;
+            }
+
             final String fileName = file.getName();
             final int pos = fileName.lastIndexOf('.');
             final String extension = fileName.substring(pos);
-            final String fileChecksum = FileRecordCodec.calculateChecksum(file, type);
+            final String fileChecksum = this.calculateChecksum(file);
 
             final File newFile = new File(dirR, fileChecksum + extension);
-
-            final LocalDateTime lastModified = Instant.ofEpochMilli(file.lastModified()).atZone(ZoneId.systemDefault()).toLocalDateTime();
+            final File compressedFile = new File(dirR, newFile.getName() + BlockCompressor.SUFFIX);
 
             //create a file record and store it
             final FileRecord record = new FileRecord(file.getAbsolutePath(), fileChecksum, file.length(), lastModified, type);
             records.add(record);
 
-            if (newFile.exists()) {
+            if (newFile.exists() || compressedFile.exists()) {
                 //chances of a collision are next to impossible (2^128 at worst, 2^64 at best) so this MUST be the same file
                 LOG.debug("FILE: {} is identical - skipping", file.getAbsolutePath());
 
+            } else if (compressor != null && compressor.isCompressible(file)) {
+                LOG.info("FILE: {} is new - compressing", file.getAbsolutePath());
+                journal.started(record.getPath(), dirR.getName() + File.separator + compressedFile.getName());
+                final String compressedChecksum = compressor.compress(file, compressedFile, true, type);
+
+                //the file is named by the checksum read first, it must describe what was compressed
+                if (! fileChecksum.equals(compressedChecksum)) {
+                    Files.deleteIfExists(compressedFile.toPath());
+                    throw new IOException("file changed while archiving - " + file.getAbsolutePath());
+                }
+
+                //the stored checksum describes the decompressed content, as the file name does
+                this.storeChecksum(compressedFile, fileChecksum);
+                durable.written(compressedFile);
+
             } else {
                 //copy file
                 //NOTE: if a file has changed since it was last archived it compute a new hash and be archived again
                 LOG.info("FILE: {} is new - copying", file.getAbsolutePath());
-                FileUtil.copyFile(file, newFile, true);
+                journal.started(record.getPath(), dirR.getName() + File.separator + newFile.getName());
+                final String copiedChecksum = FileUtil.copyFile(file, newFile, true, type);
+
+                if (! fileChecksum.equals(copiedChecksum)) {
+                    Files.deleteIfExists(newFile.toPath());
+                    throw new IOException("file changed while archiving - " + file.getAbsolutePath());
+                }
+
+                this.storeChecksum(newFile, fileChecksum);
+                durable.written(newFile);
             }
 
+            journal.copied(record);
+
         } catch (IOException ioe) {
             throw new WorkflowException(ioe);
         }
     }
     
+    /**
+     * Read the journal of an interrupted run. Files it archived are remembered so they are not read again, a file
+     * it was writing is deleted since archived files are named by their checksum and would otherwise be trusted.
+     * The journal is then replaced with only the files archived, it is deleted once the manifest has been written.
+     * @throws IOException error reading or writing journal or deleting file
+     */
+    private void recover() throws IOException {
+        recovered.clear();
+
+        if (! journal.exists()) {
+            return;
+        }
+
+        for (Map.Entry<String, RunJournal.Entry> entry : journal.recover().entrySet()) {
+            final FileRecord record = entry.getValue().getRecord();
+
+            if (record != null) {
+                recovered.put(entry.getKey(), record);
+
+            } else {
+                final File target = new File(dirRemote, entry.getValue().getTarget());
+
+                if (Files.deleteIfExists(target.toPath())) {
+                    LOG.info("FILE: {} partially archived - deleted", target.getAbsolutePath());
+                }
+            }
+        }
+
+        journal.rewrite(recovered.values());
+    }
+
     /**
      * Calculate the name of a directory by calculating a checksum of it.
      * @param directory directory to calculate name for
@@ -2,13 +2,66 @@ package mgabelmann.photo.workflow.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import mgabelmann.photo.workflow.BackupPlan;
+import mgabelmann.photo.workflow.CopyOrder;
 import mgabelmann.photo.workflow.HashType;
 import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.photo.workflow.exception.WorkflowRuntimeException;
+import mgabelmann.util.ByteConversion;
+import mgabelmann.util.DeltaCopy;
+import mgabelmann.util.Durability;
+import mgabelmann.util.FanOutCopy;
 import mgabelmann.util.FileUtil;
+import mgabelmann.util.IoScheduler;
+import mgabelmann.util.ResumableCopy;
+import mgabelmann.util.TaskScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +70,11 @@ import org.slf4j.LoggerFactory;
  * Simply copies the local directory structure to a remote directory structure without modifying it. A manifest
  * file is created with information about each file. A checksum is also provided for verifying the backup in
  * the future.
+ *
+ * The manifest is stored in the remote directory and records the path (relative to the remote directory), size,
+ * last modified date and checksum of each remote file. When a file has a record the decision to copy it is made
+ * from the manifest alone, the remote file is only examined when it has no record or when reconciling. Files
+ * changed on the remote side by other means are only noticed when reconciling.
  * 
  * Recovering a backup is easy to do as long as the local folder structure still exists.
  * 
@@ -25,9 +83,41 @@ import org.slf4j.LoggerFactory;
 public final class Backup extends AbstractWorkflow {
     /** Logger. */
     private static final Logger LOG = LoggerFactory.getLogger(Backup.class);
-    
-    /** Service that ensures that the file checksums are threaded for optimum performance. */
-    private final ExecutorService service;
+
+    /** Suffix of the temporary file written next to a file while restoring it. */
+    private static final String RESTORE_SUFFIX = ".restore";
+
+    /** Suffixes of files written next to a remote file while copying it. */
+    private static final String[] SIDECAR_SUFFIXES = {
+        RESTORE_SUFFIX,
+        ResumableCopy.PROGRESS_SUFFIX,
+        ResumableCopy.TEMP_SUFFIX,
+        DeltaCopy.SIGNATURE_SUFFIX,
+        DeltaCopy.UNDO_SUFFIX,
+        FanOutCopy.TEMP_SUFFIX,
+        VerificationStage.REPAIR_SUFFIX
+    };
+
+    /** Name of the manifest stored in the remote directory. */
+    public static final String MANIFEST_FILENAME = ".backup_manifest.txt";
+
+    /** Name of the file in the remote directory recording when each file was last scrubbed. */
+    public static final String SCRUB_FILENAME = MANIFEST_FILENAME + ".scrub";
+
+    /** Journal of a run in progress, in the remote directory. */
+    public static final String JOURNAL_FILENAME = MANIFEST_FILENAME + RunJournal.SUFFIX;
+
+    /** Verifies copied files, only exists while processing with verify enabled. */
+    private VerificationStage verification;
+
+    /** Number of threads verifying copied files. */
+    private int verifyThreads = Runtime.getRuntime().availableProcessors() * 5;
+
+    /** Number of copied files that may wait for verification before copying blocks. */
+    private int verifyCapacity = verifyThreads * 2;
+
+    /** Number of times a file that fails verification is copied again. */
+    private int repairAttempts = 0;
 
     /** Take action, if false no changes are made by the application. */
     private boolean action = false;
@@ -35,6 +125,78 @@ public final class Backup extends AbstractWorkflow {
     /** Use checksum to verify if last modified date is different. */
     private boolean useChecksum = false;
 
+    /** Manifest of the remote directory. */
+    private final ManifestIndex manifest;
+
+    /** Records progress so an interrupted run can be resumed. */
+    private final RunJournal journal;
+
+    /** Copies recovered from the journal that were not verified, verified by the next run. */
+    private final List<FileRecord> unverified = new ArrayList<>();
+
+    /** Makes the files written by the current run durable, null outside a run. */
+    private volatile Durability.Tracker durable;
+
+    /** Durability of the last run. */
+    private Durability.Tracker lastDurable;
+
+    /** Durability was given when the destination was added, it is not taken from the first backup. */
+    private boolean ownDurability = false;
+
+    /** Ignore the manifest when deciding what to copy and rebuild it from the remote files. */
+    private boolean reconcile = false;
+
+    /** Move remote files that were renamed or moved locally instead of copying them again. */
+    private boolean detectMoves = true;
+
+    /** Move remote entries that no longer exist locally into the trash. */
+    private boolean mirror = false;
+
+    /** Time entries are kept in the trash. */
+    private Duration trashRetention = Trash.DEFAULT_RETENTION;
+
+    /** Remote entries without a local counterpart, moved to the trash once the backup completes. */
+    private final Queue<Path> extras = new ConcurrentLinkedQueue<>();
+
+    /** Files of at least this size are copied in chunks that can be resumed if the copy is interrupted. */
+    private long resumableThreshold = ByteConversion.MEGABYTES.getSize() * 256;
+
+    /** Existing remote files of at least this size are updated by writing only the blocks that changed, 0 to disable. */
+    private long deltaThreshold = 0;
+
+    /** Maximum number of files processed at once with a thread per file, 0 to use the fork/join pool. */
+    private int maxInFlight = 0;
+
+    /** Order the entries of each directory are backed up in. */
+    private Comparator<Map.Entry<String, BasicFileAttributes>> order = new CopyOrder();
+
+    /** Backups of the local directory to other remote directories, written from the same reads. */
+    private final List<Backup> destinations = new ArrayList<>();
+
+    /** Number of buffers a destination may fall behind the read when copying to several destinations. */
+    private int fanOutBuffers = FanOutCopy.DEFAULT_BUFFER_COUNT;
+
+    /** Watch service while watching for changes. */
+    private volatile WatchService watcher;
+
+    /** Called after each backup while watching for changes. */
+    private Runnable watchListener = () -> { };
+
+    /** Plan being built, files are classified instead of backed up while set. */
+    private volatile BackupPlan plan;
+
+    /** Plan the backup first and stop if the destination does not have enough free space. */
+    private boolean preflight = false;
+
+    /**
+     * Number of threads walking the directory tree. Scanning is bound by metadata latency rather than CPU so
+     * this is larger than the number of cores, increase it for devices that handle deep I/O queues well.
+     */
+    private int parallelism = Runtime.getRuntime().availableProcessors() * 4;
+
+    /** Number of files validated at once, the IoScheduler limits how many of them read each device. */
+    private int validateThreads = Runtime.getRuntime().availableProcessors() * 2;
+
 
     /**
      * Main method.
@@ -82,7 +244,8 @@ public final class Backup extends AbstractWorkflow {
         super(dirLocal, dirRemote, type, verify);
 
         this.action = action;
-        this.service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 5);
+        this.manifest = new ManifestIndex(new File(dirRemote, MANIFEST_FILENAME));
+        this.journal = new RunJournal(new File(dirRemote, JOURNAL_FILENAME));
     }
 
     @Override
@@ -91,152 +254,2121 @@ public final class Backup extends AbstractWorkflow {
             LOG.info("backup - starting");
         }
 
-        try {
-            this.backupDirectory(dirLocal, dirRemote);
+        this.loadManifest();
+        this.recover();
 
-            service.shutdown();
+        if (preflight && action) {
+            final BackupPlan preflightPlan = this.createPlan();
 
-            boolean timeout = service.awaitTermination(5, TimeUnit.SECONDS);
+            if (! preflightPlan.isSpaceAvailable()) {
+                throw new WorkflowException("not enough free space - " + ByteConversion.format(preflightPlan.getTransferSize())
+                    + " required, " + ByteConversion.format(preflightPlan.getFreeSpace()) + " available");
+            }
+        }
 
-            if (!timeout) {
-                LOG.warn("service timed out");
+        //expired trash is deleted while the backup runs
+        final List<Future<Integer>> purges = new ArrayList<>();
+
+        if (mirror && action) {
+            for (Backup backup : this.getBackups()) {
+                purges.add(backup.purgeTrash());
             }
+        }
 
-        } catch (IOException | InterruptedException e) {
-            throw new WorkflowException(e);
+        if (maxInFlight > 0) {
+            //one thread per directory and file
+            this.execute(() -> {
+                try (TaskScope scope = new TaskScope(maxInFlight)) {
+                    this.forkDirectory(scope, dirLocal.toPath(), dirRemote.toPath());
+                    scope.join();
+                }
+            });
+
+        } else {
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+            try {
+                this.execute(() -> pool.invoke(new DirectoryTask(dirLocal.toPath(), dirRemote.toPath())));
+
+            } finally {
+                pool.shutdown();
+            }
         }
-        
+
+        for (Future<Integer> purge : purges) {
+            this.awaitPurge(purge);
+        }
+
         if (LOG.isInfoEnabled()) { 
             LOG.info("backup - finished\n"); 
         }
     }
 
+    /**
+     * Continuously replicate changes. The local directory tree is watched for new and modified files, after an
+     * initial backup only the files that changed are backed up. Bursts of changes are collected until no change
+     * has been seen for the quiet period, or the maximum delay has passed, and then backed up together. If changes
+     * are lost by the file system the affected directory is scanned again.
+     *
+     * Runs until the thread is interrupted or {@link #stopWatching()} is called.
+     *
+     * @param quietPeriod time without changes before backing up
+     * @param maxDelay maximum time to collect changes before backing up
+     * @throws WorkflowException error watching
+     */
+    public void watch(final Duration quietPeriod, final Duration maxDelay) throws WorkflowException {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try (WatchService watchService = dirLocal.toPath().getFileSystem().newWatchService()) {
+            final Map<WatchKey, Path> keys = new HashMap<>();
+            this.watcher = watchService;
+
+            this.loadManifest();
+            this.recover();
+            this.register(watchService, keys, dirLocal.toPath());
+
+            LOG.info("watch - starting");
+            this.execute(() -> pool.invoke(new DirectoryTask(dirLocal.toPath(), dirRemote.toPath())));
+            watchListener.run();
+
+            while (true) {
+                WatchKey key = watchService.take();
+
+                final Set<Path> files = new LinkedHashSet<>();
+                final Set<Path> directories = new LinkedHashSet<>();
+                final long deadline = System.nanoTime() + maxDelay.toNanos();
+
+                while (key != null) {
+                    this.collect(watchService, keys, key, files, directories);
+                    key = System.nanoTime() < deadline ? watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS) : null;
+                }
+
+                LOG.info("watch - {} files and {} directories changed", files.size(), directories.size());
+
+                try {
+                    this.execute(() -> pool.invoke(new ChangeTask(files, directories)));
+
+                } catch (WorkflowException we) {
+                    LOG.error("watch - {}", we.getMessage());
+                }
+
+                watchListener.run();
+            }
+
+        } catch (ClosedWatchServiceException cwse) {
+            LOG.info("watch - stopped");
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.info("watch - interrupted");
+
+        } catch (IOException ie) {
+            throw new WorkflowException(ie);
+
+        } finally {
+            watcher = null;
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Stop watching for changes, changes already being backed up are completed.
+     */
+    public void stopWatching() {
+        final WatchService watchService = watcher;
+
+        if (watchService != null) {
+            try {
+                watchService.close();
+
+            } catch (IOException ie) {
+                LOG.warn("watch - unable to stop {}", ie.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Plan the backup without copying anything. Files are classified from the manifest and file attributes only,
+     * files whose checksum would decide if they are copied are counted as to verify. The free space of the
+     * destination is recorded and throughput is measured by reading the largest file that may be copied and
+     * writing a sample to the destination.
+     * @return plan
+     * @throws WorkflowException error planning
+     */
+    public BackupPlan plan() throws WorkflowException {
+        this.loadManifest();
+
+        return this.createPlan();
+    }
+
+    /**
+     * @param preflight when true the backup is planned first and stops if the destination is too small
+     */
+    public void setPreflight(final boolean preflight) {
+        this.preflight = preflight;
+    }
+
     @Override
     public void restore() throws WorkflowException {
-        throw new WorkflowException("not implemented yet");
+        this.restore(dirLocal, null);
+    }
+
+    /**
+     * Restore files from the remote directory. Files are copied in parallel, limited per device by the
+     * {@link IoScheduler}, and the checksum of each remote file is compared to the manifest while it is copied.
+     * Files are written to a temporary file that replaces the target only once it has been checked, local files
+     * with the same size and last modified date are skipped.
+     * @param target directory to restore into, the local directory or an alternate location
+     * @param subtree relative path of the directory or file to restore, '/' separated, null to restore everything
+     * @throws WorkflowException error restoring or a file failed its checksum
+     */
+    public void restore(final File target, final String subtree) throws WorkflowException {
+        if (target == null) {
+            throw new IllegalArgumentException("target cannot be null");
+        }
+
+        final Path remoteRoot = dirRemote.toPath().toAbsolutePath().normalize();
+        final Path start = subtree == null ? remoteRoot : remoteRoot.resolve(subtree).normalize();
+
+        if (! start.startsWith(remoteRoot)) {
+            throw new IllegalArgumentException("subtree must be inside the remote directory");
+
+        } else if (! Files.exists(start)) {
+            throw new WorkflowException("nothing to restore at " + start);
+        }
+
+        LOG.info("restore - starting {} to {}", start, target.getAbsolutePath());
+
+        this.loadManifest();
+
+        final AtomicInteger restored = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+
+        try (TaskScope scope = new TaskScope(maxInFlight > 0 ? maxInFlight : parallelism)) {
+            this.forkRemoteFiles(scope, start, (remotePath, attrs, relative) -> {
+                switch (this.restoreFile(remotePath.toFile(), attrs, target.toPath().resolve(relative).toFile(), ManifestIndex.toRecordPath(relative))) {
+                    case RESTORED -> {
+                        restored.incrementAndGet();
+                        bytes.addAndGet(attrs.size());
+                    }
+                    case SKIPPED -> skipped.incrementAndGet();
+                    case FAILED -> failed.incrementAndGet();
+                }
+            });
+
+            scope.join();
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        LOG.info("restore - finished, {} restored ({}), {} identical, {} failed", restored.get(), ByteConversion.format(bytes.get()), skipped.get(), failed.get());
+
+        if (failed.get() > 0) {
+            throw new WorkflowException("restore failed for " + failed.get() + " files");
+        }
     }
 
     @Override
     public void validate() throws WorkflowException {
-        throw new WorkflowException("not implemented yet");
+        final ValidationReport report = this.checkIntegrity();
+
+        if (! report.isSuccessful()) {
+            throw new WorkflowException("validation failed - " + report.getMissing().size() + " missing, " + report.getCorrupted().size() + " corrupted");
+        }
     }
-    
+
     /**
-     * Iterate over the directory contents and backup files/directories as needed.
-     *
-     * @param localDir local directory
-     * @param remoteDir remote directory
-     * @throws IOException error backing up
+     * Check the integrity of the remote directory. Remote files are hashed in parallel and compared to the
+     * manifest checksums, or to the local files if there is no manifest. Problems are logged as they are found.
+     * Files expected but not found remotely are missing, remote files that are not expected are extra.
+     * @return report
+     * @throws WorkflowException error reading files
      */
-    private void backupDirectory(
-        final File localDir,
-        final File remoteDir) 
-        throws IOException {
-        
-        final File[] files = localDir.listFiles();
-        
-        if (files != null && files.length > 0) {
-            File dirR;
-            File fileR;
-            
-            for (File f : files) {
-                if (f.isDirectory()) {
-                    dirR = new File(remoteDir, f.getName());
-                    
-                    if (! dirR.exists()) {
-                        if(! dirR.mkdir()) {
-                            throw new IOException("unable to create directory " + dirR.getAbsolutePath());
+    public ValidationReport checkIntegrity() throws WorkflowException {
+        LOG.info("validate - starting");
 
-                        } else {
-                            LOG.info("DIR: {} does not exist - created", dirR.getAbsolutePath());
-                        }
-                    }
-                    
-                    this.backupDirectory(f, dirR);
-                    
-                } else {
-                    fileR = new File(remoteDir, f.getName());
+        this.loadManifest();
+
+        final boolean useManifest = manifest.size() > 0;
+        final ValidationReport report = new ValidationReport();
+        final Set<String> found = ConcurrentHashMap.newKeySet();
+
+        if (! useManifest) {
+            LOG.info("validate - no manifest, comparing with {}", dirLocal.getAbsolutePath());
+        }
 
-                    this.backupFile(f, fileR);
+        try (TaskScope scope = new TaskScope(validateThreads)) {
+            this.forkRemoteFiles(scope, dirRemote.toPath().toAbsolutePath().normalize(), (remotePath, attrs, relative) -> {
+                final String recordPath = ManifestIndex.toRecordPath(relative);
+
+                found.add(recordPath);
+                this.validateFile(remotePath.toFile(), attrs, recordPath, useManifest, report);
+            });
+
+            scope.join();
+
+            if (useManifest) {
+                for (FileRecord record : manifest.getRecords()) {
+                    if (! found.contains(record.getPath())) {
+                        LOG.warn("FILE: {} missing", record.getPath());
+                        report.addMissing(record.getPath());
+                    }
                 }
+
+            } else {
+                Files.walkFileTree(dirLocal.toPath(), new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                        final String recordPath = ManifestIndex.toRecordPath(dirLocal.toPath().relativize(file));
+
+                        if (! found.contains(recordPath)) {
+                            LOG.warn("FILE: {} missing", recordPath);
+                            report.addMissing(recordPath);
+                        }
+
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
             }
-            
-        } else {
-            LOG.debug("DIR: {} skipping - empty", localDir.getAbsolutePath() );
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        LOG.info("validate - finished {}", report);
+
+        return report;
+    }
+
+    /**
+     * @param validateThreads number of files validated at once
+     */
+    public void setValidateThreads(final int validateThreads) {
+        if (validateThreads < 1) {
+            throw new IllegalArgumentException("validateThreads must be at least 1");
+        }
+
+        this.validateThreads = validateThreads;
+    }
+
+    /**
+     * Verify part of the remote directory against the manifest, the files verified least recently first. Run it
+     * regularly with a budget that fits the time available and every file is verified over a number of runs. When
+     * each file was last verified is kept in {@link #SCRUB_FILENAME} in the remote directory.
+     * @param timeBudget most time to spend, null for no limit
+     * @param byteBudget most bytes to read, 0 for no limit
+     * @return report of this run
+     * @throws WorkflowException error reading the manifest or scrub state
+     */
+    public Scrubber.Report scrub(final Duration timeBudget, final long byteBudget) throws WorkflowException {
+        this.loadManifest();
+
+        final Scrubber scrubber = new Scrubber(dirRemote, new File(dirRemote, SCRUB_FILENAME));
+        scrubber.setThreads(validateThreads);
+        scrubber.setTimeBudget(timeBudget);
+        scrubber.setByteBudget(byteBudget);
+
+        try {
+            return scrubber.scrub(manifest.getRecords());
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkflowException(ie);
         }
     }
     
     /**
-     * Backup a file if it is new or has changed.
-     * @param localFile local file
-     * @param remoteFile remote file
-     * @throws IOException error backing up file
+     * @param parallelism number of threads used to walk the directory tree
      */
-    private void backupFile(final File localFile, final File remoteFile) throws IOException {
-        boolean copied = false;
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
 
-        //FIXME: switch to do this instead
-        //BasicFileAttributes attributesLocal = Files.readAttributes(localFile.toPath(), BasicFileAttributes.class);
-        //BasicFileAttributes attributesRemote = Files.readAttributes(remoteFile.toPath(), BasicFileAttributes.class);
+        this.parallelism = parallelism;
+    }
 
-        if (remoteFile.exists()) {
-            boolean equalLength = localFile.length() == remoteFile.length();
-            boolean equalLastModified = localFile.lastModified() == remoteFile.lastModified();
+    /**
+     * @param verifyThreads number of threads verifying copied files
+     */
+    public void setVerifyThreads(final int verifyThreads) {
+        if (verifyThreads < 1) {
+            throw new IllegalArgumentException("verifyThreads must be at least 1");
+        }
 
-            if (!equalLength) {
-                LOG.info("FILE: {} {} - different length", localFile.getAbsolutePath(), (action ? "replacing" : ""));
+        this.verifyThreads = verifyThreads;
+    }
 
-                if (action) {
-                    FileUtil.copyFile(localFile, remoteFile, true);
-                    copied = true;
-                }
+    /**
+     * @param verifyCapacity number of copied files that may wait for verification before copying blocks
+     */
+    public void setVerifyCapacity(final int verifyCapacity) {
+        if (verifyCapacity < 0) {
+            throw new IllegalArgumentException("verifyCapacity cannot be negative");
+        }
 
-            } else if (!equalLastModified) {
-                if (useChecksum) {
-                    boolean equalChecksum = FileUtil.verifyCopy(localFile, remoteFile, type);
+        this.verifyCapacity = verifyCapacity;
+    }
 
-                    if (!equalChecksum) {
-                        LOG.info("FILE: {} {} - different last modified and checksum", localFile.getAbsolutePath(), (action ? "replacing" : ""));
+    /**
+     * @param repairAttempts number of times a file that fails verification is copied again, 0 to disable
+     */
+    public void setRepairAttempts(final int repairAttempts) {
+        if (repairAttempts < 0) {
+            throw new IllegalArgumentException("repairAttempts cannot be negative");
+        }
 
-                        if (action) {
-                            FileUtil.copyFile(localFile, remoteFile, true);
-                            copied = true;
-                        }
+        this.repairAttempts = repairAttempts;
+    }
 
-                    } else {
-                        //last modified different, but files have same checksum
-                        LOG.info("FILE: {} {} - different last modified, equal checksum", localFile.getAbsolutePath(), (action ? "skipping" : ""));
-                    }
+    /**
+     * @param resumableThreshold files of at least this size are copied so an interrupted copy can be resumed
+     */
+    public void setResumableThreshold(final long resumableThreshold) {
+        this.resumableThreshold = resumableThreshold;
+    }
 
-                } else {
-                    //faster, but could be error-prone
-                    LOG.info("FILE: {} {} - different last modified", localFile.getAbsolutePath(), (action ? "replacing" : ""));
+    /**
+     * Update changed remote files in place by writing only the blocks that differ, the blocks that did not change
+     * are left as they are. Suited to large files that change a little at a time, such as catalogs and layered
+     * images, see {@link DeltaCopy} for the cost of an update.
+     * @param deltaThreshold existing files of at least this size are updated in place, 0 to disable
+     */
+    public void setDeltaThreshold(final long deltaThreshold) {
+        if (deltaThreshold < 0) {
+            throw new IllegalArgumentException("deltaThreshold cannot be negative");
+        }
 
-                    if (action) {
-                        FileUtil.copyFile(localFile, remoteFile, true);
-                        copied = true;
-                    }
-                }
+        this.deltaThreshold = deltaThreshold;
+    }
 
-            } else {
-                //same file length and timestamps
-                LOG.debug("FILE: {} {} - identical", localFile.getAbsolutePath(), (action ? "skipping" : ""));
-            }
-            
-        } else {
-            //copy file since it does not exist in remote location
-            LOG.info("FILE: {} {} - new", localFile.getAbsolutePath(), (action ? "copying" : ""));
+    /**
+     * Run the backup with a thread per directory and file instead of a fixed number of threads. Virtual threads
+     * are used when available, this keeps many metadata requests outstanding against high latency destinations
+     * such as network shares. Without virtual threads at most maxInFlight directories and maxInFlight files are
+     * processed at once, see {@link TaskScope}.
+     * @param maxInFlight maximum number of files being processed at once, 0 to use a fixed number of threads
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight cannot be negative");
+        }
 
-            if (action) {
-                FileUtil.copyFile(localFile, remoteFile, true);
-                copied = true;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Set the order files and sub-directories are backed up in, so the most valuable files are secured first when
+     * a run is cut short. Entries are ordered within each directory using the attributes already listed.
+     * @param order order of the entries of a directory, eg: new CopyOrder(CopyOrder.Policy.NEWEST_FIRST)
+     */
+    public void setOrder(final Comparator<Map.Entry<String, BasicFileAttributes>> order) {
+        if (order == null) {
+            throw new IllegalArgumentException("order cannot be null");
+        }
+
+        this.order = order;
+    }
+
+    /**
+     * Also backup to another remote directory. Each destination keeps its own manifest, decides what to copy from
+     * it and is verified on its own, files needed by several destinations are read once and written to all of them
+     * at the same time, except files that are resumed or updated in place (see {@link #setResumableThreshold(long)}
+     * and {@link #setDeltaThreshold(long)}) which are read again for each destination. A copy that fails on any
+     * destination stops the run. Destinations take the settings of this backup when it starts. Planning, restoring,
+     * validating and scrubbing only use the first remote directory, use a backup per destination for them.
+     * @param dirRemote remote directory (backup files)
+     */
+    public void addDestination(final File dirRemote) {
+        if (dirRemote == null) {
+            throw new IllegalArgumentException("dirRemote cannot be null");
+        }
+
+        destinations.add(new Backup(dirLocal, dirRemote, type, verify, action));
+    }
+
+    /**
+     * Also backup to another remote directory, using its own durability (eg: force every file on a USB drive that
+     * may be unplugged, group them on a NAS). See {@link #addDestination(File)}.
+     * @param dirRemote remote directory (backup files)
+     * @param durability how files written to the destination are made durable
+     */
+    public void addDestination(final File dirRemote, final Durability durability) {
+        this.addDestination(dirRemote);
+
+        final Backup destination = destinations.get(destinations.size() - 1);
+        destination.setDurability(durability);
+        destination.ownDurability = true;
+    }
+
+    /**
+     * @return durability of the last run by remote directory: files written, time spent forcing them and the
+     *         throughput achieved, empty before the first run
+     */
+    public Map<File, Durability.Tracker> getDurabilityStatistics() {
+        final Map<File, Durability.Tracker> statistics = new LinkedHashMap<>();
+
+        for (Backup backup : this.getBackups()) {
+            if (backup.lastDurable != null) {
+                statistics.put(backup.dirRemote, backup.lastDurable);
             }
-        } 
-        
-        //if copied, verify it
-        if (copied && verify) {
-            service.execute(new ChecksumCompare(localFile, remoteFile, type));
         }
+
+        return statistics;
+    }
+
+    /**
+     * @param fanOutBuffers number of buffers a destination may fall behind the read of a file before it holds back
+     *                      the other destinations
+     */
+    public void setFanOutBuffers(final int fanOutBuffers) {
+        if (fanOutBuffers < 1) {
+            throw new IllegalArgumentException("fanOutBuffers must be at least 1");
+        }
+
+        this.fanOutBuffers = fanOutBuffers;
+    }
+
+    /**
+     * @param reconcile when true every remote file is examined and the manifest is rebuilt from them
+     */
+    public void setReconcile(final boolean reconcile) {
+        this.reconcile = reconcile;
     }
-     
+
+    /**
+     * @param detectMoves when true a new file with the same content as a manifest record whose local file no
+     *                    longer exists is moved to its new remote path instead of being copied
+     */
+    public void setDetectMoves(final boolean detectMoves) {
+        this.detectMoves = detectMoves;
+    }
+
+    /**
+     * @param mirror when true remote files and directories that no longer exist locally are moved into the trash
+     */
+    public void setMirror(final boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * @param trashRetention time entries are kept in the trash before they are deleted
+     */
+    public void setTrashRetention(final Duration trashRetention) {
+        if (trashRetention == null || trashRetention.isNegative()) {
+            throw new IllegalArgumentException("trashRetention cannot be null or negative");
+        }
+
+        this.trashRetention = trashRetention;
+    }
+
+    /**
+     * @param watchListener called after each backup while watching for changes, including the initial backup
+     */
+    public void setWatchListener(final Runnable watchListener) {
+        if (watchListener == null) {
+            throw new IllegalArgumentException("watchListener cannot be null");
+        }
+
+        this.watchListener = watchListener;
+    }
+
+    /**
+     * Load the manifest from the remote directory of every destination.
+     * @throws WorkflowException error reading manifest
+     */
+    private void loadManifest() throws WorkflowException {
+        try {
+            manifest.load();
+
+            for (Backup destination : destinations) {
+                this.configure(destination);
+                destination.manifest.load();
+            }
+
+        } catch (IOException ie) {
+            throw new WorkflowException(ie);
+        }
+    }
+
+    /**
+     * Apply the journal of an interrupted run to the manifest of every destination, only when backing up so that
+     * planning, restoring and validating never write to the destination.
+     * @throws WorkflowException error reading journal or writing manifest
+     */
+    private void recover() throws WorkflowException {
+        if (! action) {
+            return;
+        }
+
+        try {
+            for (Backup backup : this.getBackups()) {
+                backup.recoverJournal();
+            }
+
+        } catch (IOException ie) {
+            throw new WorkflowException(ie);
+        }
+    }
+
+    /**
+     * Apply the journal of an interrupted run to the manifest, so files it completed are not copied again. A copy
+     * is only recorded while the remote file still has the size and last modified time it was copied with, files
+     * that were being copied or failed verification are examined again. Copies that were not verified are verified
+     * by this run, the journal is kept with only those copies until they have been verified.
+     * @throws IOException error reading journal or writing manifest
+     */
+    private void recoverJournal() throws IOException {
+        if (! journal.exists()) {
+            return;
+        }
+
+        int recovered = 0;
+        unverified.clear();
+
+        for (Map.Entry<String, RunJournal.Entry> entry : journal.recover().entrySet()) {
+            final RunJournal.Entry value = entry.getValue();
+            final FileRecord record = value.getRecord();
+            final File remoteFile = new File(dirRemote, value.getTarget());
+
+            if (record != null && value.getState() != RunJournal.State.FAILED && remoteFile.length() == record.getSize()
+                && toLocalDateTime(FileTime.fromMillis(remoteFile.lastModified())).equals(record.getDate())) {
+
+                manifest.put(record);
+                recovered++;
+
+                if (value.getState() == RunJournal.State.COPIED && verify) {
+                    unverified.add(record);
+                }
+
+            } else {
+                LOG.info("FILE: {} interrupted - removing record", entry.getKey());
+                manifest.remove(entry.getKey());
+            }
+        }
+
+        manifest.save();
+        this.endJournal();
+
+        LOG.info("backup - resuming, {} files recovered from an interrupted run, {} to verify", recovered, unverified.size());
+    }
+
+    /**
+     * Give an additional destination the settings of this backup.
+     * @param destination destination
+     */
+    private void configure(final Backup destination) {
+        destination.setChecksumCache(this.getChecksumCache());
+        destination.setChecksumAttributes(this.isChecksumAttributes());
+
+        if (! destination.ownDurability) {
+            destination.setDurability(this.getDurability());
+        }
+
+        destination.verifyThreads = verifyThreads;
+        destination.verifyCapacity = verifyCapacity;
+        destination.repairAttempts = repairAttempts;
+        destination.reconcile = reconcile;
+        destination.detectMoves = detectMoves;
+        destination.mirror = mirror;
+        destination.trashRetention = trashRetention;
+        destination.resumableThreshold = resumableThreshold;
+        destination.deltaThreshold = deltaThreshold;
+    }
+
+    /**
+     * @return this backup followed by the additional destinations
+     */
+    private List<Backup> getBackups() {
+        final List<Backup> backups = new ArrayList<>();
+        backups.add(this);
+        backups.addAll(destinations);
+
+        return backups;
+    }
+
+    /**
+     * Run a backup task, wait for all copied files to be verified and then save the manifest.
+     * @param task task to run
+     * @throws WorkflowException error backing up or verification failed
+     */
+    private void execute(final TaskScope.Task task) throws WorkflowException {
+        final List<Backup> backups = this.getBackups();
+        long unverified = 0;
+
+        try {
+            for (Backup backup : backups) {
+                backup.extras.clear();
+
+                if (action) {
+                    backup.durable = backup.getDurability().open(backup.dirRemote);
+                    backup.lastDurable = backup.durable;
+                    backup.journal.setBarrier(backup.durable);
+                    backup.journal.open();
+                }
+
+                if (verify && action) {
+                    backup.verification = new VerificationStage(type, backup.verifyThreads, backup.verifyCapacity, backup.repairAttempts);
+                    backup.verification.setListener(backup::journalVerification);
+
+                    for (FileRecord record : backup.unverified) {
+                        backup.verification.submit(new File(dirLocal, record.getPath()), new File(backup.dirRemote, record.getPath()), record.getSum());
+                    }
+
+                    backup.unverified.clear();
+                }
+            }
+
+            task.run();
+
+            for (Backup backup : backups) {
+                if (backup.verification != null) {
+                    final VerificationStage.Summary summary = backup.verification.finish();
+                    backup.applyVerification(summary);
+                    unverified += summary.getFailed() + summary.getSkipped();
+                }
+            }
+
+            if (action) {
+                for (Backup backup : backups) {
+                    backup.trashExtras();
+
+                    //the manifest only describes files that are durable
+                    backup.durable.flush();
+                    backup.manifest.save();
+                    backup.durable.written(new File(backup.dirRemote, MANIFEST_FILENAME));
+                    backup.durable.close();
+                    backup.endJournal();
+
+                    LOG.info("backup - {} {}", backup.dirRemote.getAbsolutePath(), backup.durable);
+                }
+            }
+
+        } catch (WorkflowRuntimeException wre) {
+            //exceptions thrown by another worker may be wrapped again by the pool
+            Throwable cause = wre;
+
+            while (cause instanceof WorkflowRuntimeException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+
+            throw new WorkflowException(cause);
+
+        } catch (IOException ie) {
+            throw new WorkflowException(ie);
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkflowException(ie);
+
+        } finally {
+            for (Backup backup : backups) {
+                if (backup.verification != null) {
+                    backup.verification.abort();
+                    backup.verification = null;
+                }
+
+                backup.closeJournal();
+                backup.durable = null;
+            }
+        }
+
+        if (unverified > 0) {
+            throw new WorkflowException("verification failed for " + unverified + " files");
+        }
+    }
+
+    /**
+     * Watch a directory and all its sub-directories for changes.
+     * @param watchService watch service
+     * @param keys directories by their watch key
+     * @param dir directory to watch
+     * @throws IOException error registering directory
+     */
+    private void register(final WatchService watchService, final Map<WatchKey, Path> keys, final Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path d, final BasicFileAttributes attrs) throws IOException {
+                keys.put(d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Collect the changes reported by a watch key. New directories are watched and scanned, if events were lost
+     * the directory of the key is scanned.
+     * @param watchService watch service
+     * @param keys directories by their watch key
+     * @param key key with events
+     * @param files changed files
+     * @param directories directories to scan
+     * @throws IOException error registering new directory
+     */
+    private void collect(
+        final WatchService watchService,
+        final Map<WatchKey, Path> keys,
+        final WatchKey key,
+        final Set<Path> files,
+        final Set<Path> directories)
+        throws IOException {
+
+        final Path dir = keys.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LOG.warn("DIR: {} changes lost - scanning", dir);
+                directories.add(dir);
+                continue;
+            }
+
+            final Path child = dir.resolve((Path) event.context());
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                //files may have been created before the directory was watched
+                this.register(watchService, keys, child);
+                directories.add(child);
+
+            } else if (! Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                files.add(child);
+            }
+        }
+
+        if (! key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Backup a single file if it is new or has changed.
+     * @param localPath local file
+     * @throws IOException error backing up
+     */
+    private void backupPath(final Path localPath) throws IOException {
+        final BasicFileAttributes localAttributes;
+
+        try {
+            localAttributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+
+        } catch (NoSuchFileException nsfe) {
+            LOG.debug("FILE: {} no longer exists - skipping", localPath);
+            return;
+        }
+
+        final Path relative = dirLocal.toPath().relativize(localPath);
+        final String recordPath = ManifestIndex.toRecordPath(relative);
+        final FileRecord remoteRecord = this.findRecord(relative, recordPath);
+
+        this.backupFile(localPath.toFile(), localAttributes, dirRemote.toPath().resolve(relative).toFile(), recordPath, remoteRecord);
+    }
+
+    /**
+     * Find the record of a single remote file without listing its directory, the remote directory is created if
+     * it is not in the manifest.
+     * @param relative path of the file relative to the local directory
+     * @param recordPath relative path of the file
+     * @return record describing the remote file, null if it does not exist
+     * @throws IOException error reading remote file attributes
+     */
+    private FileRecord findRecord(final Path relative, final String recordPath) throws IOException {
+        final Path remotePath = dirRemote.toPath().resolve(relative);
+        FileRecord remoteRecord = manifest.get(recordPath);
+
+        if (reconcile || remoteRecord == null) {
+            BasicFileAttributes remoteAttributes = null;
+
+            try {
+                remoteAttributes = Files.readAttributes(remotePath, BasicFileAttributes.class);
+
+            } catch (NoSuchFileException nsfe) {
+                LOG.trace("FILE: {} does not exist", remotePath);
+            }
+
+            remoteRecord = this.reconcileRecord(recordPath, remoteRecord, remoteAttributes);
+        }
+
+        if (relative.getParent() != null && ! manifest.containsDirectory(ManifestIndex.toRecordPath(relative.getParent()))) {
+            Files.createDirectories(remotePath.getParent());
+        }
+
+        return remoteRecord;
+    }
+
+    /**
+     * Iterate over the directory contents and backup files/directories as needed. The local directory is listed
+     * once along with its attributes, the remote directory is only listed if an entry is missing from the manifest.
+     * Sub-directories and files are handed to the dispatcher in the configured order.
+     *
+     * @param localDir local directory
+     * @param remoteDir remote directory
+     * @param dispatcher runs the work found
+     * @throws IOException error backing up
+     */
+    private void backupDirectory(
+        final Path localDir,
+        final Path remoteDir,
+        final Dispatcher dispatcher)
+        throws IOException {
+        
+        final Map<Path, IOException> failures = new HashMap<>();
+        final SortedMap<String, BasicFileAttributes> localEntries = FileUtil.listAttributes(localDir, failures);
+
+        if (localEntries.isEmpty() && ! mirror) {
+            LOG.debug("DIR: {} skipping - empty", localDir.toAbsolutePath());
+            return;
+        }
+
+        final String dirPath = ManifestIndex.toRecordPath(dirLocal.toPath().relativize(localDir));
+
+        //mirroring compares every remote entry, otherwise the remote directory is only listed when needed
+        SortedMap<String, BasicFileAttributes> remoteEntries = mirror ? FileUtil.listAttributes(remoteDir) : null;
+
+        final List<Map.Entry<String, BasicFileAttributes>> entries = new ArrayList<>(localEntries.entrySet());
+        entries.sort(order);
+
+        for (Map.Entry<String, BasicFileAttributes> entry : entries) {
+            final Path localPath = localDir.resolve(entry.getKey());
+            final Path remotePath = remoteDir.resolve(entry.getKey());
+            final String recordPath = dirPath.isEmpty() ? entry.getKey() : dirPath + ManifestIndex.SEPARATOR + entry.getKey();
+
+            if (entry.getValue().isDirectory()) {
+                if (reconcile || ! manifest.containsDirectory(recordPath)) {
+                    if (remoteEntries == null) {
+                        remoteEntries = FileUtil.listAttributes(remoteDir);
+                    }
+
+                    if (plan == null && ! remoteEntries.containsKey(entry.getKey())) {
+                        if (! remotePath.toFile().mkdir()) {
+                            throw new IOException("unable to create directory " + remotePath.toAbsolutePath());
+
+                        } else {
+                            LOG.info("DIR: {} does not exist - created", remotePath.toAbsolutePath());
+                        }
+                    }
+                }
+
+                dispatcher.directory(localPath, remotePath);
+
+            } else {
+                FileRecord remoteRecord = manifest.get(recordPath);
+
+                if (reconcile || remoteRecord == null) {
+                    if (remoteEntries == null) {
+                        remoteEntries = FileUtil.listAttributes(remoteDir);
+                    }
+
+                    remoteRecord = this.reconcileRecord(recordPath, remoteRecord, remoteEntries.get(entry.getKey()));
+                }
+
+                final FileRecord record = remoteRecord;
+                dispatcher.file(() -> this.backupFile(localPath.toFile(), entry.getValue(), remotePath.toFile(), recordPath, record));
+            }
+        }
+
+        if (mirror && ! failures.isEmpty()) {
+            //an entry missing from the listing would be trashed as if it was deleted
+            LOG.warn("DIR: {} listing incomplete - not mirroring", localDir.toAbsolutePath());
+
+        } else if (mirror) {
+            if (localEntries.isEmpty() && localDir.equals(dirLocal.toPath())) {
+                this.checkEmptyRoot();
+            }
+
+            this.findExtras(localEntries, remoteEntries, remoteDir);
+
+            for (Backup destination : destinations) {
+                final Path destinationDir = destination.dirRemote.toPath().resolve(dirRemote.toPath().relativize(remoteDir));
+
+                if (Files.isDirectory(destinationDir)) {
+                    destination.findExtras(localEntries, FileUtil.listAttributes(destinationDir), destinationDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * An empty local directory with a backup is more likely an unmounted drive than everything having been deleted,
+     * mirroring would trash the whole backup.
+     * @throws IOException a remote directory has entries
+     */
+    private void checkEmptyRoot() throws IOException {
+        for (Backup backup : this.getBackups()) {
+            for (String name : FileUtil.listAttributes(backup.dirRemote.toPath()).keySet()) {
+                if (! backup.isBackupFile(name, true, Collections.emptyMap())) {
+                    throw new IOException("local directory is empty, refusing to mirror to " + backup.dirRemote.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Find remote entries that do not exist locally by merging the sorted listings of both directories. Extras are
+     * moved to the trash once the backup completes, so files that were moved locally can still be found by move
+     * detection.
+     * @param localEntries local directory listing
+     * @param remoteEntries remote directory listing
+     * @param remoteDir remote directory
+     */
+    private void findExtras(
+        final SortedMap<String, BasicFileAttributes> localEntries,
+        final SortedMap<String, BasicFileAttributes> remoteEntries,
+        final Path remoteDir) {
+
+        final boolean root = remoteDir.equals(dirRemote.toPath());
+        final Iterator<String> localNames = localEntries.keySet().iterator();
+        final Iterator<String> remoteNames = remoteEntries.keySet().iterator();
+
+        String local = localNames.hasNext() ? localNames.next() : null;
+        String remote = remoteNames.hasNext() ? remoteNames.next() : null;
+
+        while (remote != null) {
+            final int c = local == null ? 1 : local.compareTo(remote);
+
+            if (c < 0) {
+                local = localNames.hasNext() ? localNames.next() : null;
+                continue;
+            }
+
+            if (c > 0 && ! this.isBackupFile(remote, root, localEntries)) {
+                LOG.info("{}: {} {} - deleted locally", (remoteEntries.get(remote).isDirectory() ? "DIR" : "FILE"), remoteDir.resolve(remote), (action ? "trashing" : ""));
+
+                if (action && plan == null) {
+                    extras.add(remoteDir.resolve(remote));
+                }
+            }
+
+            if (c == 0) {
+                local = localNames.hasNext() ? localNames.next() : null;
+            }
+
+            remote = remoteNames.hasNext() ? remoteNames.next() : null;
+        }
+    }
+
+    /** Work performed on a remote file. */
+    @FunctionalInterface
+    private interface RemoteFileTask {
+        /**
+         * Perform the work.
+         * @param remotePath remote file
+         * @param attrs remote file attributes
+         * @param relative path relative to the remote directory
+         * @throws IOException error performing work
+         */
+        void run(Path remotePath, BasicFileAttributes attrs, Path relative) throws IOException;
+    }
+
+    /** Outcome of restoring a file. */
+    private enum RestoreStatus {
+        RESTORED,
+        SKIPPED,
+        FAILED
+    }
+
+    /**
+     * Files created by the backup itself have no local counterpart but must be kept. Files written next to a
+     * remote file are kept while the local file exists.
+     * @param name remote entry name
+     * @param root true if the entry is in the remote root
+     * @param localEntries local directory listing
+     * @return true if the entry belongs to the backup
+     */
+    private boolean isBackupFile(final String name, final boolean root, final Map<String, BasicFileAttributes> localEntries) {
+        if (root && (name.equals(Trash.DIRECTORY) || name.startsWith(MANIFEST_FILENAME))) {
+            return true;
+        }
+
+        if (name.startsWith(".")) {
+            for (String suffix : SIDECAR_SUFFIXES) {
+                if (name.endsWith(suffix) && localEntries.containsKey(name.substring(1, name.length() - suffix.length()))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Move the extras found while mirroring into the trash, entries that were moved by move detection are gone.
+     * @throws IOException error moving an entry
+     */
+    private void trashExtras() throws IOException {
+        if (extras.isEmpty()) {
+            return;
+        }
+
+        final Trash trash = new Trash(dirRemote.toPath(), trashRetention);
+        Path extra;
+
+        while ((extra = extras.poll()) != null) {
+            if (! Files.exists(extra, LinkOption.NOFOLLOW_LINKS)) {
+                continue;
+            }
+
+            final String recordPath = ManifestIndex.toRecordPath(dirRemote.toPath().relativize(extra));
+
+            if (Files.isDirectory(extra, LinkOption.NOFOLLOW_LINKS)) {
+                manifest.removeDirectory(recordPath);
+
+            } else {
+                manifest.remove(recordPath);
+            }
+
+            trash.move(extra);
+        }
+    }
+
+    /**
+     * Delete expired trash in the background.
+     * @return number of days deleted
+     */
+    private Future<Integer> purgeTrash() {
+        final Trash trash = new Trash(dirRemote.toPath(), trashRetention);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            return executor.submit(() -> trash.purge(LocalDate.now()));
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Wait for expired trash to be deleted, a failure is logged but does not fail the backup.
+     * @param purge background purge
+     * @throws WorkflowException interrupted while waiting
+     */
+    private void awaitPurge(final Future<Integer> purge) throws WorkflowException {
+        try {
+            LOG.info("DIR: {} purged {} expired days", new File(dirRemote, Trash.DIRECTORY).getAbsolutePath(), purge.get());
+
+        } catch (ExecutionException ee) {
+            LOG.warn("DIR: {} unable to purge - {}", new File(dirRemote, Trash.DIRECTORY).getAbsolutePath(), ee.getCause().toString());
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new WorkflowException(ie);
+        }
+    }
+
+    /**
+     * Fork a task that backs up a directory, its sub-directories and files are forked into the same scope.
+     * @param scope scope
+     * @param localDir local directory
+     * @param remoteDir remote directory
+     */
+    private void forkDirectory(final TaskScope scope, final Path localDir, final Path remoteDir) {
+        scope.forkUnlimited(() -> this.backupDirectory(localDir, remoteDir, new Dispatcher() {
+            @Override
+            public void directory(final Path local, final Path remote) {
+                forkDirectory(scope, local, remote);
+            }
+
+            @Override
+            public void file(final TaskScope.Task task) throws IOException {
+                scope.fork(task);
+            }
+        }));
+    }
+
+    /**
+     * Create a record that describes a remote file from its attributes. A record from the manifest that still
+     * matches the remote file is kept so its checksum is not lost, otherwise the checksum stored in the extended
+     * attributes of the remote file is used if there is one.
+     * @param recordPath relative path
+     * @param record record from the manifest, may be null
+     * @param remoteAttributes remote file attributes, null if the remote file does not exist
+     * @return record describing the remote file, null if it does not exist
+     * @throws IOException error reading extended attributes
+     */
+    private FileRecord reconcileRecord(
+        final String recordPath,
+        final FileRecord record,
+        final BasicFileAttributes remoteAttributes)
+        throws IOException {
+
+        if (remoteAttributes == null) {
+            if (record != null) {
+                LOG.warn("FILE: {} in manifest but missing - removing record", recordPath);
+                manifest.remove(recordPath);
+            }
+
+            return null;
+        }
+
+        final LocalDateTime lastModified = toLocalDateTime(remoteAttributes.lastModifiedTime());
+
+        if (record != null && record.getSize() == remoteAttributes.size() && record.getDate().equals(lastModified)) {
+            return record;
+        }
+
+        final String stored = this.readChecksum(new File(dirRemote, recordPath));
+
+        return new FileRecord(recordPath, stored != null ? stored : FileRecordCodec.UNKNOWN_CHECKSUM, remoteAttributes.size(), lastModified, type);
+    }
+    
+    /**
+     * Backup a file if it is new or has changed. The manifest is updated to describe the remote file. Each
+     * additional destination decides from its own manifest, the local file is then read once for every
+     * destination that needs a copy. Files that are resumed or updated in place are copied to each destination
+     * on its own. A copy that fails stops the run, the destinations that were written are recorded first.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param remoteFile remote file
+     * @param recordPath relative path of the file
+     * @param remoteRecord record describing the remote file, null if the remote file does not exist
+     * @throws IOException error backing up file
+     */
+    private void backupFile(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File remoteFile,
+        final String recordPath,
+        final FileRecord remoteRecord)
+        throws IOException {
+
+        final BackupPlan currentPlan = plan;
+
+        if (currentPlan != null) {
+            currentPlan.addFile(this.classify(localAttributes, remoteRecord), localFile, localAttributes.size());
+            return;
+        }
+
+        final Map<Backup, File> targets = new LinkedHashMap<>();
+        final LocalChecksum localChecksum = new LocalChecksum(localFile);
+
+        if (this.isCopyRequired(localFile, localAttributes, remoteFile, recordPath, remoteRecord, localChecksum)) {
+            targets.put(this, remoteFile);
+        }
+
+        if (! destinations.isEmpty()) {
+            final Path relative = dirLocal.toPath().relativize(localFile.toPath());
+
+            for (Backup destination : destinations) {
+                final File destinationFile = destination.dirRemote.toPath().resolve(relative).toFile();
+                final FileRecord destinationRecord = destination.findRecord(relative, recordPath);
+
+                if (destination.isCopyRequired(localFile, localAttributes, destinationFile, recordPath, destinationRecord, localChecksum)) {
+                    targets.put(destination, destinationFile);
+                }
+            }
+        }
+
+        for (Backup backup : targets.keySet()) {
+            backup.journal.started(recordPath, recordPath);
+        }
+
+        //files that are resumed or updated in place are copied to each destination on its own
+        final Map<Backup, File> fanOut = new LinkedHashMap<>();
+
+        for (Map.Entry<Backup, File> target : targets.entrySet()) {
+            if (targets.size() > 1 && ! target.getKey().isCopiedAlone(localFile, target.getValue())) {
+                fanOut.put(target.getKey(), target.getValue());
+
+            } else {
+                target.getKey().copyAlone(localFile, localAttributes, target.getValue(), recordPath, localChecksum);
+            }
+        }
+
+        if (fanOut.size() == 1) {
+            final Map.Entry<Backup, File> target = fanOut.entrySet().iterator().next();
+            target.getKey().copyAlone(localFile, localAttributes, target.getValue(), recordPath, localChecksum);
+
+        } else if (fanOut.size() > 1) {
+            //a checksum calculated while looking for a move is not calculated again
+            final String known = localChecksum.checksum;
+            final FanOutCopy.Result result = FanOutCopy.copyFile(localFile, new ArrayList<>(fanOut.values()), true, known != null ? null : type, FanOutCopy.DEFAULT_BUFFER_SIZE, fanOutBuffers);
+            final String checksum = known != null ? known : result.getChecksum();
+            IOException failed = null;
+
+            //a destination that failed keeps its previous copy, the others are recorded before the run stops
+            for (Map.Entry<Backup, File> target : fanOut.entrySet()) {
+                final IOException failure = result.getFailures().get(target.getValue());
+
+                if (failure == null) {
+                    target.getKey().copied(localFile, localAttributes, target.getValue(), recordPath, checksum);
+
+                } else if (failed == null) {
+                    failed = failure;
+
+                } else {
+                    failed.addSuppressed(failure);
+                }
+            }
+
+            if (failed != null) {
+                throw failed;
+            }
+        }
+    }
+
+    /**
+     * Copy a file to this destination only and record it.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param remoteFile remote file
+     * @param recordPath relative path of the file
+     * @param localChecksum checksum of the local file, set by the copy if it was not known
+     * @throws IOException error copying file
+     */
+    private void copyAlone(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File remoteFile,
+        final String recordPath,
+        final LocalChecksum localChecksum)
+        throws IOException {
+
+        localChecksum.checksum = this.copyFile(localFile, remoteFile, localChecksum.checksum);
+        this.copied(localFile, localAttributes, remoteFile, recordPath, localChecksum.checksum);
+    }
+
+    /**
+     * @param localFile local file
+     * @param remoteFile remote file
+     * @return true if the file is resumed or updated in place, so it can not be written with other destinations
+     */
+    private boolean isCopiedAlone(final File localFile, final File remoteFile) {
+        return localFile.length() >= resumableThreshold || deltaThreshold > 0 && localFile.length() >= deltaThreshold && remoteFile.isFile();
+    }
+
+    /**
+     * Decide if a file must be copied to this destination. Files that are identical are recorded in the manifest
+     * and new files are moved from their old remote path if they were renamed.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param remoteFile remote file
+     * @param recordPath relative path of the file
+     * @param remoteRecord record describing the remote file, null if the remote file does not exist
+     * @param localChecksum checksum of the local file, calculated once for every destination
+     * @return true if the file must be copied
+     * @throws IOException error comparing file
+     */
+    private boolean isCopyRequired(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File remoteFile,
+        final String recordPath,
+        final FileRecord remoteRecord,
+        final LocalChecksum localChecksum)
+        throws IOException {
+
+        final LocalDateTime lastModified = toLocalDateTime(localAttributes.lastModifiedTime());
+
+        if (remoteRecord != null) {
+            boolean equalLength = localAttributes.size() == remoteRecord.getSize();
+            boolean equalLastModified = lastModified.equals(remoteRecord.getDate());
+
+            if (!equalLength) {
+                LOG.info("FILE: {} {} - different length", localFile.getAbsolutePath(), (action ? "replacing" : ""));
+
+                return action;
+
+            } else if (!equalLastModified) {
+                if (useChecksum) {
+                    final String remoteChecksum = this.getChecksum(remoteRecord);
+                    final boolean equalChecksum;
+
+                    if (remoteChecksum != null) {
+                        //only the local file needs to be read
+                        equalChecksum = localChecksum.get().equals(remoteChecksum);
+
+                    } else {
+                        equalChecksum = localChecksum.get().equals(FileRecordCodec.calculateChecksum(remoteFile, type));
+                    }
+
+                    if (!equalChecksum) {
+                        LOG.info("FILE: {} {} - different last modified and checksum", localFile.getAbsolutePath(), (action ? "replacing" : ""));
+
+                        return action;
+
+                    } else {
+                        //last modified different, but files have same checksum
+                        LOG.info("FILE: {} {} - different last modified, equal checksum", localFile.getAbsolutePath(), (action ? "skipping" : ""));
+                        manifest.put(new FileRecord(recordPath, localChecksum.get(), localAttributes.size(), this.matchLastModified(localAttributes, remoteFile, remoteRecord), type));
+                    }
+
+                } else {
+                    //faster, but could be error-prone
+                    LOG.info("FILE: {} {} - different last modified", localFile.getAbsolutePath(), (action ? "replacing" : ""));
+
+                    return action;
+                }
+
+            } else {
+                //same file length and timestamps
+                LOG.debug("FILE: {} {} - identical", localFile.getAbsolutePath(), (action ? "skipping" : ""));
+
+                if (this.getChecksum(remoteRecord) == null && (localChecksum.checksum != null || action && detectMoves)) {
+                    //moves are found by checksum, a record without one is completed once
+                    manifest.put(new FileRecord(recordPath, localChecksum.get(), remoteRecord.getSize(), remoteRecord.getDate(), type));
+
+                } else {
+                    manifest.put(remoteRecord);
+                }
+            }
+            
+        } else if (action && detectMoves && manifest.containsSize(localAttributes.size()) && this.moveFile(localFile, localAttributes, remoteFile, recordPath, localChecksum)) {
+            //file was renamed or moved, the remote copy was moved to match
+            return false;
+
+        } else {
+            //copy file since it does not exist in remote location
+            LOG.info("FILE: {} {} - new", localFile.getAbsolutePath(), (action ? "copying" : ""));
+
+            return action;
+        } 
+
+        return false;
+    }
+
+    /**
+     * The remote file has the same contents as the local file but a different last modified time, it is given the
+     * local time so the record matches both.
+     * @param localAttributes local file attributes
+     * @param remoteFile remote file
+     * @param remoteRecord record describing the remote file
+     * @return last modified time of the remote file
+     */
+    private LocalDateTime matchLastModified(final BasicFileAttributes localAttributes, final File remoteFile, final FileRecord remoteRecord) {
+        if (! action) {
+            return remoteRecord.getDate();
+        }
+
+        try {
+            Files.setLastModifiedTime(remoteFile.toPath(), localAttributes.lastModifiedTime());
+            return toLocalDateTime(localAttributes.lastModifiedTime());
+
+        } catch (IOException ioe) {
+            LOG.warn("FILE: {} unable to set last modified date - {}", remoteFile.getAbsolutePath(), ioe.toString());
+            return remoteRecord.getDate();
+        }
+    }
+
+    /**
+     * Record a file copied to this destination and verify it.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param remoteFile remote file
+     * @param recordPath relative path of the file
+     * @param checksum checksum of the local file calculated during the copy
+     * @throws IOException error storing checksum
+     */
+    private void copied(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File remoteFile,
+        final String recordPath,
+        final String checksum)
+        throws IOException {
+
+        final FileRecord record = new FileRecord(recordPath, checksum, localAttributes.size(), toLocalDateTime(localAttributes.lastModifiedTime()), type);
+        manifest.put(record);
+        this.storeChecksum(remoteFile, checksum);
+        this.written(remoteFile);
+        journal.copied(record);
+
+        //if copied, verify it
+        if (verification != null) {
+            try {
+                verification.submit(localFile, remoteFile, checksum);
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting to verify " + localFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Satisfy a new local file by moving an existing remote file with the same content. Only remote files whose
+     * local file no longer exists are moved, content that is still backed up at its old path is copied again. The
+     * delta signature of the remote file is moved with it.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param remoteFile remote file, does not exist
+     * @param recordPath relative path of the file
+     * @param localChecksum checksum of the local file, reused by the copy if the file is not moved
+     * @return true if a remote file was moved, false if the file must be copied
+     * @throws IOException error calculating checksum
+     */
+    private boolean moveFile(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File remoteFile,
+        final String recordPath,
+        final LocalChecksum localChecksum)
+        throws IOException {
+
+        final String checksum = localChecksum.get();
+        FileRecord previous = null;
+
+        //a copy of the content that is still in use locally is left, another file may claim a record first
+        for (FileRecord candidate : manifest.findContent(localAttributes.size(), type, checksum)) {
+            if (! new File(dirLocal, candidate.getPath()).exists() && manifest.remove(candidate)) {
+                previous = candidate;
+                break;
+            }
+        }
+
+        if (previous == null) {
+            return false;
+        }
+
+        final File previousFile = new File(dirRemote, previous.getPath());
+
+        try {
+            //an interrupted delta update is rolled back so the old contents are moved
+            DeltaCopy.recover(previousFile);
+            Files.move(previousFile.toPath(), remoteFile.toPath());
+            Files.setLastModifiedTime(remoteFile.toPath(), localAttributes.lastModifiedTime());
+
+        } catch (IOException ioe) {
+            LOG.warn("FILE: {} unable to move from {} - {}", remoteFile.getAbsolutePath(), previousFile.getAbsolutePath(), ioe.toString());
+
+            if (previousFile.exists()) {
+                manifest.put(previous);
+            }
+
+            return false;
+        }
+
+        LOG.info("FILE: {} moving - renamed from {}", localFile.getAbsolutePath(), previous.getPath());
+
+        final Path signature = DeltaCopy.getSignatureFile(previousFile);
+
+        if (Files.exists(signature)) {
+            try {
+                Files.move(signature, DeltaCopy.getSignatureFile(remoteFile), StandardCopyOption.REPLACE_EXISTING);
+
+            } catch (IOException ioe) {
+                //without its signature the next delta update compares every block with the file
+                LOG.warn("FILE: {} unable to move delta signature - {}", remoteFile.getAbsolutePath(), ioe.toString());
+                Files.deleteIfExists(signature);
+            }
+        }
+
+        final FileRecord record = new FileRecord(recordPath, checksum, localAttributes.size(), toLocalDateTime(localAttributes.lastModifiedTime()), type);
+        manifest.put(record);
+        this.storeChecksum(remoteFile, checksum);
+        this.written(remoteFile);
+        journal.copied(record);
+
+        return true;
+    }
+
+    /**
+     * Restore a single file. The remote file is copied as it is, the delta and resumable copies only apply to
+     * backing up. A file that can not be restored is reported so the rest are still restored.
+     * @param remoteFile remote file
+     * @param remoteAttributes remote file attributes
+     * @param targetFile file to restore to
+     * @param recordPath relative path of the file
+     * @return outcome
+     */
+    private RestoreStatus restoreFile(
+        final File remoteFile,
+        final BasicFileAttributes remoteAttributes,
+        final File targetFile,
+        final String recordPath) {
+
+        File tmp = null;
+
+        try {
+            if (targetFile.isFile()
+                && targetFile.length() == remoteAttributes.size()
+                && toLocalDateTime(Files.getLastModifiedTime(targetFile.toPath())).equals(toLocalDateTime(remoteAttributes.lastModifiedTime()))) {
+
+                LOG.debug("FILE: {} skipping - identical", targetFile.getAbsolutePath());
+                return RestoreStatus.SKIPPED;
+            }
+
+            final FileRecord record = manifest.get(recordPath);
+            final String expected = record != null && record.getSize() == remoteAttributes.size() ? this.getChecksum(record) : null;
+
+            final Path dir = Files.createDirectories(targetFile.getParentFile().toPath());
+            tmp = dir.resolve("." + targetFile.getName() + RESTORE_SUFFIX).toFile();
+
+            //the remote file is checked against the manifest as it is read
+            final String checksum = FileUtil.copyFile(remoteFile, tmp, true, type);
+
+            if (expected != null && ! expected.equals(checksum)) {
+                LOG.error("FILE: {} checksum does not match manifest - not restored", remoteFile.getAbsolutePath());
+                Files.deleteIfExists(tmp.toPath());
+                return RestoreStatus.FAILED;
+            }
+
+            if (verify && ! FileRecordCodec.verifyFileChecksum(tmp, type, checksum)) {
+                LOG.error("FILE: {} restored copy failed verification", targetFile.getAbsolutePath());
+                Files.deleteIfExists(tmp.toPath());
+                return RestoreStatus.FAILED;
+            }
+
+            try {
+                Files.move(tmp.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } catch (IOException ioe) {
+            LOG.error("FILE: {} unable to restore - {}", targetFile.getAbsolutePath(), ioe.getMessage());
+
+            if (tmp != null && tmp.exists() && ! tmp.delete()) {
+                LOG.warn("FILE: {} unable to delete", tmp.getAbsolutePath());
+            }
+
+            return RestoreStatus.FAILED;
+        }
+
+        LOG.info("FILE: {} restored", targetFile.getAbsolutePath());
+
+        return RestoreStatus.RESTORED;
+    }
+
+    /**
+     * Validate a single remote file. A file that disappeared is reported missing and a file that can not be read
+     * is reported corrupted, so one bad file does not stop the rest from being validated.
+     * @param remoteFile remote file
+     * @param remoteAttributes remote file attributes
+     * @param recordPath relative path of the file
+     * @param useManifest true to compare with the manifest, false to compare with the local file
+     * @param report report to add the result to
+     */
+    private void validateFile(
+        final File remoteFile,
+        final BasicFileAttributes remoteAttributes,
+        final String recordPath,
+        final boolean useManifest,
+        final ValidationReport report) {
+
+        final boolean equal;
+        String checksum;
+
+        try {
+            if (useManifest) {
+                final FileRecord record = manifest.get(recordPath);
+
+                if (record == null) {
+                    LOG.warn("FILE: {} extra - not in manifest", recordPath);
+                    report.addExtra(recordPath);
+                    return;
+                }
+
+                checksum = this.getChecksum(record);
+
+                if (checksum == null) {
+                    checksum = this.readChecksum(remoteFile);
+                }
+
+                if (checksum == null) {
+                    LOG.info("FILE: {} unverified - no checksum", recordPath);
+                    report.addUnverified(recordPath);
+                    return;
+                }
+
+                //a different size can not match, so the file is not read
+                equal = record.getSize() == remoteAttributes.size() && FileRecordCodec.verifyFileChecksum(remoteFile, type, checksum);
+
+            } else {
+                final File localFile = new File(dirLocal, recordPath);
+
+                if (! localFile.isFile()) {
+                    LOG.warn("FILE: {} extra - not in {}", recordPath, dirLocal.getAbsolutePath());
+                    report.addExtra(recordPath);
+                    return;
+                }
+
+                //the remote file is always read, the expected checksum comes from its attributes or the source
+                checksum = this.readChecksum(remoteFile);
+
+                if (checksum == null) {
+                    checksum = this.calculateChecksum(localFile);
+                }
+
+                equal = FileRecordCodec.verifyFileChecksum(remoteFile, type, checksum);
+            }
+
+        } catch (IOException ioe) {
+            //FileNotFoundException is also thrown for a file that can not be opened
+            if (! remoteFile.exists()) {
+                LOG.warn("FILE: {} missing", recordPath);
+                report.addMissing(recordPath);
+
+            } else {
+                LOG.warn("FILE: {} unable to verify - {}", recordPath, ioe.getMessage());
+                report.addCorrupted(recordPath, remoteAttributes.size());
+            }
+
+            return;
+        }
+
+        if (equal) {
+            LOG.debug("FILE: {} checksum - passed", recordPath);
+            report.addPassed(remoteAttributes.size());
+
+            try {
+                //record when the file was last verified
+                this.storeChecksum(remoteFile, checksum);
+
+            } catch (IOException ioe) {
+                LOG.warn("FILE: {} unable to store checksum - {}", recordPath, ioe.getMessage());
+            }
+
+        } else {
+            LOG.warn("FILE: {} checksum - failed", recordPath);
+            report.addCorrupted(recordPath, remoteAttributes.size());
+        }
+    }
+
+    /**
+     * Walk the remote tree and fork a task for every backed up file. The trash and files created by the backup
+     * itself are skipped.
+     * @param scope scope
+     * @param start remote directory or file to start at
+     * @param task task run for each file
+     * @throws IOException error walking the tree
+     */
+    private void forkRemoteFiles(final TaskScope scope, final Path start, final RemoteFileTask task) throws IOException {
+        final Path remoteRoot = dirRemote.toPath().toAbsolutePath().normalize();
+
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+                if (remoteRoot.equals(dir.getParent()) && dir.getFileName().toString().equals(Trash.DIRECTORY)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path remotePath, final BasicFileAttributes attrs) throws IOException {
+                if (isBackedUpFile(remotePath, remoteRoot)) {
+                    final Path relative = remoteRoot.relativize(remotePath);
+                    scope.fork(() -> task.run(remotePath, attrs, relative));
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Files created by the backup itself are not restored or validated.
+     * @param remotePath remote file
+     * @param remoteRoot remote directory
+     * @return true if the file is a backed up file
+     */
+    private static boolean isBackedUpFile(final Path remotePath, final Path remoteRoot) {
+        final String name = remotePath.getFileName().toString();
+
+        if (remotePath.getParent().equals(remoteRoot) && (name.startsWith(MANIFEST_FILENAME) || name.equals(DirectoryInfoCodec.THROUGHPUT_FILENAME))) {
+            return false;
+        }
+
+        if (name.startsWith(".")) {
+            for (String suffix : SIDECAR_SUFFIXES) {
+                if (name.endsWith(suffix)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Build a plan from the loaded manifest.
+     * @return plan
+     * @throws WorkflowException error planning
+     */
+    private BackupPlan createPlan() throws WorkflowException {
+        final BackupPlan newPlan = new BackupPlan(dirLocal, dirRemote);
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        plan = newPlan;
+
+        try {
+            pool.invoke(new DirectoryTask(dirLocal.toPath(), dirRemote.toPath()));
+
+            newPlan.setFreeSpace(dirRemote.getUsableSpace());
+
+            if (newPlan.getLargestFile() != null) {
+                newPlan.setReadThroughput(DirectoryInfoCodec.measureReadThroughput(newPlan.getLargestFile(), DirectoryInfoCodec.DEFAULT_SAMPLE_SIZE));
+                newPlan.setWriteThroughput(DirectoryInfoCodec.measureWriteThroughput(dirRemote, DirectoryInfoCodec.DEFAULT_SAMPLE_SIZE));
+            }
+
+        } catch (WorkflowRuntimeException wre) {
+            throw new WorkflowException(wre.getCause() != null ? wre.getCause() : wre);
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+
+        } finally {
+            plan = null;
+            pool.shutdown();
+        }
+
+        LOG.info("backup - {}", newPlan);
+
+        return newPlan;
+    }
+
+    /**
+     * Classify a file for a plan using only its attributes and the manifest.
+     * @param localAttributes local file attributes
+     * @param remoteRecord record describing the remote file, null if the remote file does not exist
+     * @return what the backup would do with the file
+     */
+    private BackupPlan.Category classify(final BasicFileAttributes localAttributes, final FileRecord remoteRecord) {
+        if (remoteRecord == null) {
+            return BackupPlan.Category.NEW;
+
+        } else if (localAttributes.size() != remoteRecord.getSize()) {
+            return BackupPlan.Category.CHANGED;
+
+        } else if (! toLocalDateTime(localAttributes.lastModifiedTime()).equals(remoteRecord.getDate())) {
+            return useChecksum ? BackupPlan.Category.VERIFY : BackupPlan.Category.CHANGED;
+        }
+
+        return BackupPlan.Category.IDENTICAL;
+    }
+
+    /**
+     * Update the manifest with the outcome of verification. Files that could not be verified have their record
+     * removed so they are copied again by the next backup.
+     * @param summary verification summary
+     */
+    private void applyVerification(final VerificationStage.Summary summary) {
+        for (VerificationStage.Result result : summary.getProblems()) {
+            final String recordPath = ManifestIndex.toRecordPath(dirRemote.toPath().relativize(result.getDest().toPath()));
+            final FileRecord record = manifest.get(recordPath);
+
+            if (record == null) {
+                continue;
+            }
+
+            if (result.getStatus() == VerificationStage.Status.REPAIRED) {
+                manifest.put(new FileRecord(recordPath, result.getChecksum(), record.getSize(), record.getDate(), type));
+
+            } else {
+                LOG.warn("FILE: {} {} verification - removing record", result.getSource().getAbsolutePath(), result.getStatus());
+                manifest.remove(recordPath);
+            }
+        }
+    }
+
+    /**
+     * Record the outcome of a verification in the journal, a repaired copy is made durable first. Called on a
+     * verification thread.
+     * @param result verification result
+     */
+    private void journalVerification(final VerificationStage.Result result) {
+        final String recordPath = ManifestIndex.toRecordPath(dirRemote.toPath().relativize(result.getDest().toPath()));
+        final VerificationStage.Status status = result.getStatus();
+
+        try {
+            if (status == VerificationStage.Status.REPAIRED) {
+                this.written(result.getDest());
+            }
+
+            journal.verified(recordPath, status == VerificationStage.Status.PASSED || status == VerificationStage.Status.REPAIRED);
+
+            if (status == VerificationStage.Status.REPAIRED) {
+                //the repaired copy replaced the file along with the checksum stored in its attributes
+                this.storeChecksum(result.getDest(), result.getChecksum());
+            }
+
+        } catch (IOException ioe) {
+            LOG.warn("FILE: {} unable to journal verification - {}", result.getDest().getAbsolutePath(), ioe.toString());
+        }
+    }
+
+    /**
+     * Make a file written by the run durable, the journal entry describing it must follow.
+     * @param remoteFile remote file
+     * @throws IOException error forcing file
+     */
+    private void written(final File remoteFile) throws IOException {
+        if (durable != null) {
+            durable.written(remoteFile);
+        }
+    }
+
+    /**
+     * End the journal of a completed run or recovery. It is deleted, or rewritten with only the copies recovered from
+     * an interrupted run that have not been verified yet, so they are verified again if this run is interrupted too.
+     * @throws IOException error writing journal
+     */
+    private void endJournal() throws IOException {
+        if (unverified.isEmpty()) {
+            journal.delete();
+
+        } else {
+            journal.rewrite(unverified);
+        }
+    }
+
+    /**
+     * Close the journal after a run, it is kept if the run did not complete.
+     */
+    private void closeJournal() {
+        try {
+            journal.close();
+
+        } catch (IOException ioe) {
+            LOG.warn("FILE: {} unable to close journal - {}", journal.getFile().getAbsolutePath(), ioe.toString());
+        }
+    }
+
+    /**
+     * Copy a file, the checksum of the local file is calculated during the copy unless it is already known. Large
+     * files that already exist remotely are updated in place when delta updates are enabled,
+     * other large files are copied in chunks that are resumed by the next backup if the copy is interrupted. Both
+     * calculate the checksum as part of the copy.
+     * @param localFile local file
+     * @param remoteFile remote file
+     * @param checksum checksum of the local file if it was already calculated, null otherwise
+     * @return checksum of the local file
+     * @throws IOException error copying file
+     */
+    private String copyFile(final File localFile, final File remoteFile, final String checksum) throws IOException {
+        if (deltaThreshold > 0 && localFile.length() >= deltaThreshold && remoteFile.isFile()) {
+            return DeltaCopy.copyFile(localFile, remoteFile, true, type, DeltaCopy.DEFAULT_BLOCK_SIZE);
+        }
+
+        //an undo file left by an interrupted delta update must not be applied to the new copy later
+        DeltaCopy.recover(remoteFile);
+
+        if (localFile.length() >= resumableThreshold) {
+            return ResumableCopy.copyFile(localFile, remoteFile, true, type, ResumableCopy.DEFAULT_CHUNK_SIZE);
+        }
+
+        if (checksum != null) {
+            FileUtil.copyFile(localFile, remoteFile, true);
+            return checksum;
+        }
+
+        return FileUtil.copyFile(localFile, remoteFile, true, type);
+    }
+
+    /**
+     * @param record record
+     * @return checksum of the record if it is known and uses the current checksum type, null otherwise
+     */
+    private String getChecksum(final FileRecord record) {
+        if (record.getType() != type || FileRecordCodec.UNKNOWN_CHECKSUM.equals(record.getSum())) {
+            return null;
+        }
+
+        return record.getSum();
+    }
+
+    /**
+     * A path is covered by a scan when one of its parent directories is scanned, including a directory scanned again
+     * because changes were lost.
+     * @param path local file or directory
+     * @param directories local directories to scan
+     * @return true if the path is below a directory being scanned
+     */
+    static boolean isScanned(final Path path, final Set<Path> directories) {
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (directories.contains(parent)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Convert a file time to the date stored in a manifest. Times are truncated to milliseconds since that is the
+     * precision of every file system we copy to.
+     * @param time file time
+     * @return local date/time
+     */
+    static LocalDateTime toLocalDateTime(final FileTime time) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(time.toMillis()), ZoneId.systemDefault());
+    }
+
+    /**
+     * Checksum of a local file, calculated at most once while deciding which destinations need a copy and reused by
+     * the copy. Only used by the thread backing up the file.
+     */
+    private final class LocalChecksum {
+        /** Local file. */
+        private final File file;
+
+        /** Checksum, null until calculated. */
+        private String checksum;
+
+        /**
+         * Constructor.
+         * @param file local file
+         */
+        LocalChecksum(final File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return checksum of the local file, calculated the first time
+         * @throws IOException error calculating checksum
+         */
+        String get() throws IOException {
+            if (checksum == null) {
+                checksum = calculateChecksum(file);
+            }
+
+            return checksum;
+        }
+    }
+
+    /**
+     * Backs up a single directory, sub-directories are processed by their own tasks.
+     */
+    private final class DirectoryTask extends RecursiveAction {
+        /** Local directory. */
+        private final transient Path localDir;
+
+        /** Remote directory. */
+        private final transient Path remoteDir;
+
+        /**
+         * Constructor.
+         * @param localDir local directory
+         * @param remoteDir remote directory
+         */
+        DirectoryTask(final Path localDir, final Path remoteDir) {
+            this.localDir = localDir;
+            this.remoteDir = remoteDir;
+        }
+
+        @Override
+        protected void compute() {
+            final List<DirectoryTask> tasks = new ArrayList<>();
+
+            try {
+                //sub-directories are forked so idle threads can steal them, files are backed up by this thread
+                backupDirectory(localDir, remoteDir, new Dispatcher() {
+                    @Override
+                    public void directory(final Path local, final Path remote) {
+                        final DirectoryTask task = new DirectoryTask(local, remote);
+                        task.fork();
+                        tasks.add(task);
+                    }
+
+                    @Override
+                    public void file(final TaskScope.Task task) throws IOException {
+                        task.run();
+                    }
+                });
+
+            } catch (IOException ie) {
+                throw new WorkflowRuntimeException(ie);
+            }
+
+            for (DirectoryTask task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Backs up changed files and scans directories. Files and directories below a directory being scanned are left
+     * to that scan, so they are not backed up twice at the same time.
+     */
+    private final class ChangeTask extends RecursiveAction {
+        /** Changed local files. */
+        private final transient Collection<Path> files;
+
+        /** Local directories to scan. */
+        private final transient Collection<Path> directories;
+
+        /**
+         * Constructor.
+         * @param files changed local files
+         * @param directories local directories to scan
+         */
+        ChangeTask(final Collection<Path> files, final Collection<Path> directories) {
+            this.files = files;
+            this.directories = directories;
+        }
+
+        @Override
+        protected void compute() {
+            final List<RecursiveAction> tasks = new ArrayList<>();
+            final Set<Path> scanned = new HashSet<>(directories);
+
+            try {
+                for (Path dir : directories) {
+                    if (isScanned(dir, scanned)) {
+                        LOG.debug("DIR: {} scanned with its parent - skipping", dir);
+                        continue;
+                    }
+
+                    final Path remoteDir = dirRemote.toPath().resolve(dirLocal.toPath().relativize(dir));
+                    Files.createDirectories(remoteDir);
+                    tasks.add(new DirectoryTask(dir, remoteDir));
+                }
+
+            } catch (IOException ie) {
+                throw new WorkflowRuntimeException(ie);
+            }
+
+            for (Path file : files) {
+                if (isScanned(file, scanned)) {
+                    LOG.debug("FILE: {} scanned with its directory - skipping", file);
+                    continue;
+                }
+
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        try {
+                            backupPath(file);
+
+                        } catch (IOException ie) {
+                            throw new WorkflowRuntimeException(ie);
+                        }
+                    }
+                });
+            }
+
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Runs the work found while scanning a directory.
+     */
+    private interface Dispatcher {
+        /**
+         * Backup a sub-directory.
+         * @param localDir local directory
+         * @param remoteDir remote directory, exists
+         * @throws IOException error backing up
+         */
+        void directory(Path localDir, Path remoteDir) throws IOException;
+
+        /**
+         * Backup a file.
+         * @param task backs up the file
+         * @throws IOException error backing up
+         */
+        void file(TaskScope.Task task) throws IOException;
+    }
+
 }
@@ -0,0 +1,187 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import mgabelmann.photo.workflow.HashType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the checksum of a file in a user defined extended attribute (<code>user.mgabelmann.checksum</code> on
+ * Linux) so the checksum travels with the file. The value holds the checksum type, checksum, when it was last
+ * verified and the size and last modified time of the file when it was written:
+ *
+ * <pre>
+ * SHA256	e3b0c44298fc1c149afbf4c8996fb924...	2024-01-26T10:15:30Z	1048576	1706264130000
+ * </pre>
+ *
+ * A stored checksum is ignored once the file size or last modified time changes. File systems without extended
+ * attributes (eg: FAT, many network shares) are handled by reading nothing and writing nothing.
+ *
+ * @author Mike Gabelmann
+ */
+public final class ChecksumAttributes {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumAttributes.class);
+
+    /** Name of the attribute, the file system adds its own namespace (eg: user.). */
+    public static final String NAME = "mgabelmann.checksum";
+
+    /** Field separator in the value. */
+    private static final String SEPARATOR = "\t";
+
+
+    /** Do not instantiate this class. */
+    private ChecksumAttributes() {}
+
+    /**
+     * Store a checksum on a file. Must be called after the last modified time of the file is set.
+     * @param file file
+     * @param type checksum type
+     * @param checksum checksum in hex format
+     * @param verified when the checksum was calculated from the file content
+     * @return true if stored, false if the file system does not support extended attributes
+     * @throws IOException error reading file attributes
+     */
+    public static boolean write(final Path file, final HashType type, final String checksum, final Instant verified) throws IOException {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+
+        if (view == null) {
+            return false;
+        }
+
+        final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        final String value = type + SEPARATOR + checksum + SEPARATOR + verified + SEPARATOR + attrs.size() + SEPARATOR + attrs.lastModifiedTime().toMillis();
+
+        try {
+            view.write(NAME, StandardCharsets.UTF_8.encode(value));
+            return true;
+
+        } catch (UnsupportedOperationException | IOException e) {
+            LOGGER.debug("FILE: {} unable to store checksum attribute - {}", file, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Read the checksum stored on a file.
+     * @param file file
+     * @return stored checksum, null if there is none, it is invalid or the file changed since it was stored
+     * @throws IOException error reading file attributes
+     */
+    public static StoredChecksum read(final Path file) throws IOException {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+
+        if (view == null) {
+            return null;
+        }
+
+        final String value;
+
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(view.size(NAME));
+            view.read(NAME, buffer);
+            buffer.flip();
+            value = StandardCharsets.UTF_8.decode(buffer).toString();
+
+        } catch (UnsupportedOperationException | IOException e) {
+            //missing attribute or no support for them
+            return null;
+        }
+
+        final String[] values = value.split(SEPARATOR);
+
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+            if (values.length != 5 || Long.parseLong(values[3]) != attrs.size() || Long.parseLong(values[4]) != attrs.lastModifiedTime().toMillis()) {
+                LOGGER.debug("FILE: {} checksum attribute is out of date - ignoring", file);
+                return null;
+            }
+
+            return new StoredChecksum(HashType.valueOf(values[0]), values[1], Instant.parse(values[2]));
+
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            LOGGER.warn("FILE: {} invalid checksum attribute ({}) - ignoring", file, value);
+            return null;
+        }
+    }
+
+    /**
+     * Read the checksum stored on a file if it uses a given checksum type.
+     * @param file file
+     * @param type checksum type
+     * @return checksum in hex format, null if there is no valid checksum of that type
+     * @throws IOException error reading file attributes
+     */
+    public static String read(final Path file, final HashType type) throws IOException {
+        final StoredChecksum stored = read(file);
+
+        return stored != null && stored.getType() == type ? stored.getChecksum() : null;
+    }
+
+    /**
+     * Checksum read from a file.
+     */
+    public static final class StoredChecksum {
+        /** Checksum type. */
+        private final HashType type;
+
+        /** Checksum in hex format. */
+        private final String checksum;
+
+        /** When the checksum was last verified. */
+        private final Instant verified;
+
+        /**
+         * Constructor.
+         * @param type checksum type
+         * @param checksum checksum in hex format
+         * @param verified when the checksum was last verified
+         */
+        StoredChecksum(final HashType type, final String checksum, final Instant verified) {
+            this.type = type;
+            this.checksum = checksum;
+            this.verified = verified;
+        }
+
+        /**
+         * @return checksum type
+         */
+        public HashType getType() {
+            return type;
+        }
+
+        /**
+         * @return checksum in hex format
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return when the checksum was last verified
+         */
+        public Instant getVerified() {
+            return verified;
+        }
+
+        @Override
+        public String toString() {
+            return "StoredChecksum{" +
+                    "type=" + type +
+                    ", checksum='" + checksum + '\'' +
+                    ", verified=" + verified +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,456 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import mgabelmann.photo.workflow.HashType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers file checksums so unchanged files are not read again. An entry is only used while the file has the
+ * same file key (inode on most file systems), size and last modified time (in nanoseconds) it had when it was
+ * hashed, any change means the file is read and hashed again.
+ *
+ * Entries are appended to a log file as they are calculated, so nothing is lost if a run is stopped part way.
+ * The log holds superseded and evicted entries until it is compacted, which rewrites it with only the entries in
+ * memory. Memory is bounded by a maximum number of entries, the least recently used entries are evicted first and
+ * calculated again when needed. Entries are evicted in batches, so the cache may briefly hold a few more entries
+ * than the maximum while many threads add to it.
+ *
+ * Files modified very recently are hashed but not remembered, a file changed again within the resolution of its
+ * last modified time would otherwise look unchanged.
+ *
+ * The cache may be used by many threads at once and shared by any number of workflows. Looking up and adding
+ * entries does not lock, only appending to the log is done by one thread at a time.
+ *
+ * @author Mike Gabelmann
+ */
+public final class ChecksumCache implements Closeable {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumCache.class);
+
+    /** Default most entries kept in memory, roughly 300 bytes each. */
+    public static final int DEFAULT_MAX_ENTRIES = 4_000_000;
+
+    /** Files modified more recently than this are not remembered. */
+    static final Duration MODIFIED_WINDOW = Duration.ofSeconds(2);
+
+    /** Field separator in the log. */
+    private static final String SEPARATOR = "\t";
+
+    /** Value used when the file system has no file key. */
+    private static final String NO_FILE_KEY = "-";
+
+    /** Log file. */
+    private final transient File file;
+
+    /** Most entries kept in memory. */
+    private final transient int maxEntries;
+
+    /** Entries by checksum type and absolute path. */
+    private final transient Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Orders entries by use, the entry used last has the highest value. */
+    private final AtomicLong clock = new AtomicLong();
+
+    /** Guards the log writer and the number of entries in the log. */
+    private final ReentrantLock logLock = new ReentrantLock();
+
+    /** Held by the thread evicting entries. */
+    private final ReentrantLock evictLock = new ReentrantLock();
+
+    /** Appends to the log, null until the first entry is added. Guarded by logLock. */
+    private BufferedWriter writer;
+
+    /** Number of entries in the log file. Guarded by logLock. */
+    private long logSize;
+
+    /** Checksums found in the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Checksums calculated. */
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     * @param file log file, it does not need to exist
+     */
+    public ChecksumCache(final File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor.
+     * @param file log file, it does not need to exist
+     * @param maxEntries most entries kept in memory
+     */
+    public ChecksumCache(final File file, final int maxEntries) {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+
+        } else if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Load the log, replacing the current contents. Later entries for a file replace earlier ones, a missing log
+     * results in an empty cache. The log is compacted if most of it is no longer needed.
+     * @throws IOException error reading log
+     */
+    public void load() throws IOException {
+        logLock.lock();
+
+        try {
+            entries.clear();
+            logSize = 0;
+
+            if (! file.exists()) {
+                LOGGER.info("FILE: {} does not exist - starting with an empty checksum cache", file.getAbsolutePath());
+                return;
+            }
+
+            try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String data;
+
+                while ((data = br.readLine()) != null) {
+                    final String[] values = data.split(SEPARATOR, 6);
+                    logSize++;
+
+                    try {
+                        final HashType type = HashType.valueOf(values[0]);
+                        this.remember(toKey(type, values[5]), new Entry(values[3], Long.parseLong(values[1]), Long.parseLong(values[2]), values[4]));
+
+                    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                        LOGGER.warn("invalid checksum cache entry ({}). skipping", data);
+                    }
+                }
+            }
+
+            LOGGER.debug("FILE: {} loaded {} checksums", file.getAbsolutePath(), entries.size());
+
+            if (logSize > entries.size() * 2L) {
+                this.compact();
+            }
+
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Get the checksum of a file, calculating it only if the file changed since it was last hashed.
+     * @param f file
+     * @param type checksum type
+     * @return checksum in hex format
+     * @throws IOException error reading file or writing log
+     */
+    public String getChecksum(final File f, final HashType type) throws IOException {
+        final File absolute = f.getAbsoluteFile();
+        final String key = toKey(type, absolute.getPath());
+        final BasicFileAttributes attrs = Files.readAttributes(absolute.toPath(), BasicFileAttributes.class);
+        final Entry current = new Entry(attrs);
+        final Entry cached = entries.get(key);
+
+        if (cached != null && cached.matches(current)) {
+            cached.used = clock.incrementAndGet();
+            hits.incrementAndGet();
+            return cached.checksum;
+        }
+
+        misses.incrementAndGet();
+
+        final String checksum = FileRecordCodec.calculateChecksum(absolute, type);
+
+        //do not remember a file that changed while it was read or may change again unnoticed
+        final BasicFileAttributes after = Files.readAttributes(absolute.toPath(), BasicFileAttributes.class);
+        final long modified = after.lastModifiedTime().toMillis();
+
+        if (new Entry(after).matches(current) && System.currentTimeMillis() - modified > MODIFIED_WINDOW.toMillis()) {
+            this.put(key, type, absolute.getPath(), new Entry(current.fileKey, current.size, current.modified, checksum));
+        }
+
+        return checksum;
+    }
+
+    /**
+     * @return number of checksums found in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of checksums calculated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries in memory
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Rewrite the log with only the entries in memory, least recently used first. The log is written to a
+     * temporary file which replaces it once complete.
+     * @throws IOException error writing log
+     */
+    public void compact() throws IOException {
+        logLock.lock();
+
+        try {
+            this.closeWriter();
+
+            final Path target = file.toPath();
+            final Path tmp = target.resolveSibling(file.getName() + ".tmp");
+            final List<Map.Entry<String, Entry>> copy = this.byUse();
+
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : copy) {
+                    final int pos = entry.getKey().indexOf(SEPARATOR);
+                    write(bw, HashType.valueOf(entry.getKey().substring(0, pos)), entry.getKey().substring(pos + 1), entry.getValue());
+                }
+            }
+
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            LOGGER.info("FILE: {} compacted from {} to {} checksums", file.getAbsolutePath(), logSize, copy.size());
+
+            logSize = copy.size();
+
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Write pending entries to the log.
+     * @throws IOException error writing log
+     */
+    public void flush() throws IOException {
+        logLock.lock();
+
+        try {
+            if (writer != null) {
+                writer.flush();
+            }
+
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Write pending entries and compact the log if most of it is no longer needed.
+     * @throws IOException error writing log
+     */
+    @Override
+    public void close() throws IOException {
+        logLock.lock();
+
+        try {
+            this.closeWriter();
+
+            if (logSize > entries.size() * 2L) {
+                this.compact();
+            }
+
+        } finally {
+            logLock.unlock();
+        }
+
+        LOGGER.info("FILE: {} checksums - {} cached, {} calculated", file.getAbsolutePath(), hits.get(), misses.get());
+    }
+
+    /**
+     * Remember an entry and append it to the log, only the log is locked.
+     * @param key cache key
+     * @param type checksum type
+     * @param path absolute path
+     * @param entry entry
+     * @throws IOException error writing log
+     */
+    private void put(final String key, final HashType type, final String path, final Entry entry) throws IOException {
+        this.remember(key, entry);
+
+        logLock.lock();
+
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+
+            write(writer, type, path, entry);
+            logSize++;
+
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Remember an entry as the most recently used, evicting the least recently used entries once there are too many.
+     * @param key cache key
+     * @param entry entry
+     */
+    private void remember(final String key, final Entry entry) {
+        entry.used = clock.incrementAndGet();
+        entries.put(key, entry);
+
+        //one thread evicts at a time, the others carry on
+        if (entries.size() > maxEntries && evictLock.tryLock()) {
+            try {
+                final List<Map.Entry<String, Entry>> used = this.byUse();
+
+                //a tenth of the entries are evicted at once so the entries are not sorted for every new one
+                for (int i = 0; i < used.size() - (maxEntries - maxEntries / 10); i++) {
+                    entries.remove(used.get(i).getKey(), used.get(i).getValue());
+                }
+
+            } finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return entries, least recently used first
+     */
+    private List<Map.Entry<String, Entry>> byUse() {
+        final List<Map.Entry<String, Entry>> used = new ArrayList<>(entries.entrySet());
+        used.sort(Comparator.comparingLong(e -> e.getValue().used));
+
+        return used;
+    }
+
+    /**
+     * Close the log writer if it is open. Must hold the log lock.
+     * @throws IOException error writing log
+     */
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            try {
+                writer.close();
+
+            } finally {
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Write an entry, the path is last so it may contain any character except a line break.
+     * @param bw writer
+     * @param type checksum type
+     * @param path absolute path
+     * @param entry entry
+     * @throws IOException error writing
+     */
+    private static void write(final BufferedWriter bw, final HashType type, final String path, final Entry entry) throws IOException {
+        bw.write(type.toString());
+        bw.write(SEPARATOR);
+        bw.write(Long.toString(entry.size));
+        bw.write(SEPARATOR);
+        bw.write(Long.toString(entry.modified));
+        bw.write(SEPARATOR);
+        bw.write(entry.fileKey);
+        bw.write(SEPARATOR);
+        bw.write(entry.checksum);
+        bw.write(SEPARATOR);
+        bw.write(path);
+        bw.write('\n');
+    }
+
+    /**
+     * @param type checksum type
+     * @param path absolute path
+     * @return cache key
+     */
+    private static String toKey(final HashType type, final String path) {
+        return type + SEPARATOR + path;
+    }
+
+    /**
+     * What a file looked like when it was hashed.
+     */
+    private static final class Entry {
+        /** File key, NO_FILE_KEY if the file system has none. */
+        private final String fileKey;
+
+        /** Size in bytes. */
+        private final long size;
+
+        /** Last modified time in nanoseconds. */
+        private final long modified;
+
+        /** Checksum, null if not calculated. */
+        private final String checksum;
+
+        /** When the entry was last used, see clock. */
+        private volatile long used;
+
+        /**
+         * Constructor.
+         * @param attrs file attributes
+         */
+        Entry(final BasicFileAttributes attrs) {
+            this(attrs.fileKey() != null ? attrs.fileKey().toString() : NO_FILE_KEY, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), null);
+        }
+
+        /**
+         * Constructor.
+         * @param fileKey file key
+         * @param size size in bytes
+         * @param modified last modified time in nanoseconds
+         * @param checksum checksum
+         */
+        Entry(final String fileKey, final long size, final long modified, final String checksum) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @param other file as it is now
+         * @return true if the file is unchanged
+         */
+        boolean matches(final Entry other) {
+            return size == other.size && modified == other.modified && fileKey.equals(other.fileKey);
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package mgabelmann.photo.workflow.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
 
 import mgabelmann.photo.workflow.HashType;
 import mgabelmann.util.FileUtil;
@@ -9,16 +10,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * 
+ * Compares the checksum of a copied file with its source.
  * @author Mike Gabelmann
  */
-public final class ChecksumCompare implements Runnable {
+public final class ChecksumCompare implements Callable<Boolean> {
     /** Logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumCompare.class);
     
     private final transient File source;
     private final transient File dest;
     private final transient HashType type;
+
+    /** Checksum of the source calculated while copying, null if the source must be read again. */
+    private final transient String sourceChecksum;
     
     /** Are checksums equal? */
     private transient boolean equal = false;
@@ -34,19 +38,63 @@ public final class ChecksumCompare implements Runnable {
         final File dest, 
         final HashType type) {
         
+        this(source, dest, type, null);
+    }
+
+    /**
+     * Constructor.
+     * @param source source file
+     * @param dest destination file
+     * @param type checksum type
+     * @param sourceChecksum checksum of the source, only the destination is read if provided
+     */
+    public ChecksumCompare(
+        final File source,
+        final File dest,
+        final HashType type,
+        final String sourceChecksum) {
+
         this.source = source;
         this.dest = dest;
         this.type = type;
+        this.sourceChecksum = sourceChecksum;
     }
     
-    public void run() {
+    /**
+     * Compare the checksums.
+     * @return true if equal, false otherwise
+     * @throws IOException error calculating checksum
+     */
+    @Override
+    public Boolean call() throws IOException {
         try {
-            equal = FileUtil.verifyCopy(source, dest, type);
-            LOGGER.info("FILE: {} checksum - equal", source.getAbsolutePath() );
+            if (sourceChecksum == null) {
+                equal = FileUtil.verifyCopy(source, dest, type);
+
+            } else {
+                equal = FileRecordCodec.verifyFileChecksum(dest, type, sourceChecksum);
+            }
+
+            if (equal) {
+                LOGGER.info("FILE: {} checksum - equal", source.getAbsolutePath());
+
+            } else {
+                LOGGER.warn("FILE: {} checksum - different", source.getAbsolutePath());
+            }
             
         } catch (IOException e) {
             LOGGER.warn("FILE: {} checksum - failed", source.getAbsolutePath());
+            throw e;
         }
+
+        return equal;
+    }
+
+    /**
+     * @return true if the checksums were equal when last compared
+     */
+    public boolean isEqual() {
+        return equal;
     }
 
 }
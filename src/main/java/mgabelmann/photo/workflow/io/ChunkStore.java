@@ -0,0 +1,502 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.util.ByteConversion;
+import mgabelmann.util.ContentChunker;
+import mgabelmann.util.IoScheduler;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores versions of files as content-defined chunks. Each unique chunk is stored once, named by its checksum,
+ * so a file that changes a little between versions only adds the chunks around the change. Every version of a
+ * file is kept.
+ *
+ * The manifest records each version as a FileRecord followed by the comma separated checksums of its chunks in
+ * order. Versions are appended in the order they were stored, the last version of a path is the newest copy.
+ * Losing the manifest makes the chunks impossible to reassemble.
+ *
+ * <pre>
+ * dirRemote/chunk_manifest.txt
+ * dirRemote/chunks/abc/...abc
+ * </pre>
+ *
+ * @author Mike Gabelmann
+ */
+public final class ChunkStore extends AbstractWorkflow {
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkStore.class);
+
+    /** Name of the manifest in the remote directory. */
+    public static final String MANIFEST_FILENAME = "chunk_manifest.txt";
+
+    /** Name of the directory that stores chunks. */
+    public static final String CHUNK_DIRECTORY = "chunks";
+
+    /** Separates chunk checksums in the manifest. */
+    private static final String CHUNK_SEPARATOR = ",";
+
+    /** Number of characters from the end of a chunk checksum used as its directory name. */
+    private static final int DIR_CHECKSUM_LENGTH = 3;
+
+    /** Every version, in the order stored. */
+    private final transient List<Version> versions;
+
+    /** Newest version of each path. */
+    private final transient Map<String, Version> latest;
+
+    /** Chunks known to be stored. */
+    private final transient Set<String> chunks;
+
+    /** Directory that stores chunks. */
+    private final transient File dirChunks;
+
+    /** Splits files into chunks. */
+    private ContentChunker chunker = new ContentChunker();
+
+
+    /**
+     * Main method.
+     * @param args list of arguments
+     */
+    public static void main(final String[] args) {
+        final ChunkStore store = new ChunkStore(
+            new File("M:/Photos/Mike/03_raw/01_working/2010"),
+            new File("C:/Users/Mike/Desktop/tmp"),
+            HashType.SHA256,
+            false);
+
+        try {
+            store.process();
+
+        } catch (WorkflowException we) {
+            LOG.error(we.getMessage());
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param dirLocal local directory
+     * @param dirRemote remote directory
+     * @param type checksum type
+     * @param verify verify chunks after they are written
+     */
+    public ChunkStore(final File dirLocal, final File dirRemote, final HashType type, final boolean verify) {
+        super(dirLocal, dirRemote, type, verify);
+
+        this.versions = new ArrayList<>();
+        this.latest = new HashMap<>();
+        this.chunks = new HashSet<>();
+        this.dirChunks = new File(dirRemote, CHUNK_DIRECTORY);
+    }
+
+    /**
+     * @param chunker splits files into chunks, changing the chunk sizes of an existing store stops new versions
+     *                from sharing chunks with old ones
+     */
+    public void setChunker(final ContentChunker chunker) {
+        if (chunker == null) {
+            throw new IllegalArgumentException("chunker cannot be null");
+        }
+
+        this.chunker = chunker;
+    }
+
+    /**
+     * @param path relative path of a file, '/' separated
+     * @return every stored version of the file, oldest first
+     */
+    public List<FileRecord> getVersions(final String path) {
+        final List<FileRecord> records = new ArrayList<>();
+
+        for (Version version : versions) {
+            if (version.record.getPath().equals(path)) {
+                records.add(version.record);
+            }
+        }
+
+        return records;
+    }
+
+    /** {@inheritDoc} */
+    public void process() throws WorkflowException {
+        try {
+            this.readManifest();
+
+            try {
+                this.storeDirectory(dirLocal);
+
+            } finally {
+                //versions stored before a failure are still usable
+                this.writeManifest();
+            }
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("finished storing files");
+        }
+    }
+
+    /**
+     * Restore the newest version of each file to the local directory. Files that already have the same size and
+     * last modified date are skipped.
+     * @throws WorkflowException error restoring
+     */
+    public void restore() throws WorkflowException {
+        try {
+            this.readManifest();
+
+            for (Version version : latest.values()) {
+                this.restoreFile(version);
+            }
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("finished restoring files");
+        }
+    }
+
+    /**
+     * Verify every chunk referenced by the manifest exists and matches its checksum.
+     * @throws WorkflowException error reading chunks or a chunk failed
+     */
+    public void validate() throws WorkflowException {
+        int failed = 0;
+
+        try {
+            this.readManifest();
+
+            final Set<String> referenced = new LinkedHashSet<>();
+
+            for (Version version : versions) {
+                referenced.addAll(version.chunks);
+            }
+
+            for (String chunk : referenced) {
+                final File f = this.getChunkFile(chunk);
+
+                if (! f.isFile()) {
+                    LOG.warn("CHUNK: {} missing", chunk);
+                    failed++;
+
+                } else if (! FileRecordCodec.verifyFileChecksum(f, type, chunk)) {
+                    LOG.warn("CHUNK: {} checksum - failed", chunk);
+                    failed++;
+                }
+            }
+
+            LOG.info("validated {} chunks, {} failed", referenced.size(), failed);
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        if (failed > 0) {
+            throw new WorkflowException("validation failed for " + failed + " chunks");
+        }
+    }
+
+    /**
+     * Store the files of a directory and its sub-directories.
+     * @param dir directory to store
+     * @throws IOException error storing files
+     */
+    private void storeDirectory(final File dir) throws IOException {
+        final File[] files = dir.listFiles();
+
+        if (files == null || files.length == 0) {
+            LOG.debug("DIR: {} is empty - skipping", dir.getAbsolutePath());
+            return;
+        }
+
+        Arrays.sort(files);
+
+        for (File f : files) {
+            if (f.isDirectory()) {
+                this.storeDirectory(f);
+
+            } else {
+                this.storeFile(f);
+            }
+        }
+    }
+
+    /**
+     * Store a new version of a file if it changed since the newest version.
+     * @param file file to store
+     * @throws IOException error storing file
+     */
+    private void storeFile(final File file) throws IOException {
+        final String recordPath = ManifestIndex.toRecordPath(dirLocal.toPath().relativize(file.toPath()));
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        final LocalDateTime lastModified = Backup.toLocalDateTime(attributes.lastModifiedTime());
+        final Version previous = latest.get(recordPath);
+
+        if (previous != null && previous.record.getSize() == attributes.size() && previous.record.getDate().equals(lastModified)) {
+            LOG.debug("FILE: {} is identical - skipping", file.getAbsolutePath());
+            return;
+        }
+
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+        final List<String> fileChunks = new ArrayList<>();
+        final long[] stored = new long[1];
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(file.toPath(), dirChunks.toPath());
+             InputStream in = permit.throttle(file.toPath(), new FileInputStream(file))) {
+
+            chunker.split(in, (data, offset, length) -> {
+                digest.update(data, offset, length);
+
+                final MessageDigest chunkDigest = FileRecordCodec.getDigest(type);
+                chunkDigest.update(data, offset, length);
+
+                final String chunk = Hex.encodeHexString(chunkDigest.digest());
+
+                if (this.storeChunk(chunk, data, offset, length, permit)) {
+                    stored[0] += length;
+                }
+
+                fileChunks.add(chunk);
+            });
+        }
+
+        final String checksum = Hex.encodeHexString(digest.digest());
+        final Version version = new Version(new FileRecord(recordPath, checksum, attributes.size(), lastModified, type), fileChunks);
+
+        versions.add(version);
+        latest.put(recordPath, version);
+
+        LOG.info("FILE: {} {} - {} chunks, {} new",
+            file.getAbsolutePath(),
+            (previous != null ? "changed" : "new"),
+            fileChunks.size(),
+            ByteConversion.format(stored[0]));
+    }
+
+    /**
+     * Store a chunk unless it is already stored.
+     * @param chunk checksum of the chunk
+     * @param data buffer containing the chunk
+     * @param offset start of the chunk
+     * @param length length of the chunk
+     * @param permit I/O permit for the chunk directory
+     * @return true if the chunk was written
+     * @throws IOException error writing chunk
+     */
+    private boolean storeChunk(
+        final String chunk,
+        final byte[] data,
+        final int offset,
+        final int length,
+        final IoScheduler.Permit permit)
+        throws IOException {
+
+        if (chunks.contains(chunk)) {
+            return false;
+        }
+
+        final File f = this.getChunkFile(chunk);
+
+        if (f.isFile() && f.length() == length) {
+            chunks.add(chunk);
+            return false;
+        }
+
+        final Path dir = Files.createDirectories(f.getParentFile().toPath());
+        final Path tmp = dir.resolve("." + chunk + ".tmp");
+
+        permit.write(dirChunks.toPath(), length);
+
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            out.write(data, offset, length);
+        }
+
+        if (verify && ! FileRecordCodec.verifyFileChecksum(tmp.toFile(), type, chunk)) {
+            Files.deleteIfExists(tmp);
+            throw new IOException("chunk " + chunk + " failed verification");
+        }
+
+        try {
+            Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        chunks.add(chunk);
+
+        return true;
+    }
+
+    /**
+     * Reassemble a version into the local directory. The file is written to a temporary file which replaces the
+     * local file once its checksum has been verified.
+     * @param version version to restore
+     * @throws IOException error restoring file
+     */
+    private void restoreFile(final Version version) throws IOException {
+        final FileRecord record = version.record;
+        final File file = new File(dirLocal, record.getPath());
+
+        if (file.isFile() && file.length() == record.getSize() && Backup.toLocalDateTime(Files.getLastModifiedTime(file.toPath())).equals(record.getDate())) {
+            LOG.debug("FILE: {} is identical - skipping", file.getAbsolutePath());
+            return;
+        }
+
+        final Path dir = Files.createDirectories(file.getParentFile().toPath());
+        final Path tmp = dir.resolve("." + file.getName() + ".tmp");
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(dirChunks.toPath(), file.toPath());
+             OutputStream out = Files.newOutputStream(tmp)) {
+
+            for (String chunk : version.chunks) {
+                final byte[] data = Files.readAllBytes(this.getChunkFile(chunk).toPath());
+
+                permit.read(dirChunks.toPath(), data.length);
+                permit.write(file.toPath(), data.length);
+
+                digest.update(data);
+                out.write(data);
+            }
+        }
+
+        if (! Hex.encodeHexString(digest.digest()).equals(record.getSum())) {
+            Files.deleteIfExists(tmp);
+            throw new IOException("restored file " + record.getPath() + " does not match its checksum");
+        }
+
+        Files.setLastModifiedTime(tmp, FileTime.from(record.getDate().atZone(ZoneId.systemDefault()).toInstant()));
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        LOG.info("FILE: {} restored", file.getAbsolutePath());
+    }
+
+    /**
+     * @param chunk checksum of a chunk
+     * @return file storing the chunk
+     */
+    private File getChunkFile(final String chunk) {
+        return new File(new File(dirChunks, chunk.substring(chunk.length() - DIR_CHECKSUM_LENGTH)), chunk);
+    }
+
+    /**
+     * Read the manifest, replacing any versions already loaded. A missing manifest is an empty store.
+     * @throws IOException error reading manifest
+     */
+    private void readManifest() throws IOException {
+        versions.clear();
+        latest.clear();
+        chunks.clear();
+
+        final File manifest = new File(dirRemote, MANIFEST_FILENAME);
+
+        if (! manifest.exists()) {
+            return;
+        }
+
+        try (BufferedReader br = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String data;
+
+            while ((data = br.readLine()) != null) {
+                final int pos = data.lastIndexOf(FileRecordCodec.SEPARATOR);
+
+                try {
+                    if (pos == -1) {
+                        throw new ParseException(data, 0);
+                    }
+
+                    final FileRecord record = FileRecordCodec.readFileRecord(data.substring(0, pos));
+                    final String list = data.substring(pos + 1);
+                    final List<String> fileChunks = list.isEmpty() ? Collections.emptyList() : Arrays.asList(list.split(CHUNK_SEPARATOR));
+                    final Version version = new Version(record, fileChunks);
+
+                    versions.add(version);
+                    latest.put(record.getPath(), version);
+                    chunks.addAll(fileChunks);
+
+                } catch (ParseException pe) {
+                    LOG.warn("invalid version ({}). skipping", data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the manifest. It is written to a temporary file which replaces the manifest once complete.
+     * @throws IOException error writing manifest
+     */
+    private void writeManifest() throws IOException {
+        final Path target = new File(dirRemote, MANIFEST_FILENAME).toPath();
+        final Path tmp = target.resolveSibling(MANIFEST_FILENAME + ".tmp");
+
+        try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Version version : versions) {
+                bw.write(FileRecordCodec.formatFileRecord(version.record));
+                bw.write(FileRecordCodec.SEPARATOR);
+                bw.write(String.join(CHUNK_SEPARATOR, version.chunks));
+                bw.write('\n');
+            }
+        }
+
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A stored version of a file.
+     */
+    private static final class Version {
+        /** File described by the version. */
+        private final transient FileRecord record;
+
+        /** Checksums of the chunks making up the file, in order. */
+        private final transient List<String> chunks;
+
+        /**
+         * Constructor.
+         * @param record file record
+         * @param chunks chunk checksums
+         */
+        Version(final FileRecord record, final List<String> chunks) {
+            this.record = record;
+            this.chunks = chunks;
+        }
+    }
+
+}
@@ -1,6 +1,12 @@
 package mgabelmann.photo.workflow.io;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import mgabelmann.photo.workflow.DirectoryInfo;
 
@@ -14,6 +20,14 @@ import mgabelmann.photo.workflow.DirectoryInfo;
  * @author Mike Gabelmann
  */
 public final class DirectoryInfoCodec {
+    /** Default number of bytes read or written to measure throughput. */
+    public static final long DEFAULT_SAMPLE_SIZE = 16 * 1024 * 1024;
+
+    /** Name of the temporary file written to measure throughput. */
+    public static final String THROUGHPUT_FILENAME = ".throughput.tmp";
+
+    /** Buffer size used to measure throughput. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
 
     /** Do not instantiate this class. */
     private DirectoryInfoCodec() {}
@@ -55,4 +69,70 @@ public final class DirectoryInfoCodec {
         }
     }
     
+    /**
+     * Measure how fast a device reads by reading the start of a file. The result is optimistic if the file is
+     * already cached in memory.
+     * @param file file to read
+     * @param sampleSize most bytes to read
+     * @return bytes per second, 0 if nothing was read
+     * @throws IOException error reading file
+     */
+    public static long measureReadThroughput(final File file, final long sampleSize) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+
+        final long start = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int read;
+
+            while (total < sampleSize && (read = channel.read(buffer)) != -1) {
+                total += read;
+                buffer.clear();
+            }
+        }
+
+        return toThroughput(total, System.nanoTime() - start);
+    }
+
+    /**
+     * Measure how fast a device writes by writing a temporary file to a directory. The data is forced to the
+     * device before the time is taken so write caching does not hide the cost.
+     * @param dir directory to write to
+     * @param sampleSize bytes to write
+     * @return bytes per second
+     * @throws IOException error writing file
+     */
+    public static long measureWriteThroughput(final File dir, final long sampleSize) throws IOException {
+        final Path tmp = dir.toPath().resolve(THROUGHPUT_FILENAME);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+
+        final long start = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (total < sampleSize) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, sampleSize - total));
+                total += channel.write(buffer);
+            }
+
+            channel.force(true);
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        return toThroughput(total, System.nanoTime() - start);
+    }
+
+    /**
+     * @param bytes bytes transferred
+     * @param nanos time taken in nanoseconds
+     * @return bytes per second
+     */
+    private static long toThroughput(final long bytes, final long nanos) {
+        return bytes == 0 ? 0 : (long) (bytes * 1_000_000_000d / Math.max(1, nanos));
+    }
+
 }
@@ -1,17 +1,26 @@
 package mgabelmann.photo.workflow.io;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.time.LocalDateTime;
 import java.util.Collection;
 
 import mgabelmann.photo.workflow.HashType;
+import mgabelmann.util.IoScheduler;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
@@ -33,6 +42,12 @@ public final class FileRecordCodec {
     
     /** Parameter separator. */
     public static final String SEPARATOR = "\t";
+
+    /** Buffer size used when calculating a checksum. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Checksum used when a record was created without reading the file contents. */
+    public static final String UNKNOWN_CHECKSUM = "-";
     
 
     /** Do not instantiate this class. */
@@ -97,6 +112,63 @@ public final class FileRecordCodec {
         dos.close();
     }
     
+    /**
+     * Read a UTF-8 manifest file that contains FileRecord information.
+     * @param manifest location of the manifest file
+     * @param records collection to store contents of manifest file
+     * @throws IOException error reading file
+     */
+    public static void readManifest(
+        final File manifest,
+        final Collection<FileRecord> records)
+        throws IOException {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("opening file={}", manifest.getAbsolutePath());
+        }
+
+        try (BufferedReader br = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String data;
+
+            while ((data = br.readLine()) != null) {
+                try {
+                    records.add(readFileRecord(data));
+                } catch (ParseException pe) {
+                    LOGGER.warn(pe.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a collection of FileRecords to a UTF-8 manifest file. The records are written to a temporary file
+     * which replaces the manifest once complete, so an interrupted write never leaves a partial manifest.
+     * @param records collection to write
+     * @param manifest location of the manifest file
+     * @throws IOException error writing file
+     */
+    public static void writeManifest(
+        final Collection<FileRecord> records,
+        final File manifest)
+        throws IOException {
+
+        final Path target = manifest.toPath();
+        final Path tmp = target.resolveSibling(manifest.getName() + ".tmp");
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("creating file={}", manifest.getAbsolutePath());
+        }
+
+        try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (FileRecord record : records) {
+                bw.write(FileRecordCodec.formatFileRecord(record));
+                bw.write('\n');
+            }
+        }
+
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     /**
      * Verify that the given record has a valid checksum.
      * @param record record to verify
@@ -106,7 +178,18 @@ public final class FileRecordCodec {
     public static boolean verifyFileRecord(final FileRecord record) throws IOException {
         return FileRecordCodec.verifyFileChecksum(new File(record.getPath()), record.getType(), record.getSum());
     }
-    
+
+    /**
+     * Verify that the given record has a valid checksum, the record path is relative to a directory.
+     * @param directory directory the record path is relative to
+     * @param record record to verify
+     * @return true if checksums match, false otherwise
+     * @throws IOException error processing file
+     */
+    public static boolean verifyFileRecord(final File directory, final FileRecord record) throws IOException {
+        return FileRecordCodec.verifyFileChecksum(new File(directory, record.getPath()), record.getType(), record.getSum());
+    }
+
     /**
      * Verify that the given files checksum matches the actual files checksum.
      * @param file file to verify checksum
@@ -129,7 +212,8 @@ public final class FileRecordCodec {
      * @throws IllegalArgumentException invalid type
      */
     public static String calculateChecksum(final File f, final HashType type) throws IOException {
-        try (FileInputStream fis = new FileInputStream(f)) {
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(f.toPath());
+             InputStream fis = new BufferedInputStream(permit.throttle(f.toPath(), new FileInputStream(f)), BUFFER_SIZE)) {
             return switch (type) {
                 case MD5 -> DigestUtils.md5Hex(fis);
                 case SHA256 -> DigestUtils.sha256Hex(fis);
@@ -139,6 +223,20 @@ public final class FileRecordCodec {
         }
     }
     
+    /**
+     * Get a new digest for the given algorithm.
+     * @param type checksum type
+     * @return digest
+     */
+    public static MessageDigest getDigest(final HashType type) {
+        return switch (type) {
+            case MD5 -> DigestUtils.getMd5Digest();
+            case SHA256 -> DigestUtils.getSha256Digest();
+            case SHA384 -> DigestUtils.getSha384Digest();
+            case SHA512 -> DigestUtils.getSha512Digest();
+        };
+    }
+
     /**
      * Calculate a hex checksum for the given string and algorithm.
      * @param s value to calculate
@@ -160,7 +258,7 @@ public final class FileRecordCodec {
      * @return parsed record
      * @throws ParseException error parsing record
      */
-    private static FileRecord readFileRecord(final String data) throws ParseException {
+    static FileRecord readFileRecord(final String data) throws ParseException {
         final String[] fields = data.split(SEPARATOR);
         
         if (fields.length != 5) {
@@ -183,6 +281,22 @@ public final class FileRecordCodec {
      * @throws IOException error writing record to stream
      */
     private static void writeFileRecord(final DataOutputStream dos, final FileRecord record) throws IOException {
+        final String s = FileRecordCodec.formatFileRecord(record);
+
+        dos.writeBytes(s);
+        dos.writeBytes("\n");
+        
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(s);
+        }
+    }
+
+    /**
+     * Format a FileRecord as a string record.
+     * @param record record to format
+     * @return string record, without a line terminator
+     */
+    static String formatFileRecord(final FileRecord record) {
         final StringBuilder sb = new StringBuilder();
 
         sb.append(record.getPath());
@@ -194,13 +308,8 @@ public final class FileRecordCodec {
         sb.append(record.getType().toString());
         sb.append(SEPARATOR);
         sb.append(record.getSum());
-        sb.append('\n');
-        
-        dos.writeBytes(sb.toString());
-        
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug(sb.toString());
-        }
+
+        return sb.toString();
     }
       
 }
@@ -0,0 +1,287 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mgabelmann.photo.workflow.HashType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of a manifest stored alongside a backup. Records are keyed by their path relative to the
+ * backup root using '/' as the separator, so the same manifest is valid on any platform. The index can be
+ * read and updated by many threads at once.
+ *
+ * Records with a known checksum are also indexed by their content (size, checksum type and checksum) so a
+ * file can be found at its old path after it was renamed or moved.
+ *
+ * @author Mike Gabelmann
+ */
+public final class ManifestIndex {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ManifestIndex.class);
+
+    /** Path separator used by record paths. */
+    public static final char SEPARATOR = '/';
+
+    /** Location of the manifest file. */
+    private final transient File manifest;
+
+    /** Records keyed by relative path. */
+    private final transient Map<String, FileRecord> records;
+
+    /** Relative paths of all directories that contain a record. */
+    private final transient Set<String> directories;
+
+    /** Relative paths of the records with the same content, entries may be out of date and are checked when found. */
+    private final transient Map<String, Set<String>> content;
+
+    /** Number of records with a known checksum by size. */
+    private final transient Map<Long, Integer> sizes;
+
+
+    /**
+     * Constructor.
+     * @param manifest location of the manifest file, it does not need to exist
+     */
+    public ManifestIndex(final File manifest) {
+        if (manifest == null) {
+            throw new IllegalArgumentException("manifest cannot be null");
+        }
+
+        this.manifest = manifest;
+        this.records = new ConcurrentHashMap<>();
+        this.directories = ConcurrentHashMap.newKeySet();
+        this.content = new ConcurrentHashMap<>();
+        this.sizes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Load the manifest from disk, replacing the current contents. A missing manifest results in an empty index.
+     * @throws IOException error reading manifest
+     */
+    public void load() throws IOException {
+        records.clear();
+        directories.clear();
+        content.clear();
+        sizes.clear();
+
+        if (! manifest.exists()) {
+            LOGGER.info("FILE: {} does not exist - starting with an empty manifest", manifest.getAbsolutePath());
+            return;
+        }
+
+        final List<FileRecord> loaded = new ArrayList<>();
+        FileRecordCodec.readManifest(manifest, loaded);
+
+        for (FileRecord record : loaded) {
+            this.put(record);
+        }
+
+        LOGGER.debug("FILE: {} loaded {} records", manifest.getAbsolutePath(), records.size());
+    }
+
+    /**
+     * Write the manifest to disk, records are ordered by path.
+     * @throws IOException error writing manifest
+     */
+    public void save() throws IOException {
+        FileRecordCodec.writeManifest(new TreeSet<>(records.values()), manifest);
+    }
+
+    /**
+     * @param path relative path
+     * @return record or null if the path is not in the manifest
+     */
+    public FileRecord get(final String path) {
+        return records.get(path);
+    }
+
+    /**
+     * Add or replace a record.
+     * @param record record to store
+     */
+    public void put(final FileRecord record) {
+        final FileRecord previous = records.put(record.getPath(), record);
+
+        int pos = record.getPath().lastIndexOf(SEPARATOR);
+
+        while (pos > 0 && directories.add(record.getPath().substring(0, pos))) {
+            pos = record.getPath().lastIndexOf(SEPARATOR, pos - 1);
+        }
+
+        if (previous != null) {
+            this.unindex(previous);
+        }
+
+        if (! FileRecordCodec.UNKNOWN_CHECKSUM.equals(record.getSum())) {
+            content.compute(toContentKey(record.getSize(), record.getType(), record.getSum()), (key, paths) -> {
+                final Set<String> p = paths != null ? paths : ConcurrentHashMap.newKeySet();
+                p.add(record.getPath());
+                return p;
+            });
+
+            sizes.merge(record.getSize(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * @param path relative path
+     * @return removed record or null if the path is not in the manifest
+     */
+    public FileRecord remove(final String path) {
+        final FileRecord record = records.remove(path);
+
+        if (record != null) {
+            this.unindex(record);
+        }
+
+        return record;
+    }
+
+    /**
+     * Remove a directory and every record beneath it.
+     * @param path relative path of a directory
+     * @return number of records removed
+     */
+    public int removeDirectory(final String path) {
+        final String prefix = path + SEPARATOR;
+        int removed = 0;
+
+        for (String p : records.keySet()) {
+            if (p.startsWith(prefix) && this.remove(p) != null) {
+                removed++;
+            }
+        }
+
+        directories.removeIf(p -> p.equals(path) || p.startsWith(prefix));
+
+        return removed;
+    }
+
+    /**
+     * Remove a record only if it is still the current record for its path. Used to claim a record when more than
+     * one thread may want it.
+     * @param record record to remove
+     * @return true if removed
+     */
+    public boolean remove(final FileRecord record) {
+        if (! records.remove(record.getPath(), record)) {
+            return false;
+        }
+
+        this.unindex(record);
+
+        return true;
+    }
+
+    /**
+     * Cheap check before calculating a checksum to look for a file by content. May return true for a size that
+     * no longer has a record when records of the same path are replaced at the same time.
+     * @param size file size
+     * @return true if a record with the size may exist
+     */
+    public boolean containsSize(final long size) {
+        return sizes.containsKey(size);
+    }
+
+    /**
+     * Find the records with the same content, several files may have identical contents.
+     * @param size file size
+     * @param type checksum type
+     * @param checksum checksum
+     * @return records with the content ordered by path, empty if none exists
+     */
+    public List<FileRecord> findContent(final long size, final HashType type, final String checksum) {
+        final Set<String> paths = content.get(toContentKey(size, type, checksum));
+        final List<FileRecord> found = new ArrayList<>();
+
+        if (paths == null) {
+            return found;
+        }
+
+        for (String path : new TreeSet<>(paths)) {
+            final FileRecord record = records.get(path);
+
+            if (record != null && record.getSize() == size && record.getType() == type && record.getSum().equals(checksum)) {
+                found.add(record);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Remove a record that is no longer in the manifest from the content and size indexes.
+     * @param record record removed or replaced
+     */
+    private void unindex(final FileRecord record) {
+        if (FileRecordCodec.UNKNOWN_CHECKSUM.equals(record.getSum())) {
+            return;
+        }
+
+        content.computeIfPresent(toContentKey(record.getSize(), record.getType(), record.getSum()), (key, paths) -> {
+            paths.remove(record.getPath());
+            return paths.isEmpty() ? null : paths;
+        });
+
+        sizes.computeIfPresent(record.getSize(), (size, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * @param path relative path of a directory
+     * @return true if the directory contains at least one record
+     */
+    public boolean containsDirectory(final String path) {
+        return directories.contains(path);
+    }
+
+    /**
+     * @return all records, unordered
+     */
+    public Collection<FileRecord> getRecords() {
+        return records.values();
+    }
+
+    /**
+     * @return number of records
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return location of the manifest file
+     */
+    public File getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @param size file size
+     * @param type checksum type
+     * @param checksum checksum
+     * @return key of the content index
+     */
+    private static String toContentKey(final long size, final HashType type, final String checksum) {
+        return size + FileRecordCodec.SEPARATOR + type + FileRecordCodec.SEPARATOR + checksum;
+    }
+
+    /**
+     * Convert a path relative to a backup root into the form used by record paths.
+     * @param relative relative path
+     * @return record path
+     */
+    public static String toRecordPath(final Path relative) {
+        return relative.toString().replace(File.separatorChar, SEPARATOR);
+    }
+
+}
@@ -0,0 +1,502 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append only journal of the files a run has started, copied and verified, kept next to the manifest so an
+ * interrupted run can be resumed. Entries are written in batches and forced to disk once a batch is full or the
+ * sync interval has passed, whichever is first, so a crash loses at most one batch. The journal is deleted once the
+ * manifest has been saved, a journal found when a run starts means the previous run did not complete.
+ *
+ * <pre>
+ * STARTED	2024/img_0001.cr2	2024/img_0001.cr2
+ * COPIED	2024/img_0001.cr2	2024-01-26T10:15:30	25165824	SHA256	e3b0c442...
+ * VERIFIED	2024/img_0001.cr2
+ * </pre>
+ *
+ * A torn entry at the end of the journal, from a crash while it was written, is ignored and removed before more
+ * entries are appended.
+ *
+ * @author Mike Gabelmann
+ */
+public final class RunJournal implements Closeable {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RunJournal.class);
+
+    /** Suffix added to the manifest name. */
+    public static final String SUFFIX = ".journal";
+
+    /** Default number of entries forced to disk at once. */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /** Default longest time an entry waits to be forced to disk. */
+    public static final Duration DEFAULT_SYNC_INTERVAL = Duration.ofSeconds(5);
+
+    /** Field separator. */
+    private static final String SEPARATOR = "\t";
+
+    /** State of a file in the journal. */
+    public enum State {
+        /** Copy started, the target may be partially written. */
+        STARTED,
+
+        /** Copied, the entry has the record of the file. */
+        COPIED,
+
+        /** Copied and verified. */
+        VERIFIED,
+
+        /** Verification failed, the target cannot be trusted. */
+        FAILED
+    }
+
+    /** Journal file. */
+    private final transient File file;
+
+    /** Number of entries forced to disk at once. */
+    private final transient int batchSize;
+
+    /** Longest time an entry waits to be forced to disk. */
+    private final transient Duration syncInterval;
+
+    /** Guards the channel and pending entries. */
+    private final Object lock = new Object();
+
+    /** Entries not yet written. */
+    private final StringBuilder pending = new StringBuilder();
+
+    /** Number of entries not yet written. */
+    private int pendingCount = 0;
+
+    /** Open journal, null when closed. */
+    private FileChannel channel;
+
+    /** Forces entries to disk once the sync interval has passed. */
+    private ScheduledExecutorService syncer;
+
+    /** Flushed before entries are written, null for none. */
+    private volatile Flushable barrier;
+
+
+    /**
+     * Constructor, default batch size and sync interval.
+     * @param file journal file
+     */
+    public RunJournal(final File file) {
+        this(file, DEFAULT_BATCH_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     * @param file journal file
+     * @param batchSize number of entries forced to disk at once, 1 to force every entry
+     * @param syncInterval longest time an entry waits to be forced to disk
+     */
+    public RunJournal(final File file, final int batchSize, final Duration syncInterval) {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+
+        } else if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+
+        } else if (syncInterval == null || syncInterval.isNegative() || syncInterval.isZero()) {
+            throw new IllegalArgumentException("syncInterval must be positive");
+        }
+
+        this.file = file;
+        this.batchSize = batchSize;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @return journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if the journal exists, the run that wrote it did not complete
+     */
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @param barrier flushed before entries are written, so an entry never reaches the disk before the files it
+     *                records (eg: a durability tracker), null for none
+     */
+    public void setBarrier(final Flushable barrier) {
+        this.barrier = barrier;
+    }
+
+    /**
+     * Read the journal left by an interrupted run.
+     * @return last entry of each file by path, in the order the files were started, empty if there is no journal
+     * @throws IOException error reading journal
+     */
+    public Map<String, Entry> recover() throws IOException {
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        if (! file.exists()) {
+            return entries;
+        }
+
+        final boolean terminated = isTerminated(file);
+
+        try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String data = br.readLine();
+
+            for (String next; data != null; data = next) {
+                next = br.readLine();
+
+                if (next == null && ! terminated) {
+                    LOGGER.warn("FILE: {} ignoring torn entry ({})", file.getAbsolutePath(), data);
+                    break;
+                }
+
+                final String[] values = data.split(SEPARATOR, 2);
+
+                try {
+                    final State state = State.valueOf(values[0]);
+
+                    switch (state) {
+                    case STARTED:
+                        final String[] paths = values[1].split(SEPARATOR);
+                        entries.put(paths[0], new Entry(State.STARTED, paths[1], null));
+                        break;
+
+                    case COPIED:
+                        final FileRecord record = FileRecordCodec.readFileRecord(values[1]);
+                        final Entry started = entries.get(record.getPath());
+                        entries.put(record.getPath(), new Entry(State.COPIED, started != null ? started.target : record.getPath(), record));
+                        break;
+
+                    case VERIFIED:
+                    case FAILED:
+                    default:
+                        //only a copied file is verified
+                        final Entry copied = entries.get(values[1]);
+
+                        if (copied != null && copied.record != null) {
+                            entries.put(values[1], new Entry(state, copied.target, copied.record));
+                        }
+                    }
+
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | ParseException | DateTimeParseException e) {
+                    LOGGER.warn("invalid journal entry ({}). skipping", data);
+                }
+            }
+        }
+
+        LOGGER.info("FILE: {} recovered {} entries from an interrupted run", file.getAbsolutePath(), entries.size());
+
+        return entries;
+    }
+
+    /**
+     * Open the journal, entries are appended to an existing journal.
+     * @throws IOException error opening journal
+     */
+    public void open() throws IOException {
+        synchronized (lock) {
+            if (channel != null) {
+                return;
+            }
+
+            if (! isTerminated(file)) {
+                truncateTorn(file);
+            }
+
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            syncer = Executors.newSingleThreadScheduledExecutor();
+
+            final long millis = syncInterval.toMillis();
+            syncer.scheduleWithFixedDelay(this::syncQuietly, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param path path of the file
+     * @param target path the file is written to, relative to the journal directory
+     * @throws IOException error writing journal
+     */
+    public void started(final String path, final String target) throws IOException {
+        this.append(State.STARTED + SEPARATOR + path + SEPARATOR + target);
+    }
+
+    /**
+     * @param record record of the file copied
+     * @throws IOException error writing journal
+     */
+    public void copied(final FileRecord record) throws IOException {
+        this.append(State.COPIED + SEPARATOR + FileRecordCodec.formatFileRecord(record));
+    }
+
+    /**
+     * @param path path of the file verified
+     * @param passed true if the copy matched
+     * @throws IOException error writing journal
+     */
+    public void verified(final String path, final boolean passed) throws IOException {
+        this.append((passed ? State.VERIFIED : State.FAILED) + SEPARATOR + path);
+    }
+
+    /**
+     * Write pending entries and force them to disk.
+     * @throws IOException error writing journal
+     */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            if (channel == null || pendingCount == 0) {
+                return;
+            }
+
+            if (barrier != null) {
+                barrier.flush();
+            }
+
+            final ByteBuffer buffer = StandardCharsets.UTF_8.encode(pending.toString());
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            channel.force(false);
+            pending.setLength(0);
+            pendingCount = 0;
+        }
+    }
+
+    /**
+     * Force pending entries to disk and close the journal, it is kept for the next run.
+     * @throws IOException error writing journal
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (channel == null) {
+                return;
+            }
+
+            syncer.shutdownNow();
+
+            try {
+                this.sync();
+
+            } finally {
+                channel.close();
+                channel = null;
+                syncer = null;
+            }
+        }
+    }
+
+    /**
+     * Replace the journal with only the copies that still have to be verified. The new journal is written next to
+     * it and renamed over it, so the entries are never lost.
+     * @param copied records of the copies that still have to be verified
+     * @throws IOException error writing journal
+     */
+    public void rewrite(final Collection<FileRecord> copied) throws IOException {
+        synchronized (lock) {
+            this.close();
+
+            final Path tmp = file.toPath().resolveSibling(file.getName() + ".tmp");
+            final StringBuilder entries = new StringBuilder();
+
+            for (FileRecord record : copied) {
+                entries.append(State.COPIED).append(SEPARATOR).append(FileRecordCodec.formatFileRecord(record)).append('\n');
+            }
+
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = StandardCharsets.UTF_8.encode(entries.toString());
+
+                while (buffer.hasRemaining()) {
+                    fc.write(buffer);
+                }
+
+                fc.force(false);
+            }
+
+            try {
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Close and delete the journal once the run is complete.
+     * @throws IOException error deleting journal
+     */
+    public void delete() throws IOException {
+        synchronized (lock) {
+            this.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Append an entry, forcing the batch to disk once it is full.
+     * @param entry entry without a line terminator
+     * @throws IOException error writing journal
+     */
+    private void append(final String entry) throws IOException {
+        synchronized (lock) {
+            if (channel == null) {
+                throw new IOException("journal is not open - " + file.getAbsolutePath());
+            }
+
+            pending.append(entry).append('\n');
+            pendingCount++;
+
+            if (pendingCount >= batchSize) {
+                this.sync();
+            }
+        }
+    }
+
+    /**
+     * Force pending entries to disk from the sync thread, a failure is reported by the next append or close.
+     */
+    private void syncQuietly() {
+        try {
+            this.sync();
+
+        } catch (IOException ioe) {
+            LOGGER.warn("FILE: {} unable to sync journal - {}", file.getAbsolutePath(), ioe.toString());
+        }
+    }
+
+    /**
+     * @param file journal file
+     * @return true if the file is empty, does not exist or ends with a complete entry
+     * @throws IOException error reading journal
+     */
+    private static boolean isTerminated(final File file) throws IOException {
+        if (! file.exists() || file.length() == 0) {
+            return true;
+        }
+
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            fc.read(last, fc.size() - 1);
+
+            return last.get(0) == '\n';
+        }
+    }
+
+    /**
+     * Remove a torn entry from the end of the journal, ending it instead could turn it into a valid looking entry.
+     * @param file journal file
+     * @throws IOException error writing journal
+     */
+    private static void truncateTorn(final File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long end = fc.size();
+
+            while (end > 0) {
+                final long start = Math.max(0, end - buffer.capacity());
+
+                buffer.clear().limit((int) (end - start));
+                fc.read(buffer, start);
+
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        fc.truncate(start + i + 1);
+                        return;
+                    }
+                }
+
+                end = start;
+            }
+
+            fc.truncate(0);
+        }
+    }
+
+    /**
+     * Last entry of a file.
+     */
+    public static final class Entry {
+        /** State of the file. */
+        private final State state;
+
+        /** Path the file is written to. */
+        private final String target;
+
+        /** Record of the file, null until it has been copied. */
+        private final FileRecord record;
+
+        /**
+         * Constructor.
+         * @param state state of the file
+         * @param target path the file is written to
+         * @param record record of the file, may be null
+         */
+        Entry(final State state, final String target, final FileRecord record) {
+            this.state = state;
+            this.target = target;
+            this.record = record;
+        }
+
+        /**
+         * @return state of the file
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return path the file is written to, relative to the journal directory
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return record of the file, null if it was not copied
+         */
+        public FileRecord getRecord() {
+            return record;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "state=" + state +
+                    ", target='" + target + '\'' +
+                    ", record=" + record +
+                    '}';
+        }
+    }
+
+}
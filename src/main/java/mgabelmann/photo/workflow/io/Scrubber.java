@@ -0,0 +1,410 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import mgabelmann.util.ByteConversion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies a portion of a manifest each run so bit rot is found without reading every file every time. Each run
+ * has a time and/or byte budget and verifies the records that were verified least recently first, records that
+ * were never verified come first. When each record was last verified is kept in a state file, so repeated runs
+ * rotate through every record.
+ *
+ * Record paths are resolved against a directory, so the relative paths of a backup manifest can be scrubbed.
+ *
+ * @author Mike Gabelmann
+ */
+public final class Scrubber {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Scrubber.class);
+
+    /** Field separator in the state file. */
+    private static final String SEPARATOR = "\t";
+
+    /** Directory that record paths are relative to. */
+    private final transient File directory;
+
+    /** State file, when each record was last verified. */
+    private final transient File state;
+
+    /** Number of files verified at once. */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Most time a run may take, null for no limit. */
+    private Duration timeBudget;
+
+    /** Most bytes a run may read, 0 for no limit. */
+    private long byteBudget = 0;
+
+
+    /**
+     * Constructor.
+     * @param directory directory that record paths are relative to
+     * @param state state file, it does not need to exist
+     */
+    public Scrubber(final File directory, final File state) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+
+        } else if (state == null) {
+            throw new IllegalArgumentException("state cannot be null");
+        }
+
+        this.directory = directory;
+        this.state = state;
+    }
+
+    /**
+     * @param threads number of files verified at once
+     */
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * @param timeBudget most time a run may take, files being verified when it runs out are completed, null for
+     *                   no limit
+     */
+    public void setTimeBudget(final Duration timeBudget) {
+        if (timeBudget != null && timeBudget.isNegative()) {
+            throw new IllegalArgumentException("timeBudget cannot be negative");
+        }
+
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * @param byteBudget most bytes a run may read, 0 for no limit
+     */
+    public void setByteBudget(final long byteBudget) {
+        if (byteBudget < 0) {
+            throw new IllegalArgumentException("byteBudget cannot be negative");
+        }
+
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Verify the least recently verified records within the budget.
+     * @param records records to choose from, records without a checksum are ignored
+     * @return report of this run
+     * @throws IOException error reading or writing the state file
+     * @throws InterruptedException interrupted while verifying
+     */
+    public Report scrub(final Collection<FileRecord> records) throws IOException, InterruptedException {
+        final Map<String, Instant> verified = new ConcurrentHashMap<>(this.readState());
+        final List<FileRecord> candidates = new ArrayList<>();
+
+        for (FileRecord record : records) {
+            if (! FileRecordCodec.UNKNOWN_CHECKSUM.equals(record.getSum())) {
+                candidates.add(record);
+            }
+        }
+
+        candidates.sort(Comparator
+            .comparing((FileRecord r) -> verified.getOrDefault(r.getPath(), Instant.MIN))
+            .thenComparing(FileRecord::getPath));
+
+        final Report report = new Report();
+        final Instant deadline = timeBudget != null ? Instant.now().plus(timeBudget) : null;
+        final ExecutorService service = Executors.newFixedThreadPool(threads);
+        final Semaphore running = new Semaphore(threads);
+        long planned = 0;
+
+        try {
+            for (FileRecord record : candidates) {
+                if (byteBudget > 0 && planned > 0 && planned + record.getSize() > byteBudget) {
+                    break;
+                }
+
+                running.acquire();
+
+                if (deadline != null && Instant.now().isAfter(deadline)) {
+                    running.release();
+                    break;
+                }
+
+                planned += record.getSize();
+
+                service.execute(() -> {
+                    try {
+                        this.verify(record, report);
+                        verified.put(record.getPath(), Instant.now());
+
+                    } finally {
+                        running.release();
+                    }
+                });
+            }
+
+            service.shutdown();
+
+            while (! service.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.debug("waiting for scrub to complete");
+            }
+
+        } finally {
+            service.shutdownNow();
+
+            //keep the progress made even if interrupted
+            verified.keySet().retainAll(this.getPaths(candidates));
+            this.writeState(verified);
+        }
+
+        report.setCoverage(candidates.size(), verified);
+
+        LOGGER.info("scrub - {}", report);
+
+        return report;
+    }
+
+    /**
+     * Verify a single record.
+     * @param record record
+     * @param report report to add the result to
+     */
+    private void verify(final FileRecord record, final Report report) {
+        try {
+            if (FileRecordCodec.verifyFileRecord(directory, record)) {
+                LOGGER.debug("FILE: {} checksum - passed", record.getPath());
+                report.addPassed(record.getSize());
+
+            } else {
+                LOGGER.warn("FILE: {} checksum - failed", record.getPath());
+                report.addFailed(record.getPath(), record.getSize());
+            }
+
+        } catch (FileNotFoundException fnfe) {
+            LOGGER.warn("FILE: {} missing", record.getPath());
+            report.addMissing(record.getPath());
+
+        } catch (IOException ioe) {
+            LOGGER.warn("FILE: {} unable to verify - {}", record.getPath(), ioe.getMessage());
+            report.addMissing(record.getPath());
+        }
+    }
+
+    /**
+     * @param records records
+     * @return paths of the records
+     */
+    private List<String> getPaths(final Collection<FileRecord> records) {
+        final List<String> paths = new ArrayList<>(records.size());
+
+        for (FileRecord record : records) {
+            paths.add(record.getPath());
+        }
+
+        return paths;
+    }
+
+    /**
+     * Read when each record was last verified. A missing state file means nothing was verified.
+     * @return time last verified by path
+     * @throws IOException error reading state file
+     */
+    private Map<String, Instant> readState() throws IOException {
+        final Map<String, Instant> verified = new TreeMap<>();
+
+        if (! state.exists()) {
+            return verified;
+        }
+
+        try (BufferedReader br = Files.newBufferedReader(state.toPath(), StandardCharsets.UTF_8)) {
+            String data;
+
+            while ((data = br.readLine()) != null) {
+                final int pos = data.lastIndexOf(SEPARATOR);
+
+                try {
+                    verified.put(data.substring(0, pos), Instant.parse(data.substring(pos + 1)));
+
+                } catch (IndexOutOfBoundsException | DateTimeParseException e) {
+                    LOGGER.warn("invalid state ({}). skipping", data);
+                }
+            }
+        }
+
+        return verified;
+    }
+
+    /**
+     * Write when each record was last verified. It is written to a temporary file which replaces the state file
+     * once complete.
+     * @param verified time last verified by path
+     * @throws IOException error writing state file
+     */
+    private void writeState(final Map<String, Instant> verified) throws IOException {
+        final Path target = state.toPath();
+        final Path tmp = target.resolveSibling(state.getName() + ".tmp");
+
+        try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Instant> entry : new TreeMap<>(verified).entrySet()) {
+                bw.write(entry.getKey());
+                bw.write(SEPARATOR);
+                bw.write(entry.getValue().toString());
+                bw.write('\n');
+            }
+        }
+
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Result of a scrub run along with how much of the manifest has been covered over all runs.
+     */
+    public static final class Report {
+        /** Number of files that passed this run. */
+        private long passed;
+
+        /** Bytes read this run. */
+        private long bytes;
+
+        /** Files that failed this run. */
+        private final List<String> failed = new ArrayList<>();
+
+        /** Files that could not be read this run. */
+        private final List<String> missing = new ArrayList<>();
+
+        /** Number of records that can be scrubbed. */
+        private long total;
+
+        /** Number of records verified by any run. */
+        private long covered;
+
+        /** Oldest verification of a covered record, null if none. */
+        private Instant oldest;
+
+        /**
+         * @param size bytes read
+         */
+        synchronized void addPassed(final long size) {
+            passed++;
+            bytes += size;
+        }
+
+        /**
+         * @param path record path
+         * @param size bytes read
+         */
+        synchronized void addFailed(final String path, final long size) {
+            failed.add(path);
+            bytes += size;
+        }
+
+        /**
+         * @param path record path
+         */
+        synchronized void addMissing(final String path) {
+            missing.add(path);
+        }
+
+        /**
+         * @param candidates number of records that can be scrubbed
+         * @param verified time last verified by path, only includes those records
+         */
+        synchronized void setCoverage(final long candidates, final Map<String, Instant> verified) {
+            this.total = candidates;
+            this.covered = verified.size();
+            this.oldest = verified.values().stream().min(Comparator.naturalOrder()).orElse(null);
+        }
+
+        /**
+         * @return number of files verified this run
+         */
+        public synchronized long getVerified() {
+            return passed + failed.size() + missing.size();
+        }
+
+        /**
+         * @return number of files that passed this run
+         */
+        public synchronized long getPassed() {
+            return passed;
+        }
+
+        /**
+         * @return bytes read this run
+         */
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return files that failed this run
+         */
+        public synchronized List<String> getFailed() {
+            return Collections.unmodifiableList(new ArrayList<>(failed));
+        }
+
+        /**
+         * @return files that could not be read this run
+         */
+        public synchronized List<String> getMissing() {
+            return Collections.unmodifiableList(new ArrayList<>(missing));
+        }
+
+        /**
+         * @return fraction of records verified at least once, 1 if there are none
+         */
+        public synchronized double getCoverage() {
+            return total == 0 ? 1 : (double) covered / total;
+        }
+
+        /**
+         * @return oldest verification of a covered record, null if nothing was verified
+         */
+        public synchronized Instant getOldestVerified() {
+            return oldest;
+        }
+
+        /**
+         * @return true if no file failed or was missing this run
+         */
+        public synchronized boolean isSuccessful() {
+            return failed.isEmpty() && missing.isEmpty();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Report{" +
+                    "verified=" + this.getVerified() +
+                    ", bytes=" + ByteConversion.format(bytes) +
+                    ", failed=" + failed.size() +
+                    ", missing=" + missing.size() +
+                    ", coverage=" + covered + "/" + total +
+                    ", oldestVerified=" + oldest +
+                    '}';
+        }
+    }
+
+}
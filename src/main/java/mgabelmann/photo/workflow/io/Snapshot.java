@@ -0,0 +1,492 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.util.ByteConversion;
+import mgabelmann.util.FileUtil;
+import mgabelmann.util.TaskScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a point-in-time copy of the local directory for every run. Each run creates a new snapshot directory named
+ * for the time it started, files that are unchanged since the previous snapshot are hard links to it and only new
+ * or changed files are copied. Every snapshot is a complete, browsable copy of the local directory that only costs
+ * the space of the files that changed, and a file damaged or deleted locally is still in earlier snapshots.
+ *
+ * A snapshot is built in a hidden directory and renamed once complete, so an interrupted run never leaves a
+ * partial snapshot that a later run would link to. Each snapshot has its own manifest.
+ *
+ * <pre>
+ * dirRemote/2024-01-26_101530/.snapshot_manifest.txt
+ * dirRemote/2024-01-26_101530/some/path/file.jpg
+ * dirRemote/2024-01-27_101502/some/path/file.jpg   (same file as the day before)
+ * dirRemote/.2024-01-28_101544.partial/            (in progress)
+ * </pre>
+ *
+ * Hard links require the snapshots to be on one file system, if links are not supported every file is copied.
+ * Files in a snapshot must never be modified in place since that would change every snapshot linked to them.
+ *
+ * @author Mike Gabelmann
+ */
+public final class Snapshot extends AbstractWorkflow {
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(Snapshot.class);
+
+    /** Name of the manifest in each snapshot. */
+    public static final String MANIFEST_FILENAME = ".snapshot_manifest.txt";
+
+    /** Suffix of a snapshot being built. */
+    public static final String PARTIAL_SUFFIX = ".partial";
+
+    /** Format of a snapshot name. */
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmmss");
+
+    /** Snapshot name, with a counter when more than one is created in the same second. */
+    private static final Pattern NAME_PATTERN = Pattern.compile("(\\d{4}-\\d{2}-\\d{2}_\\d{6})(?:_(\\d+))?");
+
+    /** Orders snapshot names by time then counter. */
+    private static final Comparator<String> NAME_ORDER = Comparator
+        .comparing((String name) -> parseName(name).group(1))
+        .thenComparingInt(Snapshot::getCounter);
+
+    /** Number of files copied or linked at once. */
+    private int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+    /** Cleared the first time the destination refuses a hard link, files are copied from then on. */
+    private volatile boolean linksSupported = true;
+
+
+    /**
+     * Main method.
+     * @param args list of arguments
+     */
+    public static void main(final String[] args) {
+        final Snapshot snapshot = new Snapshot(
+            new File("P:/Mike/catalog1/03_raw/01_working/2024"),
+            new File("Z:/snapshots/2024"),
+            HashType.SHA256,
+            false);
+
+        try {
+            snapshot.process();
+
+        } catch (WorkflowException we) {
+            LOG.error(we.getMessage());
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param dirLocal local directory
+     * @param dirRemote directory that holds the snapshots
+     * @param type checksum type
+     * @param verify verify copied files
+     */
+    public Snapshot(final File dirLocal, final File dirRemote, final HashType type, final boolean verify) {
+        super(dirLocal, dirRemote, type, verify);
+    }
+
+    /**
+     * @param threads number of files copied or linked at once
+     */
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * @return names of the complete snapshots, oldest first
+     * @throws IOException error listing snapshots
+     */
+    public List<String> getSnapshots() throws IOException {
+        final List<String> names = new ArrayList<>();
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dirRemote.toPath())) {
+            for (Path entry : entries) {
+                final String name = entry.getFileName().toString();
+
+                if (Files.isDirectory(entry) && NAME_PATTERN.matcher(name).matches()) {
+                    names.add(name);
+                }
+            }
+        }
+
+        names.sort(NAME_ORDER);
+
+        return names;
+    }
+
+    /** {@inheritDoc} */
+    public void process() throws WorkflowException {
+        try {
+            this.deletePartial();
+
+            final List<String> snapshots = this.getSnapshots();
+            final File previousDir = snapshots.isEmpty() ? null : new File(dirRemote, snapshots.get(snapshots.size() - 1));
+            final ManifestIndex previous = this.loadManifest(previousDir);
+
+            final String name = this.createName(snapshots);
+            final File partialDir = new File(dirRemote, "." + name + PARTIAL_SUFFIX);
+            final ManifestIndex current = new ManifestIndex(new File(partialDir, MANIFEST_FILENAME));
+
+            LOG.info("snapshot - starting {}, previous {}", name, (previousDir != null ? previousDir.getName() : "none"));
+
+            Files.createDirectories(partialDir.toPath());
+
+            final AtomicInteger linked = new AtomicInteger();
+            final AtomicInteger copied = new AtomicInteger();
+            final AtomicLong bytes = new AtomicLong();
+
+            try (TaskScope scope = new TaskScope(threads)) {
+                Files.walkFileTree(dirLocal.toPath(), new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                        Files.createDirectories(partialDir.toPath().resolve(dirLocal.toPath().relativize(dir)));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                        final Path relative = dirLocal.toPath().relativize(file);
+                        final String recordPath = ManifestIndex.toRecordPath(relative);
+
+                        scope.fork(() -> {
+                            final File target = partialDir.toPath().resolve(relative).toFile();
+
+                            if (Snapshot.this.linkFile(file.toFile(), attrs, target, recordPath, previousDir, previous, current)) {
+                                linked.incrementAndGet();
+
+                            } else {
+                                Snapshot.this.copyFile(file.toFile(), attrs, target, recordPath, current);
+                                copied.incrementAndGet();
+                                bytes.addAndGet(attrs.size());
+                            }
+                        });
+
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+                scope.join();
+            }
+
+            current.save();
+
+            Files.move(partialDir.toPath(), new File(dirRemote, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            LOG.info("snapshot - finished {}, {} linked, {} copied ({})", name, linked.get(), copied.get(), ByteConversion.format(bytes.get()));
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+    }
+
+    /**
+     * Restore the newest snapshot to the local directory.
+     * @throws WorkflowException error restoring or there are no snapshots
+     */
+    public void restore() throws WorkflowException {
+        try {
+            final List<String> snapshots = this.getSnapshots();
+
+            if (snapshots.isEmpty()) {
+                throw new WorkflowException("no snapshots to restore");
+            }
+
+            this.restore(snapshots.get(snapshots.size() - 1), dirLocal);
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+    }
+
+    /**
+     * Restore a snapshot. Files that already have the same size and last modified date are skipped, every other
+     * file is copied and checked against the snapshot manifest.
+     * @param name name of the snapshot
+     * @param target directory to restore into
+     * @throws WorkflowException error restoring or a file failed its checksum
+     */
+    public void restore(final String name, final File target) throws WorkflowException {
+        final File snapshotDir = new File(dirRemote, name);
+
+        if (! NAME_PATTERN.matcher(name).matches() || ! snapshotDir.isDirectory()) {
+            throw new IllegalArgumentException("snapshot " + name + " does not exist");
+        }
+
+        LOG.info("restore - starting {} to {}", name, target.getAbsolutePath());
+
+        try (TaskScope scope = new TaskScope(threads)) {
+            final ManifestIndex manifest = this.loadManifest(snapshotDir);
+
+            for (FileRecord record : manifest.getRecords()) {
+                scope.fork(() -> this.restoreFile(new File(snapshotDir, record.getPath()), new File(target, record.getPath()), record));
+            }
+
+            scope.join();
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        LOG.info("restore - finished {}", name);
+    }
+
+    /**
+     * Verify every file of every snapshot against its manifest. A file linked into many snapshots is read once.
+     * @throws WorkflowException error reading files or a file failed
+     */
+    public void validate() throws WorkflowException {
+        final Set<Object> verified = ConcurrentHashMap.newKeySet();
+        final AtomicInteger failed = new AtomicInteger();
+
+        try (TaskScope scope = new TaskScope(threads)) {
+            for (String name : this.getSnapshots()) {
+                final File snapshotDir = new File(dirRemote, name);
+
+                for (FileRecord record : this.loadManifest(snapshotDir).getRecords()) {
+                    scope.fork(() -> {
+                        final File f = new File(snapshotDir, record.getPath());
+
+                        if (! f.isFile()) {
+                            LOG.warn("FILE: {} missing", f.getAbsolutePath());
+                            failed.incrementAndGet();
+                            return;
+                        }
+
+                        final Object fileKey = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+
+                        if (fileKey != null && ! verified.add(fileKey)) {
+                            LOG.trace("FILE: {} already verified through another link", f.getAbsolutePath());
+                            return;
+                        }
+
+                        if (FileRecordCodec.verifyFileChecksum(f, record.getType(), record.getSum())) {
+                            LOG.debug("FILE: {} checksum - passed", f.getAbsolutePath());
+
+                        } else {
+                            LOG.warn("FILE: {} checksum - failed", f.getAbsolutePath());
+                            failed.incrementAndGet();
+                        }
+                    });
+                }
+            }
+
+            scope.join();
+
+        } catch (IOException ioe) {
+            throw new WorkflowException(ioe);
+        }
+
+        if (failed.get() > 0) {
+            throw new WorkflowException("validation failed for " + failed.get() + " files");
+        }
+    }
+
+    /**
+     * Link a file to the previous snapshot if it has not changed since.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param target file in the new snapshot
+     * @param recordPath relative path of the file
+     * @param previousDir previous snapshot, null if there is none
+     * @param previous manifest of the previous snapshot
+     * @param current manifest of the new snapshot
+     * @return true if linked, false if the file must be copied
+     * @throws IOException error reading the previous snapshot
+     */
+    private boolean linkFile(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File target,
+        final String recordPath,
+        final File previousDir,
+        final ManifestIndex previous,
+        final ManifestIndex current)
+        throws IOException {
+
+        final FileRecord record = previous.get(recordPath);
+
+        if (previousDir == null || record == null || ! linksSupported) {
+            return false;
+
+        } else if (record.getSize() != localAttributes.size() || ! record.getDate().equals(Backup.toLocalDateTime(localAttributes.lastModifiedTime()))) {
+            LOG.info("FILE: {} changed - copying", localFile.getAbsolutePath());
+            return false;
+        }
+
+        final File previousFile = new File(previousDir, recordPath);
+
+        //the previous copy must still be intact, a damaged copy is replaced rather than shared
+        if (! previousFile.isFile() || previousFile.length() != record.getSize()) {
+            LOG.warn("FILE: {} missing from previous snapshot - copying", previousFile.getAbsolutePath());
+            return false;
+        }
+
+        try {
+            Files.createLink(target.toPath(), previousFile.toPath());
+
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            LOG.warn("DIR: {} does not support hard links, copying every file - {}", dirRemote.getAbsolutePath(), e.toString());
+            linksSupported = false;
+            return false;
+        }
+
+        LOG.debug("FILE: {} unchanged - linked", localFile.getAbsolutePath());
+        current.put(new FileRecord(recordPath, record.getSum(), record.getSize(), record.getDate(), record.getType()));
+
+        return true;
+    }
+
+    /**
+     * Copy a new or changed file into the new snapshot.
+     * @param localFile local file
+     * @param localAttributes local file attributes
+     * @param target file in the new snapshot
+     * @param recordPath relative path of the file
+     * @param current manifest of the new snapshot
+     * @throws IOException error copying file or it failed verification
+     */
+    private void copyFile(
+        final File localFile,
+        final BasicFileAttributes localAttributes,
+        final File target,
+        final String recordPath,
+        final ManifestIndex current)
+        throws IOException {
+
+        final String checksum = FileUtil.copyFile(localFile, target, true, type);
+
+        if (verify && ! FileRecordCodec.verifyFileChecksum(target, type, checksum)) {
+            throw new IOException("FILE: " + target.getAbsolutePath() + " failed verification");
+        }
+
+        this.storeChecksum(target, checksum);
+        current.put(new FileRecord(recordPath, checksum, localAttributes.size(), Backup.toLocalDateTime(localAttributes.lastModifiedTime()), type));
+
+        LOG.info("FILE: {} copied", localFile.getAbsolutePath());
+    }
+
+    /**
+     * Restore a single file. It is written to a temporary file that replaces the target once its checksum matches.
+     * @param snapshotFile file in the snapshot
+     * @param targetFile file to restore to
+     * @param record manifest record of the file
+     * @throws IOException error copying file or it does not match its checksum
+     */
+    private void restoreFile(final File snapshotFile, final File targetFile, final FileRecord record) throws IOException {
+        if (targetFile.isFile() && targetFile.length() == record.getSize()
+            && Backup.toLocalDateTime(Files.getLastModifiedTime(targetFile.toPath())).equals(record.getDate())) {
+
+            LOG.debug("FILE: {} is identical - skipping", targetFile.getAbsolutePath());
+            return;
+        }
+
+        final Path dir = Files.createDirectories(targetFile.getParentFile().toPath());
+        final File tmp = dir.resolve("." + targetFile.getName() + ".tmp").toFile();
+
+        if (! FileUtil.copyFile(snapshotFile, tmp, true, record.getType()).equals(record.getSum())) {
+            Files.deleteIfExists(tmp.toPath());
+            throw new IOException("restored file " + record.getPath() + " does not match its checksum");
+        }
+
+        Files.move(tmp.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        LOG.info("FILE: {} restored", targetFile.getAbsolutePath());
+    }
+
+    /**
+     * @param snapshotDir snapshot, may be null
+     * @return manifest of the snapshot, empty if there is none
+     * @throws IOException error reading manifest
+     */
+    private ManifestIndex loadManifest(final File snapshotDir) throws IOException {
+        final ManifestIndex manifest = new ManifestIndex(new File(snapshotDir != null ? snapshotDir : dirRemote, MANIFEST_FILENAME));
+
+        if (snapshotDir != null) {
+            manifest.load();
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Name a new snapshot for the current time, a counter is added if a snapshot was already created this second.
+     * @param snapshots existing snapshots
+     * @return name
+     */
+    private String createName(final List<String> snapshots) {
+        final String base = LocalDateTime.now().format(NAME_FORMAT);
+        String name = base;
+
+        for (int i = 2; snapshots.contains(name); i++) {
+            name = base + "_" + i;
+        }
+
+        return name;
+    }
+
+    /**
+     * Delete partial snapshots left by interrupted runs.
+     * @throws IOException error deleting
+     */
+    private void deletePartial() throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dirRemote.toPath(), ".*" + PARTIAL_SUFFIX)) {
+            for (Path entry : entries) {
+                LOG.warn("DIR: {} left by an interrupted snapshot - deleting", entry);
+                Trash.delete(entry);
+            }
+        }
+    }
+
+    /**
+     * @param name snapshot name
+     * @return counter of the snapshot within its second, 1 for the first
+     */
+    private static int getCounter(final String name) {
+        final String counter = parseName(name).group(2);
+
+        return counter != null ? Integer.parseInt(counter) : 1;
+    }
+
+    /**
+     * @param name snapshot name
+     * @return matched name
+     */
+    private static Matcher parseName(final String name) {
+        final Matcher matcher = NAME_PATTERN.matcher(name);
+
+        if (! matcher.matches()) {
+            throw new IllegalArgumentException("invalid snapshot name " + name);
+        }
+
+        return matcher;
+    }
+
+}
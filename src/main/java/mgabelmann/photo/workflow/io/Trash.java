@@ -0,0 +1,158 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds files removed from a backup for a limited time. Entries are moved into a directory named for the day they
+ * were removed, keeping their path relative to the backup root, and a day is deleted once it is older than the
+ * retention period.
+ *
+ * <pre>
+ * dirRemote/.trash/2024-01-26/some/path/file.jpg
+ * </pre>
+ *
+ * @author Mike Gabelmann
+ */
+public final class Trash {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Trash.class);
+
+    /** Name of the trash directory in the backup root. */
+    public static final String DIRECTORY = ".trash";
+
+    /** Default time removed files are kept. */
+    public static final Duration DEFAULT_RETENTION = Duration.ofDays(30);
+
+    /** Backup root. */
+    private final transient Path root;
+
+    /** Trash directory. */
+    private final transient Path dir;
+
+    /** Time removed files are kept. */
+    private final transient Duration retention;
+
+
+    /**
+     * Constructor.
+     * @param root backup root
+     * @param retention time removed files are kept
+     */
+    public Trash(final Path root, final Duration retention) {
+        if (root == null) {
+            throw new IllegalArgumentException("root cannot be null");
+
+        } else if (retention == null || retention.isNegative()) {
+            throw new IllegalArgumentException("retention cannot be null or negative");
+        }
+
+        this.root = root;
+        this.dir = root.resolve(DIRECTORY);
+        this.retention = retention;
+    }
+
+    /**
+     * @return trash directory
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Move a file or directory into today's trash. If the same path was already removed today the new entry is
+     * given a unique name.
+     * @param path file or directory inside the backup root
+     * @return location in the trash
+     * @throws IOException error moving entry
+     */
+    public Path move(final Path path) throws IOException {
+        Path target = dir.resolve(LocalDate.now().toString()).resolve(root.relativize(path));
+        Files.createDirectories(target.getParent());
+
+        if (Files.exists(target)) {
+            target = target.resolveSibling(target.getFileName() + "." + System.currentTimeMillis());
+        }
+
+        Files.move(path, target);
+
+        LOGGER.info("FILE: {} moved to trash", path);
+
+        return target;
+    }
+
+    /**
+     * Delete every day that is older than the retention period.
+     * @param today current date
+     * @return number of days deleted
+     * @throws IOException error deleting
+     */
+    public int purge(final LocalDate today) throws IOException {
+        if (! Files.isDirectory(dir)) {
+            return 0;
+        }
+
+        final LocalDate oldest = today.minusDays(retention.toDays());
+        int purged = 0;
+
+        try (DirectoryStream<Path> days = Files.newDirectoryStream(dir)) {
+            for (Path day : days) {
+                final LocalDate date;
+
+                try {
+                    date = LocalDate.parse(day.getFileName().toString());
+
+                } catch (DateTimeParseException dtpe) {
+                    LOGGER.warn("DIR: {} is not a trash day - skipping", day);
+                    continue;
+                }
+
+                if (date.isBefore(oldest)) {
+                    delete(day);
+                    purged++;
+
+                    LOGGER.info("DIR: {} expired - deleted", day);
+                }
+            }
+        }
+
+        return purged;
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     * @param path directory
+     * @throws IOException error deleting
+     */
+    static void delete(final Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path d, final IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
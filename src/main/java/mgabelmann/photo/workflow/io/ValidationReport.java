@@ -0,0 +1,145 @@
+package mgabelmann.photo.workflow.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import mgabelmann.util.ByteConversion;
+
+/**
+ * Result of checking the integrity of a backup. Paths are relative to the backup root, '/' separated. Results
+ * can be added from many threads at once.
+ *
+ * @author Mike Gabelmann
+ */
+public final class ValidationReport {
+    /** Number of files that passed. */
+    private long passed;
+
+    /** Bytes read from files that passed or failed. */
+    private long bytes;
+
+    /** Files that are expected but do not exist in the backup. */
+    private final List<String> missing = new ArrayList<>();
+
+    /** Files whose content does not match. */
+    private final List<String> corrupted = new ArrayList<>();
+
+    /** Files in the backup that are not expected. */
+    private final List<String> extra = new ArrayList<>();
+
+    /** Files that have nothing to compare against. */
+    private final List<String> unverified = new ArrayList<>();
+
+
+    /**
+     * @param size bytes read
+     */
+    synchronized void addPassed(final long size) {
+        passed++;
+        bytes += size;
+    }
+
+    /**
+     * @param path relative path
+     * @param size bytes read
+     */
+    synchronized void addCorrupted(final String path, final long size) {
+        corrupted.add(path);
+        bytes += size;
+    }
+
+    /**
+     * @param path relative path
+     */
+    synchronized void addMissing(final String path) {
+        missing.add(path);
+    }
+
+    /**
+     * @param path relative path
+     */
+    synchronized void addExtra(final String path) {
+        extra.add(path);
+    }
+
+    /**
+     * @param path relative path
+     */
+    synchronized void addUnverified(final String path) {
+        unverified.add(path);
+    }
+
+    /**
+     * @return number of files that passed
+     */
+    public synchronized long getPassed() {
+        return passed;
+    }
+
+    /**
+     * @return bytes read
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return files that are expected but do not exist in the backup, sorted
+     */
+    public synchronized List<String> getMissing() {
+        return sorted(missing);
+    }
+
+    /**
+     * @return files whose content does not match, sorted
+     */
+    public synchronized List<String> getCorrupted() {
+        return sorted(corrupted);
+    }
+
+    /**
+     * @return files in the backup that are not expected, sorted
+     */
+    public synchronized List<String> getExtra() {
+        return sorted(extra);
+    }
+
+    /**
+     * @return files that have no checksum or source to compare against, sorted
+     */
+    public synchronized List<String> getUnverified() {
+        return sorted(unverified);
+    }
+
+    /**
+     * Extra and unverified files do not mean the backup is damaged.
+     * @return true if no file is missing or corrupted
+     */
+    public synchronized boolean isSuccessful() {
+        return missing.isEmpty() && corrupted.isEmpty();
+    }
+
+    /**
+     * @param paths paths
+     * @return sorted copy
+     */
+    private static List<String> sorted(final List<String> paths) {
+        final List<String> copy = new ArrayList<>(paths);
+        Collections.sort(copy);
+        return Collections.unmodifiableList(copy);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ValidationReport{" +
+                "passed=" + passed +
+                ", bytes=" + ByteConversion.format(bytes) +
+                ", missing=" + missing.size() +
+                ", corrupted=" + corrupted.size() +
+                ", extra=" + extra.size() +
+                ", unverified=" + unverified.size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,392 @@
+package mgabelmann.photo.workflow.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies copied files on a pool of threads. The number of pending verifications is bounded, once the limit
+ * is reached {@link #submit(File, File, String)} blocks until a verification completes, which keeps the copier
+ * from racing ahead of the verifiers. Every submitted verification is accounted for in the {@link Summary}.
+ *
+ * Files that do not match can optionally be copied and verified again, the new copy is written next to the file
+ * and replaces it only once it matches.
+ *
+ * @author Mike Gabelmann
+ */
+public final class VerificationStage {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(VerificationStage.class);
+
+    /** Outcome of a verification. */
+    public enum Status {
+        /** Checksums are equal. */
+        PASSED,
+
+        /** Checksums are different. */
+        FAILED,
+
+        /** Checksums were different, the file was copied again and then matched. */
+        REPAIRED,
+
+        /** Checksum could not be calculated. */
+        SKIPPED,
+    }
+
+    /** Suffix of the temporary file a repair is written to. */
+    public static final String REPAIR_SUFFIX = ".repair";
+
+    /** Checksum type. */
+    private final transient HashType type;
+
+    /** Number of times a failed file is copied and verified again. */
+    private final transient int repairAttempts;
+
+    /** Threads performing verification. */
+    private final transient ExecutorService service;
+
+    /** Limits the number of pending verifications. */
+    private final transient Semaphore pending;
+
+    /** Counters by status. */
+    private final transient AtomicLong[] counts;
+
+    /** Results that did not pass. */
+    private final transient List<Result> problems;
+
+    /** Receives each result as it completes, may be null. */
+    private volatile Consumer<Result> listener;
+
+
+    /**
+     * Constructor.
+     * @param type checksum type
+     * @param threads number of verification threads
+     * @param capacity number of verifications that may wait for a thread
+     * @param repairAttempts number of times a failed file is copied again, 0 to disable
+     */
+    public VerificationStage(final HashType type, final int threads, final int capacity, final int repairAttempts) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+
+        } else if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+
+        } else if (capacity < 0) {
+            throw new IllegalArgumentException("capacity cannot be negative");
+
+        } else if (repairAttempts < 0) {
+            throw new IllegalArgumentException("repairAttempts cannot be negative");
+        }
+
+        this.type = type;
+        this.repairAttempts = repairAttempts;
+        this.service = Executors.newFixedThreadPool(threads);
+        this.pending = new Semaphore(threads + capacity);
+        this.counts = new AtomicLong[Status.values().length];
+        this.problems = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @param listener receives each result on the verification thread as it completes, null for none
+     */
+    public void setListener(final Consumer<Result> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queue a file for verification, blocks while the queue is full.
+     * @param source source file
+     * @param dest copied file
+     * @param sourceChecksum checksum of the source calculated during the copy, null to read the source again
+     * @return result of the verification
+     * @throws InterruptedException interrupted while waiting for space in the queue
+     */
+    public Future<Result> submit(final File source, final File dest, final String sourceChecksum) throws InterruptedException {
+        pending.acquire();
+
+        try {
+            return service.submit(() -> {
+                try {
+                    return this.record(this.verify(source, dest, sourceChecksum));
+
+                } finally {
+                    pending.release();
+                }
+            });
+
+        } catch (RuntimeException re) {
+            pending.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Wait for every queued verification to complete and stop the verification threads.
+     * @return summary of all verifications
+     * @throws InterruptedException interrupted while waiting
+     */
+    public Summary finish() throws InterruptedException {
+        service.shutdown();
+
+        while (! service.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOGGER.info("waiting for verification to complete");
+        }
+
+        final Summary summary = new Summary(
+            counts[Status.PASSED.ordinal()].get(),
+            counts[Status.FAILED.ordinal()].get(),
+            counts[Status.REPAIRED.ordinal()].get(),
+            counts[Status.SKIPPED.ordinal()].get(),
+            new ArrayList<>(problems));
+
+        LOGGER.info("verification - {}", summary);
+
+        return summary;
+    }
+
+    /**
+     * Stop the verification threads without waiting, pending verifications are not performed.
+     */
+    public void abort() {
+        service.shutdownNow();
+    }
+
+    /**
+     * Verify a file, repairing it if required.
+     * @param source source file
+     * @param dest copied file
+     * @param sourceChecksum checksum of the source, may be null
+     * @return result
+     */
+    private Result verify(final File source, final File dest, final String sourceChecksum) {
+        String checksum = sourceChecksum;
+
+        try {
+            if (new ChecksumCompare(source, dest, type, checksum).call()) {
+                return new Result(source, dest, Status.PASSED, checksum);
+            }
+
+            for (int i = 0; i < repairAttempts; i++) {
+                LOGGER.info("FILE: {} repairing - attempt {}", source.getAbsolutePath(), i + 1);
+                checksum = this.repair(source, dest);
+
+                if (checksum != null) {
+                    return new Result(source, dest, Status.REPAIRED, checksum);
+                }
+            }
+
+            return new Result(source, dest, Status.FAILED, checksum);
+
+        } catch (IOException ie) {
+            LOGGER.warn("FILE: {} verification skipped - {}", source.getAbsolutePath(), ie.getMessage());
+            return new Result(source, dest, Status.SKIPPED, checksum);
+        }
+    }
+
+    /**
+     * Copy the source to a temporary file next to the copy and replace the copy with it once it matches, so a
+     * repair that fails or is interrupted leaves the copy as it was.
+     * @param source source file
+     * @param dest copied file
+     * @return checksum of the source, null if the new copy did not match
+     * @throws IOException error repairing the file
+     */
+    private String repair(final File source, final File dest) throws IOException {
+        final Path tmp = getRepairFile(dest);
+
+        try {
+            final String checksum = FileUtil.copyFile(source, tmp.toFile(), true, type);
+
+            if (! new ChecksumCompare(source, tmp.toFile(), type, checksum).call()) {
+                return null;
+            }
+
+            try {
+                Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            return checksum;
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @param dest copied file
+     * @return temporary file a repair is written to
+     */
+    public static Path getRepairFile(final File dest) {
+        return dest.toPath().resolveSibling("." + dest.getName() + REPAIR_SUFFIX);
+    }
+
+    /**
+     * Count a result.
+     * @param result result
+     * @return result
+     */
+    private Result record(final Result result) {
+        counts[result.getStatus().ordinal()].incrementAndGet();
+
+        if (result.getStatus() != Status.PASSED) {
+            problems.add(result);
+        }
+
+        final Consumer<Result> l = listener;
+
+        if (l != null) {
+            l.accept(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Result of verifying a single file.
+     */
+    public static final class Result {
+        /** Source file. */
+        private final transient File source;
+
+        /** Copied file. */
+        private final transient File dest;
+
+        /** Outcome. */
+        private final transient Status status;
+
+        /** Checksum of the source, may be null. */
+        private final transient String checksum;
+
+        /**
+         * Constructor.
+         * @param source source file
+         * @param dest copied file
+         * @param status outcome
+         * @param checksum checksum of the source, may be null
+         */
+        Result(final File source, final File dest, final Status status, final String checksum) {
+            this.source = source;
+            this.dest = dest;
+            this.status = status;
+            this.checksum = checksum;
+        }
+
+        public File getSource() {
+            return source;
+        }
+
+        public File getDest() {
+            return dest;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "source=" + source +
+                    ", dest=" + dest +
+                    ", status=" + status +
+                    '}';
+        }
+    }
+
+    /**
+     * Totals for all verifications.
+     */
+    public static final class Summary {
+        private final transient long passed;
+        private final transient long failed;
+        private final transient long repaired;
+        private final transient long skipped;
+
+        /** Results that did not pass. */
+        private final transient List<Result> problems;
+
+        /**
+         * Constructor.
+         * @param passed number passed
+         * @param failed number failed
+         * @param repaired number repaired
+         * @param skipped number skipped
+         * @param problems results that did not pass
+         */
+        Summary(final long passed, final long failed, final long repaired, final long skipped, final List<Result> problems) {
+            this.passed = passed;
+            this.failed = failed;
+            this.repaired = repaired;
+            this.skipped = skipped;
+            this.problems = Collections.unmodifiableList(problems);
+        }
+
+        public long getPassed() {
+            return passed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getRepaired() {
+            return repaired;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public List<Result> getProblems() {
+            return problems;
+        }
+
+        /**
+         * @return true if every file passed or was repaired
+         */
+        public boolean isSuccessful() {
+            return failed == 0 && skipped == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{" +
+                    "passed=" + passed +
+                    ", failed=" + failed +
+                    ", repaired=" + repaired +
+                    ", skipped=" + skipped +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+package mgabelmann.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses files that are worth compressing, in blocks on many cores. Each block is written as its own gzip
+ * member, a stream of gzip members is a valid gzip file, so the result can be read by any gzip tool.
+ *
+ * Whether a file is compressed is decided without reading it when its extension is known: images, raw files,
+ * video and archives are already compressed, while sidecars, catalogs and TIFFs compress well. Other files are
+ * decided by compressing a sample from the start of the file.
+ *
+ * @author Mike Gabelmann
+ */
+public final class BlockCompressor {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockCompressor.class);
+
+    /** Default block size. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /** Default bytes compressed to decide if a file is compressible. */
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+    /** Default largest compressed size, as a fraction of the sample, for a file to be compressed. */
+    public static final double DEFAULT_RATIO = 0.9;
+
+    /** Suffix of a compressed file. */
+    public static final String SUFFIX = ".gz";
+
+    /** Files smaller than this are never compressed. */
+    private static final int MIN_SIZE = 4096;
+
+    /** Extensions of files that are already compressed. */
+    private static final Set<String> INCOMPRESSIBLE = Set.of(
+        "jpg", "jpeg", "heic", "heif", "png", "gif", "webp",
+        "cr2", "cr3", "nef", "arw", "raf", "orf", "rw2", "dng", "pef", "srw",
+        "mp4", "mov", "avi", "mkv", "mts", "mp3", "m4a",
+        "zip", "gz", "7z", "rar", "xz", "bz2");
+
+    /** Extensions of files that compress well. */
+    private static final Set<String> COMPRESSIBLE = Set.of(
+        "xmp", "txt", "xml", "csv", "json", "log",
+        "lrcat", "lrdata", "tif", "tiff", "psd", "psb", "bmp");
+
+    /** Gzip member header: magic, deflate, no flags, no time, no extra flags, unknown OS. */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /** Bytes of each file that are compressed at once. */
+    private final transient int blockSize;
+
+    /** Deflate level. */
+    private final transient int level;
+
+    /** Largest compressed size, as a fraction of the sample, for a file to be compressed. */
+    private final transient double ratio;
+
+
+    /**
+     * Constructor, default block size and ratio.
+     */
+    public BlockCompressor() {
+        this(DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, DEFAULT_RATIO);
+    }
+
+    /**
+     * Constructor.
+     * @param blockSize bytes of each file that are compressed at once
+     * @param level deflate level (1 - 9, or Deflater.DEFAULT_COMPRESSION)
+     * @param ratio largest compressed size, as a fraction of the sample, for a file to be compressed
+     */
+    public BlockCompressor(final int blockSize, final int level, final double ratio) {
+        if (blockSize < MIN_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at least " + MIN_SIZE);
+
+        } else if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+
+        } else if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be greater than 0 and at most 1");
+        }
+
+        this.blockSize = blockSize;
+        this.level = level;
+        this.ratio = ratio;
+    }
+
+    /**
+     * Decide if a file is worth compressing. Files with a known extension are not read.
+     * @param file file
+     * @return true if the file should be compressed
+     * @throws IOException error reading sample
+     */
+    public boolean isCompressible(final File file) throws IOException {
+        final String extension = FileUtil.getFileExtension(file).toLowerCase(Locale.ROOT);
+
+        if (file.length() < MIN_SIZE || INCOMPRESSIBLE.contains(extension)) {
+            return false;
+
+        } else if (COMPRESSIBLE.contains(extension)) {
+            return true;
+        }
+
+        final byte[] sample = new byte[(int) Math.min(DEFAULT_SAMPLE_SIZE, file.length())];
+        final int length;
+
+        try (InputStream in = new FileInputStream(file)) {
+            length = in.readNBytes(sample, 0, sample.length);
+        }
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        final byte[] out = new byte[sample.length];
+        long compressed = 0;
+
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            while (! deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+
+        } finally {
+            deflater.end();
+        }
+
+        LOGGER.trace("FILE: {} sample compressed to {} of {} bytes", file.getAbsolutePath(), compressed, length);
+
+        return compressed < length * ratio;
+    }
+
+    /**
+     * Compress a file. Blocks are read in order while earlier blocks are compressed on the common fork/join pool
+     * and written as they complete, in order.
+     * @param source file to compress
+     * @param dest compressed file
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type
+     * @return checksum of the source in hex format
+     * @throws IOException error compressing file
+     */
+    public String compress(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type)
+        throws IOException {
+
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism() + 1;
+        final Queue<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        long written = 0;
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(source.toPath(), dest.toPath());
+             InputStream in = new BufferedInputStream(permit.throttle(source.toPath(), new FileInputStream(source)), blockSize);
+             OutputStream out = new FileOutputStream(dest)) {
+
+            while (true) {
+                final byte[] block = in.readNBytes(blockSize);
+
+                if (block.length == 0) {
+                    break;
+                }
+
+                digest.update(block);
+                pending.add(CompletableFuture.supplyAsync(() -> this.compressBlock(block)));
+
+                //bound the blocks held in memory
+                if (pending.size() >= parallelism) {
+                    written += this.write(pending.remove(), out, permit, dest);
+                }
+            }
+
+            while (! pending.isEmpty()) {
+                written += this.write(pending.remove(), out, permit, dest);
+            }
+
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+
+        if (preserveLastModified && ! dest.setLastModified(source.lastModified())) {
+            LOGGER.warn("FILE: {} unable to set last modified date", dest.getAbsolutePath());
+        }
+
+        LOGGER.debug("FILE: {} compressed {} to {}", source.getAbsolutePath(), ByteConversion.format(source.length()), ByteConversion.format(written));
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Decompress a file.
+     * @param source compressed file
+     * @param dest decompressed file
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type
+     * @return checksum of the decompressed data in hex format
+     * @throws IOException error decompressing file
+     */
+    public static String decompress(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type)
+        throws IOException {
+
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+        final byte[] buffer = new byte[DEFAULT_BLOCK_SIZE];
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(source.toPath(), dest.toPath());
+             InputStream in = new GZIPInputStream(permit.throttle(source.toPath(), new FileInputStream(source)), DEFAULT_BLOCK_SIZE);
+             OutputStream out = new FileOutputStream(dest)) {
+
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                permit.write(dest.toPath(), read);
+                out.write(buffer, 0, read);
+            }
+        }
+
+        if (preserveLastModified && ! dest.setLastModified(source.lastModified())) {
+            LOGGER.warn("FILE: {} unable to set last modified date", dest.getAbsolutePath());
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Calculate the checksum of the data in a compressed file without writing it out.
+     * @param source compressed file
+     * @param type checksum type
+     * @return checksum of the decompressed data in hex format
+     * @throws IOException error reading file
+     */
+    public static String calculateChecksum(final File source, final HashType type) throws IOException {
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+        final byte[] buffer = new byte[DEFAULT_BLOCK_SIZE];
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(source.toPath());
+             InputStream in = new GZIPInputStream(permit.throttle(source.toPath(), new FileInputStream(source)), DEFAULT_BLOCK_SIZE)) {
+
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Wait for a compressed block and write it.
+     * @param future compressed block
+     * @param out output
+     * @param permit I/O permit
+     * @param dest compressed file
+     * @return bytes written
+     * @throws IOException error compressing or writing
+     */
+    private long write(final CompletableFuture<byte[]> future, final OutputStream out, final IoScheduler.Permit permit, final File dest) throws IOException {
+        final byte[] member;
+
+        try {
+            member = future.get();
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted compressing " + dest.getAbsolutePath());
+
+        } catch (ExecutionException ee) {
+            throw new IOException("unable to compress " + dest.getAbsolutePath(), ee.getCause());
+        }
+
+        permit.write(dest.toPath(), member.length);
+        out.write(member);
+
+        return member.length;
+    }
+
+    /**
+     * Compress a block into a complete gzip member.
+     * @param block data
+     * @return gzip member
+     */
+    private byte[] compressBlock(final byte[] block) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 2 + HEADER.length + 8);
+        final Deflater deflater = new Deflater(level, true);
+        final byte[] buffer = new byte[64 * 1024];
+        final CRC32 crc = new CRC32();
+
+        crc.update(block);
+        out.writeBytes(HEADER);
+
+        try {
+            deflater.setInput(block);
+            deflater.finish();
+
+            while (! deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+        } finally {
+            deflater.end();
+        }
+
+        //trailer: crc32 and uncompressed size, little endian
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, block.length);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param out output
+     * @param value value written little endian
+     */
+    private static void writeInt(final ByteArrayOutputStream out, final int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+}
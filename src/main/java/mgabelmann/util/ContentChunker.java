@@ -0,0 +1,186 @@
+package mgabelmann.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks using a gear rolling hash (FastCDC). A chunk ends where the hash
+ * of the preceding bytes matches a mask rather than at a fixed offset, so inserting or removing data only changes
+ * the chunks around the edit and the chunks after it are the same as before.
+ *
+ * Normalized chunking is used: a harder mask is used before the average size and an easier one after it, which
+ * keeps chunk sizes close to the average. No chunk is smaller than the minimum size, except the last, or larger
+ * than the maximum size.
+ *
+ * @author Mike Gabelmann
+ */
+public final class ContentChunker {
+    /** Default minimum chunk size. */
+    public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+
+    /** Default average chunk size. */
+    public static final int DEFAULT_AVG_SIZE = 1024 * 1024;
+
+    /** Default maximum chunk size. */
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    /** Random value per byte value, the seed must never change or existing chunks will no longer match. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        final Random random = new Random(0x6d676162656c6dL);
+
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Receives each chunk. */
+    @FunctionalInterface
+    public interface Consumer {
+        /**
+         * Accept a chunk, the data is only valid until this method returns.
+         * @param data buffer containing the chunk
+         * @param offset start of the chunk
+         * @param length length of the chunk
+         * @throws IOException error processing chunk
+         */
+        void accept(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /** Minimum chunk size. */
+    private final transient int minSize;
+
+    /** Average chunk size. */
+    private final transient int avgSize;
+
+    /** Maximum chunk size. */
+    private final transient int maxSize;
+
+    /** Mask used before the average size, more bits than the average requires. */
+    private final transient long maskSmall;
+
+    /** Mask used after the average size, fewer bits than the average requires. */
+    private final transient long maskLarge;
+
+
+    /**
+     * Constructor, default sizes.
+     */
+    public ContentChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param minSize minimum chunk size
+     * @param avgSize average chunk size, must be a power of 2
+     * @param maxSize maximum chunk size
+     */
+    public ContentChunker(final int minSize, final int avgSize, final int maxSize) {
+        if (minSize < 1) {
+            throw new IllegalArgumentException("minSize must be at least 1");
+
+        } else if (avgSize < 16 || Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("avgSize must be a power of 2 and at least 16");
+
+        } else if (minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("minSize <= avgSize <= maxSize required");
+        }
+
+        final int bits = Integer.numberOfTrailingZeros(avgSize);
+
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        //the high bits of a gear hash depend on the most bytes
+        this.maskSmall = -1L << (64 - (bits + 2));
+        this.maskLarge = -1L << (64 - (bits - 2));
+    }
+
+    /**
+     * @return maximum chunk size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Split a stream into chunks. The stream is read to the end but not closed.
+     * @param in stream to split
+     * @param consumer receives each chunk in order
+     * @throws IOException error reading stream or processing a chunk
+     */
+    public void split(final InputStream in, final Consumer consumer) throws IOException {
+        final byte[] buffer = new byte[maxSize * 2];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+
+        while (true) {
+            if (! eof && end - start < maxSize) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+
+                while (end < buffer.length) {
+                    final int read = in.read(buffer, end, buffer.length - end);
+
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+
+                    end += read;
+                }
+            }
+
+            if (start == end) {
+                break;
+            }
+
+            final int length = this.cut(buffer, start, end - start);
+            consumer.accept(buffer, start, length);
+            start += length;
+        }
+    }
+
+    /**
+     * Find the end of the next chunk.
+     * @param data buffer
+     * @param offset start of the chunk
+     * @param length bytes available, at least the maximum size unless the end of the stream was reached
+     * @return length of the chunk
+     */
+    private int cut(final byte[] data, final int offset, final int length) {
+        if (length <= minSize) {
+            return length;
+        }
+
+        final int limit = Math.min(length, maxSize);
+        final int normal = Math.min(limit, avgSize);
+        long hash = 0;
+        int i = minSize;
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+
+        return limit;
+    }
+
+}
@@ -0,0 +1,469 @@
+package mgabelmann.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies files using a strategy chosen by file size, so small sidecars and multi-GB raw files each take the
+ * fastest path for the hardware. Every copy is timed and totals are kept per strategy to compare them.
+ *
+ * Strategies that copy in the kernel ({@link #TRANSFER}, {@link #FILES_COPY}) never see the data, when a checksum
+ * is requested the source is read again after the copy. Prefer them for size classes copied without a checksum, or
+ * where the saving outweighs the second read. Copies with and without a checksum have their own strategies, by
+ * default files that are not read whole are streamed when a checksum is needed and transferred otherwise.
+ *
+ * @author Mike Gabelmann
+ */
+public final class CopyEngine {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CopyEngine.class);
+
+    /** Buffer size used when copying, bandwidth limits are applied per buffer. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** Default size from which files are streamed rather than read whole. */
+    public static final long DEFAULT_SMALL_SIZE = 256 * 1024;
+
+    /** Copies a file. */
+    public interface Strategy {
+        /**
+         * @return name used in statistics
+         */
+        String getName();
+
+        /**
+         * Copy a file, the destination exists and is replaced.
+         * @param source file to copy
+         * @param dest destination
+         * @param type checksum type, null if no checksum is needed
+         * @param permit I/O permit for source and destination
+         * @return checksum of the source in hex format, null if not calculated
+         * @throws IOException error copying file
+         */
+        String copy(File source, File dest, HashType type, IoScheduler.Permit permit) throws IOException;
+    }
+
+    /** Channel to channel transfer in a loop, a single transfer is not guaranteed to copy everything. */
+    public static final Strategy TRANSFER = new Strategy() {
+        @Override
+        public String getName() {
+            return "transfer";
+        }
+
+        @Override
+        public String copy(final File source, final File dest, final HashType type, final IoScheduler.Permit permit) throws IOException {
+            try (FileInputStream fis = new FileInputStream(source);
+                 FileOutputStream fos = new FileOutputStream(dest)) {
+
+                final FileChannel sourceChannel = fis.getChannel();
+                final FileChannel destChannel = fos.getChannel();
+                final long size = sourceChannel.size();
+                long position = 0;
+
+                while (position < size) {
+                    final long count = Math.min(BUFFER_SIZE, size - position);
+
+                    permit.read(source.toPath(), count);
+                    permit.write(dest.toPath(), count);
+
+                    final long transferred = destChannel.transferFrom(sourceChannel, position, count);
+
+                    if (transferred <= 0) {
+                        throw new IOException("source truncated while copying - " + source.getAbsolutePath());
+                    }
+
+                    position += transferred;
+                }
+            }
+
+            return null;
+        }
+    };
+
+    /** Files.copy, may use a copy offload of the file system or server. Bandwidth is accounted before copying. */
+    public static final Strategy FILES_COPY = new Strategy() {
+        @Override
+        public String getName() {
+            return "files-copy";
+        }
+
+        @Override
+        public String copy(final File source, final File dest, final HashType type, final IoScheduler.Permit permit) throws IOException {
+            final long size = source.length();
+
+            permit.read(source.toPath(), size);
+            permit.write(dest.toPath(), size);
+
+            Files.copy(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            return null;
+        }
+    };
+
+    /** Streams through a large direct buffer, the checksum is calculated from the same buffer. */
+    public static final Strategy STREAM = new Strategy() {
+        @Override
+        public String getName() {
+            return "stream";
+        }
+
+        @Override
+        public String copy(final File source, final File dest, final HashType type, final IoScheduler.Permit permit) throws IOException {
+            final MessageDigest digest = type != null ? FileRecordCodec.getDigest(type) : null;
+
+            try (FileInputStream fis = new FileInputStream(source);
+                 FileOutputStream fos = new FileOutputStream(dest)) {
+
+                final FileChannel sourceChannel = fis.getChannel();
+                final FileChannel destChannel = fos.getChannel();
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+                while (sourceChannel.read(buffer) != -1) {
+                    buffer.flip();
+
+                    if (digest != null) {
+                        digest.update(buffer.duplicate());
+                    }
+
+                    permit.read(source.toPath(), buffer.remaining());
+                    permit.write(dest.toPath(), buffer.remaining());
+
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer);
+                    }
+
+                    buffer.clear();
+                }
+            }
+
+            return digest != null ? Hex.encodeHexString(digest.digest()) : null;
+        }
+    };
+
+    /** Reads the whole file with one call and writes it with one call, only for small files. */
+    public static final Strategy SMALL = new Strategy() {
+        @Override
+        public String getName() {
+            return "small";
+        }
+
+        @Override
+        public String copy(final File source, final File dest, final HashType type, final IoScheduler.Permit permit) throws IOException {
+            final long size = source.length();
+
+            //bandwidth is accounted before reading, a paused or throttled device is not read
+            permit.read(source.toPath(), size);
+
+            final byte[] data = Files.readAllBytes(source.toPath());
+
+            if (data.length > size) {
+                permit.read(source.toPath(), data.length - size);
+            }
+
+            permit.write(dest.toPath(), data.length);
+
+            Files.write(dest.toPath(), data);
+
+            if (type == null) {
+                return null;
+            }
+
+            final MessageDigest digest = FileRecordCodec.getDigest(type);
+            digest.update(data);
+
+            return Hex.encodeHexString(digest.digest());
+        }
+    };
+
+    /** Shared engine used by FileUtil and the workflows, created after the strategies it uses. */
+    private static final CopyEngine INSTANCE = new CopyEngine();
+
+    /** Strategy by the smallest file size it is used for, when a checksum is calculated. */
+    private final NavigableMap<Long, Strategy> strategies = new ConcurrentSkipListMap<>();
+
+    /** Strategy by the smallest file size it is used for, when no checksum is calculated. */
+    private final NavigableMap<Long, Strategy> plainStrategies = new ConcurrentSkipListMap<>();
+
+    /** Totals by strategy name. */
+    private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
+
+
+    /**
+     * @return shared engine
+     */
+    public static CopyEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor, small files are read whole. Every other file is streamed when a checksum is needed so the data
+     * is only read once, and transferred by the kernel otherwise.
+     */
+    public CopyEngine() {
+        strategies.put(0L, SMALL);
+        strategies.put(DEFAULT_SMALL_SIZE, STREAM);
+        plainStrategies.put(0L, SMALL);
+        plainStrategies.put(DEFAULT_SMALL_SIZE, TRANSFER);
+    }
+
+    /**
+     * Use a strategy for files of at least a size, up to the next size that has a strategy, with or without a
+     * checksum.
+     * @param minSize smallest file size the strategy is used for
+     * @param strategy strategy
+     */
+    public void setStrategy(final long minSize, final Strategy strategy) {
+        this.setStrategy(minSize, strategy, true);
+        this.setStrategy(minSize, strategy, false);
+    }
+
+    /**
+     * Use a strategy for files of at least a size, up to the next size that has a strategy.
+     * @param minSize smallest file size the strategy is used for
+     * @param strategy strategy
+     * @param checksum true for copies that calculate a checksum, false for copies that do not
+     */
+    public void setStrategy(final long minSize, final Strategy strategy, final boolean checksum) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException("minSize cannot be negative");
+
+        } else if (strategy == null) {
+            throw new IllegalArgumentException("strategy cannot be null");
+        }
+
+        (checksum ? strategies : plainStrategies).put(minSize, strategy);
+    }
+
+    /**
+     * @param size file size
+     * @return strategy used for files of the size when a checksum is calculated
+     */
+    public Strategy getStrategy(final long size) {
+        return this.getStrategy(size, true);
+    }
+
+    /**
+     * @param size file size
+     * @param checksum true if a checksum is calculated
+     * @return strategy used for files of the size
+     */
+    public Strategy getStrategy(final long size, final boolean checksum) {
+        return (checksum ? strategies : plainStrategies).floorEntry(Math.max(0, size)).getValue();
+    }
+
+    /**
+     * Copy a file using the strategy for its size. The destination is created if it does not exist.
+     * @param source file to copy
+     * @param dest new file
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type, null if no checksum is needed
+     * @return result of the copy
+     * @throws IOException error copying file
+     */
+    public Result copy(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type)
+        throws IOException {
+
+        //create a new file if it doesnt exist
+        if (! dest.exists() && ! dest.createNewFile()) {
+            throw new IOException("could not create new file - " + dest.getAbsolutePath());
+        }
+
+        final long size = source.length();
+        final Strategy strategy = this.getStrategy(size, type != null);
+        final long start;
+        String checksum;
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(source.toPath(), dest.toPath())) {
+            //time spent waiting for a permit is not part of the copy
+            start = System.nanoTime();
+            checksum = strategy.copy(source, dest, type, permit);
+        }
+
+        //the strategy did not see the data, the permit is released first since this acquires its own
+        if (checksum == null && type != null) {
+            checksum = FileRecordCodec.calculateChecksum(source, type);
+        }
+
+        final Result result = new Result(strategy.getName(), size, System.nanoTime() - start, checksum);
+        statistics.computeIfAbsent(strategy.getName(), name -> new Statistics()).add(result);
+
+        //preserve last modified date (we check this)
+        if (preserveLastModified && ! dest.setLastModified(source.lastModified())) {
+            LOGGER.warn("FILE: {} unable to set last modified date", dest.getAbsolutePath());
+        }
+
+        LOGGER.trace("FILE: {} copied - {}", source.getAbsolutePath(), result);
+
+        return result;
+    }
+
+    /**
+     * @return totals by strategy name, sorted by name
+     */
+    public Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<>(statistics));
+    }
+
+    /**
+     * Clear the totals.
+     */
+    public void resetStatistics() {
+        statistics.clear();
+    }
+
+    /**
+     * Outcome of a single copy.
+     */
+    public static final class Result {
+        /** Name of the strategy used. */
+        private final String strategy;
+
+        /** Bytes copied. */
+        private final long bytes;
+
+        /** Time taken in nanoseconds once an I/O permit was granted, including a checksum calculated after the copy. */
+        private final long nanos;
+
+        /** Checksum of the source, null if not requested. */
+        private final String checksum;
+
+        /**
+         * Constructor.
+         * @param strategy name of the strategy used
+         * @param bytes bytes copied
+         * @param nanos time taken in nanoseconds
+         * @param checksum checksum of the source
+         */
+        Result(final String strategy, final long bytes, final long nanos, final String checksum) {
+            this.strategy = strategy;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return name of the strategy used
+         */
+        public String getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * @return bytes copied
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return time taken in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return checksum of the source in hex format, null if not requested
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "strategy=" + strategy +
+                    ", bytes=" + ByteConversion.format(bytes) +
+                    ", millis=" + TimeUnit.NANOSECONDS.toMillis(nanos) +
+                    '}';
+        }
+    }
+
+    /**
+     * Totals for a strategy, updated by many threads at once.
+     */
+    public static final class Statistics {
+        /** Number of files copied. */
+        private final LongAdder files = new LongAdder();
+
+        /** Bytes copied. */
+        private final LongAdder bytes = new LongAdder();
+
+        /** Time taken in nanoseconds. */
+        private final LongAdder nanos = new LongAdder();
+
+        /**
+         * @param result copy to add
+         */
+        void add(final Result result) {
+            files.increment();
+            bytes.add(result.bytes);
+            nanos.add(result.nanos);
+        }
+
+        /**
+         * @return number of files copied
+         */
+        public long getFiles() {
+            return files.sum();
+        }
+
+        /**
+         * @return bytes copied
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return time taken in nanoseconds, summed over every thread
+         */
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        /**
+         * @return bytes per second of a single copy, 0 if nothing was copied
+         */
+        public long getThroughput() {
+            final long n = nanos.sum();
+
+            return n == 0 ? 0 : (long) (bytes.sum() * 1_000_000_000d / n);
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{" +
+                    "files=" + this.getFiles() +
+                    ", bytes=" + ByteConversion.format(this.getBytes()) +
+                    ", throughput=" + ByteConversion.format(this.getThroughput()) + "/s" +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,557 @@
+package mgabelmann.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.Adler32;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Updates an existing copy of a file in place by writing only the blocks that changed. Each block of the destination
+ * is described by a weak checksum (Adler-32) and a strong checksum (MD5). The signature is kept in a file next to the
+ * destination so later updates do not need to read the destination, without a signature that matches the
+ * destination each block is compared with the destination directly. The strong checksum of a block is only
+ * calculated once its weak checksum matches, a changed block is recorded with its weak checksum alone and its strong
+ * checksum is calculated the next time it matches.
+ *
+ * Before a changed block is overwritten its old contents are appended to an undo file next to the destination and
+ * forced to disk. An interrupted update is rolled back from the undo file by the next update, or by
+ * {@link #recover(File)}, so the destination holds either the old or the new version. An update reads the source
+ * and the old contents of the changed blocks, and writes each changed block twice (undo file and destination) with a
+ * sync of the undo file per block. Unchanged blocks are neither read from nor written to the destination, and only
+ * the changed blocks need extra space.
+ *
+ * @author Mike Gabelmann
+ */
+public final class DeltaCopy {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeltaCopy.class);
+
+    /** Default block size. */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /** Suffix of the signature file. */
+    public static final String SIGNATURE_SUFFIX = ".blocks";
+
+    /** Suffix of the undo file holding the old contents of the blocks being overwritten. */
+    public static final String UNDO_SUFFIX = ".undo";
+
+    /** Field separator in the signature file. */
+    private static final String SEPARATOR = "\t";
+
+    /** Strong checksum of a block that has not been calculated. */
+    private static final String UNKNOWN = "-";
+
+    /** Do not instantiate this class. */
+    private DeltaCopy() {}
+
+    /**
+     * Update the destination so it matches the source, an interrupted update of the destination is rolled back first.
+     * @param source file to copy
+     * @param dest existing copy, updated in place or created if it does not exist
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type
+     * @param blockSize size of each block in bytes
+     * @return checksum of the source in hex format
+     * @throws IOException error copying file, the destination is rolled back
+     */
+    public static String copyFile(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type,
+        final int blockSize)
+        throws IOException {
+
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1");
+        }
+
+        recover(dest);
+
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+        final ByteBuffer oldBuffer = ByteBuffer.allocateDirect(blockSize);
+        final List<Block> oldBlocks = readSignature(dest, blockSize);
+        final List<Block> newBlocks = new ArrayList<>();
+        final long oldLength = dest.length();
+        final Undo undo = new Undo(getUndoFile(dest), oldLength, dest.exists() ? dest.lastModified() : -1);
+        long written = 0;
+
+        try {
+            try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(source.toPath(), dest.toPath(), undo.path);
+                 FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel destChannel = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                final long size = sourceChannel.size();
+
+                for (long position = 0; position < size; position += blockSize) {
+                    final int index = (int) (position / blockSize);
+
+                    readBlock(sourceChannel, position, buffer);
+                    permit.read(source.toPath(), buffer.remaining());
+                    digest.update(buffer.duplicate());
+
+                    final long weak = Block.weak(buffer);
+                    String strong = null;
+                    boolean oldRead = false;
+                    boolean unchanged = false;
+
+                    if (oldBlocks == null) {
+                        //no signature, compare with the destination
+                        if (position < oldLength) {
+                            readBlock(destChannel, position, oldBuffer);
+                            permit.read(dest.toPath(), oldBuffer.remaining());
+                            oldRead = true;
+                            unchanged = oldBuffer.equals(buffer);
+                        }
+
+                    } else if (index < oldBlocks.size() && oldBlocks.get(index).matches(buffer.remaining(), weak)) {
+                        final Block oldBlock = oldBlocks.get(index);
+
+                        if (oldBlock.strong != null) {
+                            strong = Block.strong(buffer);
+                            unchanged = strong.equals(oldBlock.strong);
+
+                        } else {
+                            readBlock(destChannel, position, oldBuffer);
+                            permit.read(dest.toPath(), oldBuffer.remaining());
+                            oldRead = true;
+                            unchanged = oldBuffer.equals(buffer);
+                        }
+                    }
+
+                    if (unchanged) {
+                        newBlocks.add(new Block(buffer.remaining(), weak, strong != null ? strong : Block.strong(buffer)));
+                        continue;
+                    }
+
+                    if (! oldRead) {
+                        readBlock(destChannel, position, oldBuffer);
+                        permit.read(dest.toPath(), oldBuffer.remaining());
+                    }
+
+                    undo.save(position, oldBuffer);
+                    newBlocks.add(new Block(buffer.remaining(), weak, null));
+
+                    permit.write(dest.toPath(), buffer.remaining());
+                    written += buffer.remaining();
+
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer, position + buffer.position());
+                    }
+                }
+
+                //the end of a file that became shorter is kept until the update is complete
+                for (long position = size; position < oldLength; position += blockSize) {
+                    readBlock(destChannel, position, oldBuffer);
+                    permit.read(dest.toPath(), oldBuffer.remaining());
+                    undo.save(position, oldBuffer);
+                }
+
+                if (undo.isOpen()) {
+                    destChannel.truncate(size);
+                    destChannel.force(true);
+                }
+
+                LOGGER.info("FILE: {} delta - wrote {} of {}", source.getAbsolutePath(), ByteConversion.format(written), ByteConversion.format(size));
+
+            } finally {
+                undo.close();
+            }
+
+            if (preserveLastModified) {
+                Files.setLastModifiedTime(dest.toPath(), FileTime.fromMillis(source.lastModified()));
+            }
+
+        } catch (IOException ioe) {
+            try {
+                recover(dest);
+
+            } catch (IOException re) {
+                ioe.addSuppressed(re);
+            }
+
+            throw ioe;
+        }
+
+        Files.deleteIfExists(undo.path);
+        writeSignature(dest, blockSize, newBlocks);
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Roll back an interrupted update of the destination from its undo file. The blocks that were overwritten get
+     * their old contents back, the old length and last modified time are restored and a destination that did not
+     * exist before is deleted.
+     * @param dest destination file
+     * @return true if an update was rolled back
+     * @throws IOException error rolling back, the undo file is kept
+     */
+    public static boolean recover(final File dest) throws IOException {
+        final Path undo = getUndoFile(dest);
+
+        if (! Files.exists(undo)) {
+            return false;
+        }
+
+        try (FileChannel undoChannel = FileChannel.open(undo, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(Undo.HEADER_SIZE);
+
+            //the destination is not changed until the header is on disk
+            if (readFully(undoChannel, header)) {
+                final long oldLength = header.getLong();
+                final long oldModified = header.getLong();
+
+                if (oldModified < 0) {
+                    Files.deleteIfExists(dest.toPath());
+
+                } else {
+                    try (FileChannel destChannel = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                        final ByteBuffer record = ByteBuffer.allocate(Undo.RECORD_SIZE);
+
+                        //a record that is not complete was not forced, so its block was not overwritten
+                        while (readFully(undoChannel, record)) {
+                            final long position = record.getLong();
+                            final ByteBuffer data = ByteBuffer.allocate(record.getInt());
+
+                            if (! readFully(undoChannel, data)) {
+                                break;
+                            }
+
+                            while (data.hasRemaining()) {
+                                destChannel.write(data, position + data.position());
+                            }
+                        }
+
+                        destChannel.truncate(oldLength);
+                        destChannel.force(true);
+                    }
+
+                    Files.setLastModifiedTime(dest.toPath(), FileTime.fromMillis(oldModified));
+                }
+            }
+        }
+
+        Files.delete(undo);
+        LOGGER.warn("FILE: {} interrupted update rolled back", dest.getAbsolutePath());
+
+        return true;
+    }
+
+    /**
+     * @param dest destination file
+     * @return signature file of the destination
+     */
+    public static Path getSignatureFile(final File dest) {
+        return dest.toPath().resolveSibling("." + dest.getName() + SIGNATURE_SUFFIX);
+    }
+
+    /**
+     * @param dest destination file
+     * @return undo file of the destination, only present while it is being updated
+     */
+    public static Path getUndoFile(final File dest) {
+        return dest.toPath().resolveSibling("." + dest.getName() + UNDO_SUFFIX);
+    }
+
+    /**
+     * Read the signature of the destination.
+     * @param dest destination file
+     * @param blockSize size of each block
+     * @return blocks of the destination, null if the destination does not exist or the signature is missing or
+     *         out of date
+     * @throws IOException error reading signature
+     */
+    private static List<Block> readSignature(final File dest, final int blockSize) throws IOException {
+        final Path signature = getSignatureFile(dest);
+
+        if (! dest.exists() || ! Files.exists(signature)) {
+            return null;
+        }
+
+        final List<String> lines = Files.readAllLines(signature, StandardCharsets.UTF_8);
+
+        if (lines.isEmpty() || ! lines.get(0).equals(header(dest, blockSize))) {
+            LOGGER.debug("FILE: {} signature out of date", dest.getAbsolutePath());
+            return null;
+        }
+
+        final List<Block> blocks = new ArrayList<>();
+
+        for (int i = 1; i < lines.size(); i++) {
+            blocks.add(Block.parse(lines.get(i)));
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Write the signature of the destination.
+     * @param dest destination file
+     * @param blockSize size of each block
+     * @param blocks blocks of the destination
+     * @throws IOException error writing signature
+     */
+    private static void writeSignature(final File dest, final int blockSize, final List<Block> blocks) throws IOException {
+        final Path signature = getSignatureFile(dest);
+        final Path tmp = signature.resolveSibling(signature.getFileName() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(header(dest, blockSize));
+            writer.newLine();
+
+            for (Block block : blocks) {
+                writer.write(block.toString());
+                writer.newLine();
+            }
+        }
+
+        Files.move(tmp, signature, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param dest destination file
+     * @param blockSize size of each block
+     * @return header identifying the destination a signature was calculated for
+     */
+    private static String header(final File dest, final int blockSize) {
+        return dest.length() + SEPARATOR + dest.lastModified() + SEPARATOR + blockSize;
+    }
+
+    /**
+     * Read a block into the buffer, the buffer is ready to be read afterwards.
+     * @param channel channel to read from
+     * @param position position of the block
+     * @param buffer buffer the size of a block
+     * @throws IOException error reading block
+     */
+    private static void readBlock(final FileChannel channel, final long position, final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+
+        int read;
+
+        do {
+            read = channel.read(buffer, position + buffer.position());
+        } while (read != -1 && buffer.hasRemaining());
+
+        buffer.flip();
+    }
+
+    /**
+     * Fill the buffer from the current position of the channel, the buffer is ready to be read afterwards.
+     * @param channel channel to read from
+     * @param buffer buffer to fill
+     * @return true if the buffer was filled, false if the end of the channel was reached first
+     * @throws IOException error reading
+     */
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+
+        int read;
+
+        do {
+            read = channel.read(buffer);
+        } while (read != -1 && buffer.hasRemaining());
+
+        buffer.flip();
+
+        return buffer.remaining() == buffer.capacity();
+    }
+
+    /**
+     * Old contents of the blocks being overwritten. The file starts with the old length and last modified time of
+     * the destination (-1 if it did not exist), followed by a record per block: position, length and contents.
+     * It is created when the first block is saved, each record is forced before its block is overwritten.
+     */
+    static final class Undo implements Closeable {
+        /** Size of the header. */
+        static final int HEADER_SIZE = Long.BYTES * 2;
+
+        /** Size of the position and length of a record. */
+        static final int RECORD_SIZE = Long.BYTES + Integer.BYTES;
+
+        /** Undo file. */
+        private final Path path;
+
+        /** Length of the destination before the update. */
+        private final long oldLength;
+
+        /** Last modified time of the destination before the update, -1 if it did not exist. */
+        private final long oldModified;
+
+        /** Undo file, null until the first block is saved. */
+        private FileChannel channel;
+
+        /**
+         * Constructor.
+         * @param path undo file
+         * @param oldLength length of the destination before the update
+         * @param oldModified last modified time of the destination before the update, -1 if it did not exist
+         */
+        Undo(final Path path, final long oldLength, final long oldModified) {
+            this.path = path;
+            this.oldLength = oldLength;
+            this.oldModified = oldModified;
+        }
+
+        /**
+         * Save the old contents of a block before it is overwritten.
+         * @param position position of the block
+         * @param old old contents, empty if the block is past the end of the destination, the position is not changed
+         * @throws IOException error writing the undo file
+         */
+        void save(final long position, final ByteBuffer old) throws IOException {
+            if (channel != null && ! old.hasRemaining()) {
+                //nothing to restore, the length in the header is enough
+                return;
+            }
+
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                this.write(ByteBuffer.allocate(HEADER_SIZE).putLong(oldLength).putLong(oldModified).flip());
+            }
+
+            if (old.hasRemaining()) {
+                this.write(ByteBuffer.allocate(RECORD_SIZE).putLong(position).putInt(old.remaining()).flip());
+                this.write(old.duplicate());
+            }
+
+            channel.force(false);
+        }
+
+        /**
+         * @param buffer bytes appended to the undo file
+         * @throws IOException error writing
+         */
+        private void write(final ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * @return true if a block was saved
+         */
+        boolean isOpen() {
+            return channel != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Checksums of a single block.
+     */
+    private static final class Block {
+        /** Number of bytes in the block. */
+        private final transient int length;
+
+        /** Weak checksum, cheap to compare. */
+        private final transient long weak;
+
+        /** Strong checksum in hex format, null if it has not been calculated. */
+        private final transient String strong;
+
+        /**
+         * Constructor.
+         * @param length number of bytes
+         * @param weak weak checksum
+         * @param strong strong checksum, null if it has not been calculated
+         */
+        Block(final int length, final long weak, final String strong) {
+            this.length = length;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * @param length number of bytes in a block of the source
+         * @param weak weak checksum of the block
+         * @return true if the block may be the same, the strong checksums decide
+         */
+        boolean matches(final int length, final long weak) {
+            return this.length == length && this.weak == weak;
+        }
+
+        /**
+         * @param buffer block, the position is not changed
+         * @return weak checksum
+         */
+        static long weak(final ByteBuffer buffer) {
+            final Adler32 adler = new Adler32();
+            adler.update(buffer.duplicate());
+
+            return adler.getValue();
+        }
+
+        /**
+         * @param buffer block, the position is not changed
+         * @return strong checksum in hex format
+         */
+        static String strong(final ByteBuffer buffer) {
+            final MessageDigest md5 = FileRecordCodec.getDigest(HashType.MD5);
+            md5.update(buffer.duplicate());
+
+            return Hex.encodeHexString(md5.digest());
+        }
+
+        /**
+         * @param line line from a signature file
+         * @return block
+         * @throws IOException invalid line
+         */
+        static Block parse(final String line) throws IOException {
+            final String[] fields = line.split(SEPARATOR);
+
+            if (fields.length != 3) {
+                throw new IOException("invalid signature " + line);
+            }
+
+            return new Block(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), UNKNOWN.equals(fields[2]) ? null : fields[2]);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Block that = (Block) o;
+            return length == that.length && weak == that.weak && Objects.equals(strong, that.strong);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(weak);
+        }
+
+        @Override
+        public String toString() {
+            return length + SEPARATOR + weak + SEPARATOR + (strong != null ? strong : UNKNOWN);
+        }
+    }
+
+}
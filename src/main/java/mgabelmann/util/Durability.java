@@ -0,0 +1,436 @@
+package mgabelmann.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How files that were written are made durable. Without a sync a power loss can leave a file that looks complete
+ * but holds zeros, forcing every file to disk makes that impossible but costs small files most of their throughput.
+ *
+ * <ul>
+ *     <li>{@link Policy#NONE} leaves it to the operating system.</li>
+ *     <li>{@link Policy#FILE} forces each file once it is written, the directories are forced when the run ends.</li>
+ *     <li>{@link Policy#GROUP} forces the files written and their directories together, once enough files or
+ *     bytes are waiting or the oldest has waited the interval.</li>
+ * </ul>
+ *
+ * A {@link Tracker} is opened per run and destination, it counts the time spent forcing files so the policies can
+ * be compared.
+ *
+ * @author Mike Gabelmann
+ */
+public final class Durability {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Durability.class);
+
+    /** Available policies. */
+    public enum Policy {
+        /** Never force files, fastest. */
+        NONE,
+
+        /** Force each file once it is written, slowest for small files. */
+        FILE,
+
+        /** Force files in groups. */
+        GROUP
+    }
+
+    /** Default number of files forced together. */
+    public static final int DEFAULT_GROUP_FILES = 64;
+
+    /** Default number of bytes forced together. */
+    public static final long DEFAULT_GROUP_BYTES = ByteConversion.MEGABYTES.getSize() * 256;
+
+    /** Default longest time a file waits to be forced. */
+    public static final Duration DEFAULT_GROUP_INTERVAL = Duration.ofSeconds(5);
+
+    /** Files are never forced. */
+    public static final Durability NONE = new Durability(Policy.NONE, 1, 0, Duration.ZERO);
+
+    /** Each file is forced once it is written. */
+    public static final Durability FILE = new Durability(Policy.FILE, 1, 0, Duration.ZERO);
+
+    /** Policy applied. */
+    private final Policy policy;
+
+    /** Number of files forced together. */
+    private final int groupFiles;
+
+    /** Number of bytes forced together. */
+    private final long groupBytes;
+
+    /** Longest time a file waits to be forced. */
+    private final Duration groupInterval;
+
+    /**
+     * Constructor.
+     * @param policy policy applied
+     * @param groupFiles number of files forced together
+     * @param groupBytes number of bytes forced together
+     * @param groupInterval longest time a file waits to be forced
+     */
+    private Durability(final Policy policy, final int groupFiles, final long groupBytes, final Duration groupInterval) {
+        this.policy = policy;
+        this.groupFiles = groupFiles;
+        this.groupBytes = groupBytes;
+        this.groupInterval = groupInterval;
+    }
+
+    /**
+     * @return files are forced in groups of the default size and interval
+     */
+    public static Durability group() {
+        return group(DEFAULT_GROUP_FILES, DEFAULT_GROUP_BYTES, DEFAULT_GROUP_INTERVAL);
+    }
+
+    /**
+     * Files are forced together once any limit is reached, the interval is checked as files are written.
+     * @param files number of files forced together
+     * @param bytes number of bytes forced together
+     * @param interval longest time a file waits to be forced
+     * @return files are forced in groups
+     */
+    public static Durability group(final int files, final long bytes, final Duration interval) {
+        if (files < 1) {
+            throw new IllegalArgumentException("files must be at least 1");
+
+        } else if (bytes < 1) {
+            throw new IllegalArgumentException("bytes must be at least 1");
+
+        } else if (interval == null || interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        return new Durability(Policy.GROUP, files, bytes, interval);
+    }
+
+    /**
+     * @return policy applied
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return number of files forced together
+     */
+    public int getGroupFiles() {
+        return groupFiles;
+    }
+
+    /**
+     * @return number of bytes forced together
+     */
+    public long getGroupBytes() {
+        return groupBytes;
+    }
+
+    /**
+     * @return longest time a file waits to be forced
+     */
+    public Duration getGroupInterval() {
+        return groupInterval;
+    }
+
+    /**
+     * @param root directory the run writes to, directories from each file written up to it are forced so new
+     *             directories are not lost
+     * @return tracker for the files written by a run
+     */
+    public Tracker open(final File root) {
+        if (root == null) {
+            throw new IllegalArgumentException("root cannot be null");
+        }
+
+        return new Tracker(this, root.toPath().toAbsolutePath());
+    }
+
+    @Override
+    public String toString() {
+        return "Durability{" +
+                "policy=" + policy +
+                (policy == Policy.GROUP ? ", groupFiles=" + groupFiles + ", groupBytes=" + ByteConversion.format(groupBytes) + ", groupInterval=" + groupInterval : "") +
+                '}';
+    }
+
+    /**
+     * Force a file or directory to disk.
+     * @param path file or directory
+     * @param directory true if the path is a directory
+     * @throws IOException error forcing a file
+     */
+    private static void force(final Path path, final boolean directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+
+        } catch (IOException ioe) {
+            //directories cannot be opened on every platform, their entries are then left to the file system
+            if (! directory) {
+                throw ioe;
+            }
+
+            LOGGER.debug("DIR: {} unable to force - {}", path, ioe.toString());
+        }
+    }
+
+    /**
+     * Makes the files written by a run durable according to the policy. Flushing forces every file that is waiting,
+     * it is called before anything that describes the files (a manifest or journal) is written.
+     */
+    public static final class Tracker implements Flushable, Closeable {
+        /** Policy applied. */
+        private final Durability durability;
+
+        /** Directory the run writes to. */
+        private final Path root;
+
+        /** Guards the files and directories waiting. */
+        private final Object lock = new Object();
+
+        /** Files waiting to be forced. */
+        private final Set<Path> files = new LinkedHashSet<>();
+
+        /** Directories waiting to be forced. */
+        private final Set<Path> directories = new LinkedHashSet<>();
+
+        /** Bytes waiting to be forced. */
+        private long pendingBytes = 0;
+
+        /** Time the oldest file waiting was written. */
+        private long pendingSince = 0;
+
+        /** Time the tracker was opened. */
+        private final long opened = System.nanoTime();
+
+        /** Time the tracker was closed, 0 while open. */
+        private volatile long closed = 0;
+
+        /** Files written. */
+        private final LongAdder written = new LongAdder();
+
+        /** Bytes written. */
+        private final LongAdder bytes = new LongAdder();
+
+        /** Files forced. */
+        private final LongAdder forced = new LongAdder();
+
+        /** Number of times files were forced. */
+        private final LongAdder syncs = new LongAdder();
+
+        /** Time spent forcing in nanoseconds. */
+        private final LongAdder syncNanos = new LongAdder();
+
+        /**
+         * Constructor.
+         * @param durability policy applied
+         * @param root directory the run writes to
+         */
+        Tracker(final Durability durability, final Path root) {
+            this.durability = durability;
+            this.root = root;
+        }
+
+        /**
+         * @return policy applied
+         */
+        public Durability getDurability() {
+            return durability;
+        }
+
+        /**
+         * A file was written and closed, its last modified time is already set.
+         * @param file file written
+         * @throws IOException error forcing files
+         */
+        public void written(final File file) throws IOException {
+            final long size = file.length();
+
+            written.increment();
+            bytes.add(size);
+
+            switch (durability.policy) {
+            case FILE:
+                final long start = System.nanoTime();
+                force(file.toPath(), false);
+                this.synced(1, start);
+
+                synchronized (lock) {
+                    this.addDirectories(file);
+                }
+
+                break;
+
+            case GROUP:
+                synchronized (lock) {
+                    if (files.isEmpty()) {
+                        pendingSince = System.nanoTime();
+                    }
+
+                    files.add(file.toPath());
+                    this.addDirectories(file);
+                    pendingBytes += size;
+
+                    if (files.size() >= durability.groupFiles || pendingBytes >= durability.groupBytes
+                        || System.nanoTime() - pendingSince >= durability.groupInterval.toNanos()) {
+
+                        this.flush();
+                    }
+                }
+
+                break;
+
+            case NONE:
+            default:
+                //left to the operating system
+            }
+        }
+
+        /**
+         * @param file file written, its directories up to the root are forced with it
+         */
+        private void addDirectories(final File file) {
+            Path directory = file.toPath().toAbsolutePath().getParent();
+
+            while (directory != null && directories.add(directory) && directory.startsWith(root) && ! directory.equals(root)) {
+                directory = directory.getParent();
+            }
+        }
+
+        /**
+         * Force every file and directory waiting.
+         * @throws IOException error forcing a file
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                if (files.isEmpty() && directories.isEmpty()) {
+                    return;
+                }
+
+                final long start = System.nanoTime();
+
+                for (Path file : files) {
+                    force(file, false);
+                }
+
+                for (Path directory : directories) {
+                    force(directory, true);
+                }
+
+                if (! files.isEmpty()) {
+                    this.synced(files.size(), start);
+
+                } else {
+                    syncNanos.add(System.nanoTime() - start);
+                }
+
+                files.clear();
+                directories.clear();
+                pendingBytes = 0;
+            }
+        }
+
+        /**
+         * Force everything waiting, the totals are kept.
+         * @throws IOException error forcing a file
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                this.flush();
+
+            } finally {
+                if (closed == 0) {
+                    closed = System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * @param count files forced together
+         * @param start time forcing started
+         */
+        private void synced(final int count, final long start) {
+            forced.add(count);
+            syncs.increment();
+            syncNanos.add(System.nanoTime() - start);
+        }
+
+        /**
+         * @return files written
+         */
+        public long getFiles() {
+            return written.sum();
+        }
+
+        /**
+         * @return bytes written
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return files forced
+         */
+        public long getForced() {
+            return forced.sum();
+        }
+
+        /**
+         * @return number of times files were forced, once per file or once per group
+         */
+        public long getSyncs() {
+            return syncs.sum();
+        }
+
+        /**
+         * @return time spent forcing files and directories in nanoseconds, summed over every thread
+         */
+        public long getSyncNanos() {
+            return syncNanos.sum();
+        }
+
+        /**
+         * @return time from opening to closing the tracker, or until now while it is open, in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return (closed != 0 ? closed : System.nanoTime()) - opened;
+        }
+
+        /**
+         * @return bytes written per second of the run, including the time spent forcing, 0 if nothing was written
+         */
+        public long getThroughput() {
+            final long n = this.getElapsedNanos();
+
+            return n == 0 ? 0 : (long) (bytes.sum() * 1_000_000_000d / n);
+        }
+
+        @Override
+        public String toString() {
+            return "Tracker{" +
+                    "policy=" + durability.policy +
+                    ", files=" + this.getFiles() +
+                    ", bytes=" + ByteConversion.format(this.getBytes()) +
+                    ", syncs=" + this.getSyncs() +
+                    ", syncMillis=" + TimeUnit.NANOSECONDS.toMillis(this.getSyncNanos()) +
+                    ", throughput=" + ByteConversion.format(this.getThroughput()) + "/s" +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+package mgabelmann.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies a file to several destinations while reading it once. The calling thread reads the source into a fixed
+ * pool of buffers and hashes it, each destination has its own thread writing the buffers in order. A buffer is
+ * reused once every destination has written it, so a slow destination falls behind by at most the pool and then
+ * holds back the read, it never holds more memory.
+ *
+ * Each destination is written to a temporary file next to it ({@link #getTempFile(File)}) that is
+ * renamed over the destination once it has been written and closed, so an interrupted or failed copy never
+ * damages the existing copy on any destination. A destination that fails stops writing but keeps releasing
+ * buffers, the other destinations are completed and the failure is reported in the result.
+ *
+ * @author Mike Gabelmann
+ */
+public final class FanOutCopy {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(FanOutCopy.class);
+
+    /** Default size of each buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /** Default number of buffers, the furthest a destination can fall behind the read. */
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+
+    /** Suffix of the temporary file each destination is written to, distinct from a resumable copy's. */
+    public static final String TEMP_SUFFIX = ".fanout";
+
+    /** Marks the end of the source for the writers. */
+    private static final Block END = new Block(null, 0);
+
+    /** Do not instantiate this class. */
+    private FanOutCopy() {}
+
+    /**
+     * @param dest destination file
+     * @return temporary file the destination is written to
+     */
+    public static Path getTempFile(final File dest) {
+        return dest.toPath().resolveSibling("." + dest.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Copy a file to several destinations, reading it once.
+     * @param source file to copy
+     * @param dests new files, replaced once they have been written
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type, null if no checksum is needed
+     * @param bufferSize size of each buffer in bytes
+     * @param bufferCount number of buffers
+     * @return outcome
+     * @throws IOException error reading the source
+     */
+    public static Result copyFile(
+        final File source,
+        final List<File> dests,
+        final boolean preserveLastModified,
+        final HashType type,
+        final int bufferSize,
+        final int bufferCount)
+        throws IOException {
+
+        if (dests == null || dests.isEmpty()) {
+            throw new IllegalArgumentException("dests cannot be null or empty");
+
+        } else if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+
+        } else if (bufferCount < 1) {
+            throw new IllegalArgumentException("bufferCount must be at least 1");
+        }
+
+        final MessageDigest digest = type != null ? FileRecordCodec.getDigest(type) : null;
+        final Map<File, IOException> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        final List<Writer> writers = new ArrayList<>();
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(bufferCount);
+
+        for (File dest : dests) {
+            writers.add(new Writer(dest, free, failures));
+        }
+
+        boolean complete = false;
+
+        try {
+            fanOut(source, writers, free, digest, bufferSize, bufferCount);
+
+            for (File dest : dests) {
+                if (! failures.containsKey(dest)) {
+                    replace(source, dest, preserveLastModified, failures);
+                }
+            }
+
+            complete = true;
+
+        } finally {
+            //a failed or interrupted copy leaves the destinations as they were
+            for (File dest : dests) {
+                if (! complete || failures.containsKey(dest)) {
+                    try {
+                        Files.deleteIfExists(getTempFile(dest));
+
+                    } catch (IOException ioe) {
+                        LOGGER.warn("FILE: {} unable to delete temporary file - {}", dest.getAbsolutePath(), ioe.toString());
+                    }
+                }
+            }
+        }
+
+        LOGGER.trace("FILE: {} copied to {} destinations, {} failed", source.getAbsolutePath(), dests.size(), failures.size());
+
+        return new Result(digest != null ? Hex.encodeHexString(digest.digest()) : null, failures);
+    }
+
+    /**
+     * Read the source once into the pool of buffers and hand every buffer to each writer.
+     * @param source file to copy
+     * @param writers writer of each destination
+     * @param free pool of buffers
+     * @param digest checksum of the source, updated as it is read, null if no checksum is needed
+     * @param bufferSize size of each buffer in bytes
+     * @param bufferCount number of buffers
+     * @throws IOException error reading the source
+     */
+    private static void fanOut(
+        final File source,
+        final List<Writer> writers,
+        final BlockingQueue<ByteBuffer> free,
+        final MessageDigest digest,
+        final int bufferSize,
+        final int bufferCount)
+        throws IOException {
+
+        final List<Path> paths = new ArrayList<>();
+        paths.add(source.toPath());
+        writers.forEach(writer -> paths.add(writer.dest.toPath()));
+
+        //buffers are allocated as needed, small files only ever use one
+        int allocated = 0;
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(paths.toArray(new Path[0]));
+             TaskScope scope = new TaskScope(writers.size());
+             FileInputStream fis = new FileInputStream(source)) {
+
+            for (Writer writer : writers) {
+                scope.forkUnlimited(() -> writer.run(permit));
+            }
+
+            try {
+                final FileChannel channel = fis.getChannel();
+
+                while (true) {
+                    ByteBuffer buffer = free.poll();
+
+                    if (buffer == null && allocated < bufferCount) {
+                        buffer = ByteBuffer.allocateDirect(bufferSize);
+                        allocated++;
+
+                    } else if (buffer == null) {
+                        buffer = free.take();
+                    }
+
+                    buffer.clear();
+
+                    while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                        //fill the buffer so every block but the last is full
+                    }
+
+                    buffer.flip();
+
+                    if (! buffer.hasRemaining()) {
+                        free.add(buffer);
+                        break;
+                    }
+
+                    permit.read(source.toPath(), buffer.remaining());
+                    if (digest != null) {
+                        digest.update(buffer.duplicate());
+                    }
+
+                    final Block block = new Block(buffer, writers.size());
+
+                    for (Writer writer : writers) {
+                        writer.queue.add(block);
+                    }
+                }
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for a buffer");
+
+            } finally {
+                for (Writer writer : writers) {
+                    writer.queue.add(END);
+                }
+            }
+
+            scope.join();
+        }
+    }
+
+    /**
+     * Replace a destination with the temporary file it was written to.
+     * @param source file copied
+     * @param dest destination
+     * @param preserveLastModified preserve last modified date
+     * @param failures failures by destination, a failure to replace the destination is added
+     */
+    private static void replace(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final Map<File, IOException> failures) {
+
+        final Path tmp = getTempFile(dest);
+
+        try {
+            if (preserveLastModified && ! tmp.toFile().setLastModified(source.lastModified())) {
+                LOGGER.warn("FILE: {} unable to set last modified date", dest.getAbsolutePath());
+            }
+
+            try {
+                Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } catch (IOException ioe) {
+            LOGGER.warn("FILE: {} unable to replace - {}", dest.getAbsolutePath(), ioe.toString());
+            failures.put(dest, ioe);
+        }
+    }
+
+    /**
+     * A buffer read from the source, returned to the pool once every destination has written it.
+     */
+    private static final class Block {
+        /** Data, positioned at the start. */
+        private final ByteBuffer buffer;
+
+        /** Destinations that have not written the buffer. */
+        private final AtomicInteger remaining;
+
+        /**
+         * Constructor.
+         * @param buffer data
+         * @param remaining destinations that will write the buffer
+         */
+        Block(final ByteBuffer buffer, final int remaining) {
+            this.buffer = buffer;
+            this.remaining = new AtomicInteger(remaining);
+        }
+    }
+
+    /**
+     * Writes blocks to one destination.
+     */
+    private static final class Writer {
+        /** Destination. */
+        private final File dest;
+
+        /** Blocks to write, never longer than the pool. */
+        private final BlockingQueue<Block> queue = new LinkedBlockingQueue<>();
+
+        /** Pool the buffers are returned to. */
+        private final BlockingQueue<ByteBuffer> free;
+
+        /** Failures by destination. */
+        private final Map<File, IOException> failures;
+
+        /**
+         * Constructor.
+         * @param dest destination
+         * @param free pool the buffers are returned to
+         * @param failures failures by destination
+         */
+        Writer(final File dest, final BlockingQueue<ByteBuffer> free, final Map<File, IOException> failures) {
+            this.dest = dest;
+            this.free = free;
+            this.failures = failures;
+        }
+
+        /**
+         * Write every block to the temporary file of the destination until the end of the source. Failures are
+         * recorded, never thrown, so the other destinations are not cancelled.
+         * @param permit I/O permit
+         * @throws InterruptedIOException interrupted waiting for a block
+         */
+        void run(final IoScheduler.Permit permit) throws InterruptedIOException {
+            FileOutputStream fos = null;
+
+            try {
+                while (true) {
+                    final Block block = queue.take();
+
+                    if (block == END) {
+                        break;
+                    }
+
+                    try {
+                        if (! failures.containsKey(dest)) {
+                            if (fos == null) {
+                                fos = new FileOutputStream(getTempFile(dest).toFile());
+                            }
+
+                            final ByteBuffer data = block.buffer.duplicate();
+                            permit.write(dest.toPath(), data.remaining());
+
+                            while (data.hasRemaining()) {
+                                fos.getChannel().write(data);
+                            }
+                        }
+
+                    } catch (IOException ioe) {
+                        LOGGER.warn("FILE: {} unable to write - {}", dest.getAbsolutePath(), ioe.toString());
+                        failures.put(dest, ioe);
+
+                    } finally {
+                        if (block.remaining.decrementAndGet() == 0) {
+                            free.add(block.buffer);
+                        }
+                    }
+                }
+
+                if (fos == null && ! failures.containsKey(dest)) {
+                    //empty source
+                    fos = new FileOutputStream(getTempFile(dest).toFile());
+                }
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted writing " + dest.getAbsolutePath());
+
+            } catch (IOException ioe) {
+                failures.put(dest, ioe);
+
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+
+                    } catch (IOException ioe) {
+                        failures.putIfAbsent(dest, ioe);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Outcome of a copy.
+     */
+    public static final class Result {
+        /** Checksum of the source. */
+        private final String checksum;
+
+        /** Destinations that could not be written and why. */
+        private final Map<File, IOException> failures;
+
+        /**
+         * Constructor.
+         * @param checksum checksum of the source in hex format
+         * @param failures destinations that could not be written
+         */
+        Result(final String checksum, final Map<File, IOException> failures) {
+            this.checksum = checksum;
+            this.failures = Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+        }
+
+        /**
+         * @return checksum of the source in hex format, null if no checksum was requested
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * @return destinations that could not be written and why, in the order given
+         */
+        public Map<File, IOException> getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return true if every destination was written
+         */
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "checksum='" + checksum + '\'' +
+                    ", failures=" + failures.keySet() +
+                    '}';
+        }
+    }
+
+}
@@ -1,10 +1,19 @@
 package mgabelmann.util;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import mgabelmann.photo.workflow.HashType;
 import mgabelmann.photo.workflow.io.FileRecordCodec;
@@ -24,7 +33,8 @@ public final class FileUtil {
     private FileUtil() {}
     
     /**
-     * Copy a single file. Ensures last modified date remains the same.
+     * Copy a single file. Ensures last modified date remains the same. The strategy is chosen by the shared
+     * {@link CopyEngine} from the file size.
      * @param source file to copy
      * @param dest new file
      * @param preserveLastModified preserve last modified date
@@ -35,33 +45,31 @@ public final class FileUtil {
         final File dest,
         final boolean preserveLastModified)
         throws IOException {
-        
-        //create a new file if it doesnt exist
-        if (! dest.exists() && ! dest.createNewFile()) {
-            throw new IOException("could not create new file - " + dest.getAbsolutePath());
-        }
-       
-        try (FileInputStream fis = new FileInputStream(source);
-        	 FileOutputStream fos = new FileOutputStream(dest)) {
-        	
-        	FileChannel sourceChannel = fis.getChannel();
-            FileChannel destChannel = fos.getChannel();
-            
-            destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
-          
-            sourceChannel.close();
-            destChannel.close();
-        	
-        } finally {
-        	LOGGER.trace("closed channels and streams");
-        }
-       
-        //preserve last modified date (we check this)
-        if (preserveLastModified && ! dest.setLastModified(source.lastModified())) {
-            LOGGER.warn("FILE: {} unable to set last modified date", dest.getAbsolutePath());
-        }
+
+        CopyEngine.getInstance().copy(source, dest, preserveLastModified, null);
     }
     
+    /**
+     * Copy a single file and calculate the checksum of the source while it is being read, this avoids reading
+     * the source a second time when the copy is verified. The strategy is chosen by the shared
+     * {@link CopyEngine} from the file size.
+     * @param source file to copy
+     * @param dest new file
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type
+     * @return checksum of the source in hex format
+     * @throws IOException error copying file
+     */
+    public static String copyFile(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type)
+        throws IOException {
+
+        return CopyEngine.getInstance().copy(source, dest, preserveLastModified, type).getChecksum();
+    }
+
     /**
      * Verify the copy succeeded by performing a checksum on both files and comparing them.
      * @param source source file
@@ -82,6 +90,71 @@ public final class FileUtil {
         return localCheck.equals(newCheck);
     }
     
+    /**
+     * List the immediate contents of a directory along with their attributes. The attributes are read
+     * while the directory is being listed, on Windows (and SMB shares) this is a single round trip
+     * instead of one per file. Entries that cannot be read are logged and left out, use
+     * {@link #listAttributes(Path, Map)} when an incomplete listing matters. Symbolic links to files are listed with
+     * the attributes of the file they point to, links to directories and broken links are logged and left out so a
+     * link can never lead a backup into a cycle.
+     * @param dir directory to list
+     * @return entries sorted by name, empty if the directory does not exist
+     * @throws IOException error listing directory
+     */
+    public static SortedMap<String, BasicFileAttributes> listAttributes(final Path dir) throws IOException {
+        return listAttributes(dir, new HashMap<>());
+    }
+
+    /**
+     * List the immediate contents of a directory along with their attributes, see {@link #listAttributes(Path)}.
+     * @param dir directory to list
+     * @param failures entries that could not be read and why, the directory itself if it could not be opened
+     * @return entries sorted by name, empty if the directory does not exist
+     * @throws IOException error listing directory
+     */
+    public static SortedMap<String, BasicFileAttributes> listAttributes(final Path dir, final Map<Path, IOException> failures) throws IOException {
+        if (! Files.isDirectory(dir)) {
+            return Collections.emptySortedMap();
+        }
+
+        final SortedMap<String, BasicFileAttributes> entries = new TreeMap<>();
+
+        Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                if (! attrs.isSymbolicLink()) {
+                    entries.put(file.getFileName().toString(), attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                try {
+                    final BasicFileAttributes target = Files.readAttributes(file, BasicFileAttributes.class);
+
+                    if (target.isDirectory()) {
+                        LOGGER.info("DIR: {} symbolic link to a directory - skipping", file);
+
+                    } else {
+                        entries.put(file.getFileName().toString(), target);
+                    }
+
+                } catch (IOException ie) {
+                    LOGGER.warn("FILE: {} broken symbolic link - skipping", file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+                LOGGER.warn("FILE: {} unable to read attributes - {}", file, exc.getMessage());
+                failures.put(file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return entries;
+    }
+
     /**
      * Given a file determine its file extension.
      * @param file file to process
@@ -0,0 +1,561 @@
+package mgabelmann.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules file I/O by device. A device is identified by a configured root directory, paths that are not under a
+ * configured root belong to a device for their file system root (eg: a drive letter) that has no limits.
+ *
+ * Each device limits the number of files being read or written at the same time (eg: 1 for a spinning disk, 8 for
+ * NVMe) and can cap read and write bandwidth. All I/O can be paused, or switched to a low priority mode that only
+ * allows one file per device and caps bandwidth so other applications remain responsive.
+ *
+ * Files are accessed by acquiring a {@link Permit} for every device involved, the permit is then used to throttle
+ * the bytes read and written.
+ *
+ * Threads wait on a lock and condition rather than a monitor, so a virtual thread waiting for a device or a paused
+ * scheduler does not pin its carrier thread.
+ *
+ * @author Mike Gabelmann
+ */
+public final class IoScheduler {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoScheduler.class);
+
+    /** Shared scheduler used by FileUtil and the workflows. */
+    private static final IoScheduler INSTANCE = new IoScheduler();
+
+    /** Value used for no limit. */
+    public static final int UNLIMITED = 0;
+
+    /** Default bandwidth per device in low priority mode. */
+    public static final long DEFAULT_LOW_PRIORITY_BYTES_PER_SECOND = ByteConversion.MEGABYTES.getSize() * 10;
+
+    /** Guards all device state. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a device is released or the scheduler is resumed or reconfigured. */
+    private final Condition changed = lock.newCondition();
+
+    /** Configured devices by root. */
+    private final Map<Path, Device> devices = new HashMap<>();
+
+    /** Devices for paths outside any configured root, by file system root. */
+    private final Map<Path, Device> defaults = new HashMap<>();
+
+    /** Is I/O paused. */
+    private boolean paused = false;
+
+    /** Is low priority mode enabled. */
+    private volatile boolean lowPriority = false;
+
+    /** Bandwidth per device in low priority mode. */
+    private volatile long lowPriorityBytesPerSecond = DEFAULT_LOW_PRIORITY_BYTES_PER_SECOND;
+
+
+    /**
+     * @return shared scheduler
+     */
+    public static IoScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Configure the device for a root directory, replacing any previous configuration.
+     * @param root root directory of the device
+     * @param concurrency number of files accessed at the same time, UNLIMITED for no limit
+     * @param readBytesPerSecond read bandwidth, UNLIMITED for no limit
+     * @param writeBytesPerSecond write bandwidth, UNLIMITED for no limit
+     */
+    public void configure(final Path root, final int concurrency, final long readBytesPerSecond, final long writeBytesPerSecond) {
+        if (root == null) {
+            throw new IllegalArgumentException("root cannot be null");
+
+        } else if (concurrency < 0 || readBytesPerSecond < 0 || writeBytesPerSecond < 0) {
+            throw new IllegalArgumentException("limits cannot be negative");
+        }
+
+        lock.lock();
+
+        try {
+            devices.put(normalize(root), new Device(root.toString(), concurrency, readBytesPerSecond, writeBytesPerSecond));
+
+        } finally {
+            lock.unlock();
+        }
+
+        LOGGER.info("DEVICE: {} concurrency={} read={}/s write={}/s", root, concurrency,
+            ByteConversion.format(readBytesPerSecond), ByteConversion.format(writeBytesPerSecond));
+    }
+
+    /**
+     * Remove all device configuration.
+     */
+    public void reset() {
+        lock.lock();
+
+        try {
+            devices.clear();
+            defaults.clear();
+            paused = false;
+            lowPriority = false;
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pause I/O. New permits are not granted and transfers in progress wait at their next read or write.
+     */
+    public void pause() {
+        lock.lock();
+
+        try {
+            paused = true;
+
+        } finally {
+            lock.unlock();
+        }
+
+        LOGGER.info("I/O paused");
+    }
+
+    /**
+     * Resume paused I/O.
+     */
+    public void resume() {
+        lock.lock();
+
+        try {
+            paused = false;
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+
+        LOGGER.info("I/O resumed");
+    }
+
+    /**
+     * @return true if I/O is paused
+     */
+    public boolean isPaused() {
+        lock.lock();
+
+        try {
+            return paused;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lowPriority when true only one file per device is accessed and bandwidth is capped
+     */
+    public void setLowPriority(final boolean lowPriority) {
+        lock.lock();
+
+        try {
+            this.lowPriority = lowPriority;
+            changed.signalAll();
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if low priority mode is enabled
+     */
+    public boolean isLowPriority() {
+        return lowPriority;
+    }
+
+    /**
+     * @param lowPriorityBytesPerSecond bandwidth per device in low priority mode
+     */
+    public void setLowPriorityBytesPerSecond(final long lowPriorityBytesPerSecond) {
+        if (lowPriorityBytesPerSecond < 1) {
+            throw new IllegalArgumentException("lowPriorityBytesPerSecond must be at least 1");
+        }
+
+        this.lowPriorityBytesPerSecond = lowPriorityBytesPerSecond;
+    }
+
+    /**
+     * Wait until every device of the given paths can accept another file.
+     * @param paths files that will be accessed
+     * @return permit that must be closed when access is complete
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    public Permit acquire(final Path... paths) throws InterruptedIOException {
+        lock.lock();
+
+        try {
+            final Set<Device> required = new LinkedHashSet<>();
+
+            for (Path path : paths) {
+                required.add(this.getDevice(path));
+            }
+
+            try {
+                while (paused || ! this.available(required)) {
+                    changed.await();
+                }
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for device");
+            }
+
+            for (Device device : required) {
+                device.active++;
+            }
+
+            final List<Device> list = new ArrayList<>(required);
+            final Map<Path, Device> byPath = new HashMap<>();
+
+            for (int i = 0; i < paths.length; i++) {
+                byPath.put(paths[i], this.getDevice(paths[i]));
+            }
+
+            return new Permit(list, byPath);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param devices devices
+     * @return true if every device can accept another file
+     */
+    private boolean available(final Collection<Device> devices) {
+        for (Device device : devices) {
+            final int limit = lowPriority ? 1 : device.concurrency;
+
+            if (limit != UNLIMITED && device.active >= limit) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the device for a path, must be called while holding the lock.
+     * @param path path
+     * @return device
+     */
+    private Device getDevice(final Path path) {
+        final Path normalized = normalize(path);
+        Device found = null;
+        int depth = -1;
+
+        for (Map.Entry<Path, Device> entry : devices.entrySet()) {
+            if (normalized.startsWith(entry.getKey()) && entry.getKey().getNameCount() > depth) {
+                found = entry.getValue();
+                depth = entry.getKey().getNameCount();
+            }
+        }
+
+        if (found == null) {
+            final Path root = normalized.getRoot();
+            found = defaults.computeIfAbsent(root, r -> new Device(String.valueOf(r), UNLIMITED, UNLIMITED, UNLIMITED));
+        }
+
+        return found;
+    }
+
+    /**
+     * Wait while I/O is paused.
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    private void awaitResume() throws InterruptedIOException {
+        lock.lock();
+
+        try {
+            while (paused) {
+                changed.await();
+            }
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while paused");
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param path path
+     * @return absolute, normalized path
+     */
+    private static Path normalize(final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Access to one or more devices.
+     */
+    public final class Permit implements AutoCloseable {
+        /** Devices held. */
+        private final transient List<Device> held;
+
+        /** Device of each path the permit was acquired for. */
+        private final transient Map<Path, Device> byPath;
+
+        /** Has the permit been released. */
+        private transient boolean closed = false;
+
+        /**
+         * Constructor.
+         * @param held devices held
+         * @param byPath device of each path
+         */
+        Permit(final List<Device> held, final Map<Path, Device> byPath) {
+            this.held = held;
+            this.byPath = byPath;
+        }
+
+        /**
+         * Wait until the bytes may be read from the path.
+         * @param path path the permit was acquired for
+         * @param bytes number of bytes
+         * @throws InterruptedIOException interrupted while waiting
+         */
+        public void read(final Path path, final long bytes) throws InterruptedIOException {
+            this.throttle(path, bytes, true);
+        }
+
+        /**
+         * Wait until the bytes may be written to the path.
+         * @param path path the permit was acquired for
+         * @param bytes number of bytes
+         * @throws InterruptedIOException interrupted while waiting
+         */
+        public void write(final Path path, final long bytes) throws InterruptedIOException {
+            this.throttle(path, bytes, false);
+        }
+
+        /**
+         * Wrap a stream so reads are throttled.
+         * @param path path the stream reads
+         * @param in stream
+         * @return throttled stream
+         */
+        public InputStream throttle(final Path path, final InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+
+                    if (b != -1) {
+                        Permit.this.read(path, 1);
+                    }
+
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final int count = super.read(b, off, len);
+
+                    if (count > 0) {
+                        Permit.this.read(path, count);
+                    }
+
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * Throttle a transfer.
+         * @param path path
+         * @param bytes number of bytes
+         * @param read true if reading, false if writing
+         * @throws InterruptedIOException interrupted while waiting
+         */
+        private void throttle(final Path path, final long bytes, final boolean read) throws InterruptedIOException {
+            awaitResume();
+
+            final Device device = byPath.get(path);
+
+            if (device == null) {
+                throw new IllegalArgumentException("permit not acquired for " + path);
+            }
+
+            final long rate = lowPriority ? lowPriorityBytesPerSecond : UNLIMITED;
+            long wait = Math.max(
+                (read ? device.read : device.write).reserve(bytes),
+                (read ? device.lowPriorityRead : device.lowPriorityWrite).reserve(bytes, rate));
+
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while throttled");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+
+            try {
+                if (! closed) {
+                    closed = true;
+
+                    for (Device device : held) {
+                        device.active--;
+                    }
+
+                    changed.signalAll();
+                }
+
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Limits for a single device.
+     */
+    private static final class Device {
+        /** Name used for logging. */
+        private final transient String name;
+
+        /** Number of files accessed at the same time, UNLIMITED for no limit. */
+        private final transient int concurrency;
+
+        /** Read bandwidth. */
+        private final transient TokenBucket read;
+
+        /** Write bandwidth. */
+        private final transient TokenBucket write;
+
+        /** Read bandwidth in low priority mode. */
+        private final transient TokenBucket lowPriorityRead;
+
+        /** Write bandwidth in low priority mode. */
+        private final transient TokenBucket lowPriorityWrite;
+
+        /** Number of files being accessed, guarded by the scheduler lock. */
+        private transient int active = 0;
+
+        /**
+         * Constructor.
+         * @param name name
+         * @param concurrency number of files accessed at the same time
+         * @param readBytesPerSecond read bandwidth
+         * @param writeBytesPerSecond write bandwidth
+         */
+        Device(final String name, final int concurrency, final long readBytesPerSecond, final long writeBytesPerSecond) {
+            this.name = name;
+            this.concurrency = concurrency;
+            this.read = new TokenBucket(readBytesPerSecond);
+            this.write = new TokenBucket(writeBytesPerSecond);
+            this.lowPriorityRead = new TokenBucket(UNLIMITED);
+            this.lowPriorityWrite = new TokenBucket(UNLIMITED);
+        }
+
+        @Override
+        public String toString() {
+            return "Device{" + "name='" + name + '\'' + ", concurrency=" + concurrency + ", active=" + active + '}';
+        }
+    }
+
+    /**
+     * Token bucket that allows one second of burst. Transfers larger than the bucket borrow against future tokens
+     * so a single large read is delayed rather than refused.
+     */
+    private static final class TokenBucket {
+        /** Bytes per second, UNLIMITED for no limit. */
+        private final transient long rate;
+
+        /** Guards the tokens. */
+        private final transient ReentrantLock lock = new ReentrantLock();
+
+        /** Available bytes, negative when borrowed. */
+        private transient double tokens;
+
+        /** Time tokens were last added. */
+        private transient long updated;
+
+        /**
+         * Constructor.
+         * @param rate bytes per second
+         */
+        TokenBucket(final long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.updated = System.nanoTime();
+        }
+
+        /**
+         * Take tokens at the configured rate.
+         * @param bytes number of bytes
+         * @return nanoseconds to wait before transferring
+         */
+        long reserve(final long bytes) {
+            return this.reserve(bytes, rate);
+        }
+
+        /**
+         * Take tokens at the given rate.
+         * @param bytes number of bytes
+         * @param bytesPerSecond rate, UNLIMITED for no limit
+         * @return nanoseconds to wait before transferring
+         */
+        long reserve(final long bytes, final long bytesPerSecond) {
+            lock.lock();
+
+            try {
+                final long now = System.nanoTime();
+
+                if (bytesPerSecond == UNLIMITED) {
+                    updated = now;
+                    tokens = 0;
+                    return 0;
+                }
+
+                tokens = Math.min(bytesPerSecond, tokens + (now - updated) * bytesPerSecond / 1e9);
+                updated = now;
+                tokens -= bytes;
+
+                return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+package mgabelmann.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies large files in chunks so an interrupted copy can be resumed. Data is written to a temporary file next
+ * to the destination and a progress file records the checksum of each chunk once it has been written and flushed
+ * to disk. When the copy is restarted the recorded chunks are checked against the source and the temporary file
+ * and the copy continues after the last chunk that matches. Once complete the temporary file is renamed to the
+ * destination, so the destination is never left partially written.
+ *
+ * The chunk size only decides how much is copied again after an interruption, data is read and written through a
+ * much smaller buffer so large chunks do not cost memory.
+ *
+ * @author Mike Gabelmann
+ */
+public final class ResumableCopy {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableCopy.class);
+
+    /** Default chunk size. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** Default size of the buffer data is copied through, bandwidth limits are applied per buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /** Suffix of the temporary file. */
+    public static final String TEMP_SUFFIX = ".part";
+
+    /** Suffix of the progress file. */
+    public static final String PROGRESS_SUFFIX = ".part.progress";
+
+    /** Field separator in the progress file. */
+    private static final String SEPARATOR = "\t";
+
+    /** Do not instantiate this class. */
+    private ResumableCopy() {}
+
+    /**
+     * Copy a file, resuming a previous copy if possible.
+     * @param source file to copy
+     * @param dest new file
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type
+     * @param chunkSize size of each chunk in bytes
+     * @return checksum of the source in hex format
+     * @throws IOException error copying file
+     */
+    public static String copyFile(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type,
+        final int chunkSize)
+        throws IOException {
+
+        return copyFile(source, dest, preserveLastModified, type, chunkSize, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Copy a file, resuming a previous copy if possible.
+     * @param source file to copy
+     * @param dest new file
+     * @param preserveLastModified preserve last modified date
+     * @param type checksum type
+     * @param chunkSize size of each chunk in bytes
+     * @param bufferSize size of the buffer data is copied through, a chunk larger than it is copied in pieces
+     * @return checksum of the source in hex format
+     * @throws IOException error copying file
+     */
+    public static String copyFile(
+        final File source,
+        final File dest,
+        final boolean preserveLastModified,
+        final HashType type,
+        final int chunkSize,
+        final int bufferSize)
+        throws IOException {
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+
+        } else if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+
+        final Path tmp = getTempFile(dest);
+        final Path progress = getProgressFile(dest);
+        final String header = source.length() + SEPARATOR + source.lastModified() + SEPARATOR + chunkSize + SEPARATOR + type;
+
+        final MessageDigest digest = FileRecordCodec.getDigest(type);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Math.min(chunkSize, bufferSize));
+
+        try (IoScheduler.Permit permit = IoScheduler.getInstance().acquire(source.toPath(), tmp);
+             FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            final List<String> chunks = readProgress(progress, header);
+            final long resumed = resume(sourceChannel, tmpChannel, chunks, digest, chunkSize, buffer, type);
+
+            if (resumed > 0) {
+                LOGGER.info("FILE: {} resuming copy - {} of {} bytes", source.getAbsolutePath(), resumed, sourceChannel.size());
+
+            } else {
+                digest.reset();
+                chunks.clear();
+            }
+
+            tmpChannel.truncate(resumed);
+
+            try (BufferedWriter writer = Files.newBufferedWriter(progress, StandardCharsets.UTF_8)) {
+                writer.write(header);
+                writer.newLine();
+
+                for (int i = 0; i < chunks.size(); i++) {
+                    writer.write(i + SEPARATOR + chunks.get(i));
+                    writer.newLine();
+                }
+
+                writer.flush();
+
+                long position = resumed;
+
+                for (int i = chunks.size(); position < sourceChannel.size(); i++) {
+                    final long length = Math.min(chunkSize, sourceChannel.size() - position);
+                    final String chunkChecksum = readChunk(sourceChannel, position, length, buffer, digest, type, (piece, offset) -> {
+                        final int size = piece.remaining();
+
+                        permit.read(source.toPath(), size);
+                        permit.write(tmp, size);
+
+                        while (piece.hasRemaining()) {
+                            tmpChannel.write(piece, offset + size - piece.remaining());
+                        }
+                    });
+
+                    //data must be on disk before the chunk is recorded as complete
+                    tmpChannel.force(false);
+
+                    writer.write(i + SEPARATOR + chunkChecksum);
+                    writer.newLine();
+                    writer.flush();
+
+                    position += length;
+                }
+            }
+
+            tmpChannel.force(true);
+        }
+
+        if (preserveLastModified) {
+            Files.setLastModifiedTime(tmp, FileTime.fromMillis(source.lastModified()));
+        }
+
+        try {
+            Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.deleteIfExists(progress);
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * @param dest destination file
+     * @return temporary file written while copying
+     */
+    public static Path getTempFile(final File dest) {
+        return dest.toPath().resolveSibling("." + dest.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * @param dest destination file
+     * @return progress file written while copying
+     */
+    public static Path getProgressFile(final File dest) {
+        return dest.toPath().resolveSibling("." + dest.getName() + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Read the chunk checksums recorded by a previous copy.
+     * @param progress progress file
+     * @param header expected header, describes the source and chunk size
+     * @return chunk checksums in order, empty if the previous copy does not match
+     * @throws IOException error reading progress file
+     */
+    private static List<String> readProgress(final Path progress, final String header) throws IOException {
+        final List<String> chunks = new ArrayList<>();
+
+        if (! Files.exists(progress)) {
+            return chunks;
+        }
+
+        final List<String> lines = Files.readAllLines(progress, StandardCharsets.UTF_8);
+
+        if (lines.isEmpty() || ! lines.get(0).equals(header)) {
+            LOGGER.debug("FILE: {} source or chunk size changed - restarting", progress);
+            return chunks;
+        }
+
+        for (int i = 1; i < lines.size(); i++) {
+            final String[] fields = lines.get(i).split(SEPARATOR);
+
+            //a partially written line ends the list
+            if (fields.length != 2 || ! fields[0].equals(Integer.toString(chunks.size()))) {
+                break;
+            }
+
+            chunks.add(fields[1]);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Determine how much of a previous copy can be kept. The last recorded chunk of the temporary file is read
+     * back and each recorded chunk of the source is read again, which also restores the file checksum.
+     * @param sourceChannel source
+     * @param tmpChannel temporary file
+     * @param chunks recorded chunk checksums, reduced to the chunks that are kept
+     * @param digest file checksum, updated with the kept chunks
+     * @param chunkSize size of each chunk in bytes
+     * @param buffer buffer to read through
+     * @param type checksum type
+     * @return number of bytes that are kept
+     * @throws IOException error reading files
+     */
+    private static long resume(
+        final FileChannel sourceChannel,
+        final FileChannel tmpChannel,
+        final List<String> chunks,
+        final MessageDigest digest,
+        final long chunkSize,
+        final ByteBuffer buffer,
+        final HashType type)
+        throws IOException {
+
+        final int available = (int) Math.min(chunks.size(), tmpChannel.size() / chunkSize);
+
+        if (available == 0) {
+            return 0;
+        }
+
+        final int last = available - 1;
+
+        if (! readChunk(tmpChannel, last * chunkSize, chunkSize, buffer, null, type, null).equals(chunks.get(last))) {
+            LOGGER.info("temporary file does not match progress - restarting");
+            return 0;
+        }
+
+        for (int i = 0; i < available; i++) {
+            if (! readChunk(sourceChannel, i * chunkSize, chunkSize, buffer, digest, type, null).equals(chunks.get(i))) {
+                LOGGER.info("source does not match progress - restarting");
+                return 0;
+            }
+        }
+
+        chunks.subList(available, chunks.size()).clear();
+
+        return available * chunkSize;
+    }
+
+    /**
+     * Read a chunk through the buffer, one piece at a time, and calculate its checksum.
+     * @param channel channel to read from
+     * @param position position of the chunk
+     * @param length length of the chunk, less is read at the end of the channel
+     * @param buffer buffer to read through
+     * @param digest file checksum to update, may be null
+     * @param type checksum type
+     * @param sink receives each piece as it is read, may be null
+     * @return checksum of the chunk in hex format
+     * @throws IOException error reading chunk
+     */
+    private static String readChunk(
+        final FileChannel channel,
+        final long position,
+        final long length,
+        final ByteBuffer buffer,
+        final MessageDigest digest,
+        final HashType type,
+        final Sink sink)
+        throws IOException {
+
+        final MessageDigest chunkDigest = FileRecordCodec.getDigest(type);
+        long offset = 0;
+        int read = 0;
+
+        while (offset < length && read != -1) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - offset));
+
+            do {
+                read = channel.read(buffer, position + offset + buffer.position());
+            } while (read != -1 && buffer.hasRemaining());
+
+            buffer.flip();
+
+            final int size = buffer.remaining();
+            chunkDigest.update(buffer.duplicate());
+
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+
+            if (sink != null && size > 0) {
+                sink.write(buffer, position + offset);
+            }
+
+            offset += size;
+        }
+
+        return Hex.encodeHexString(chunkDigest.digest());
+    }
+
+    /**
+     * Receives the pieces of a chunk as they are read.
+     */
+    @FunctionalInterface
+    private interface Sink {
+        /**
+         * @param piece piece of the chunk, ready to be written
+         * @param position position of the piece in the file
+         * @throws IOException error writing piece
+         */
+        void write(ByteBuffer piece, long position) throws IOException;
+    }
+
+}
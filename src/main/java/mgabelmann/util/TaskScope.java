@@ -0,0 +1,297 @@
+package mgabelmann.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a tree of blocking tasks, one thread per task. Virtual threads are used when the runtime supports them so
+ * thousands of tasks can wait on high latency I/O at once.
+ *
+ * Otherwise platform threads are used and bounded, so a wide directory tree can not start a thread per directory:
+ * tasks forked with {@link #fork(Task)} run on a pool with a thread per in-flight permit and tasks forked with
+ * {@link #forkUnlimited(Task)} run on a separate pool of the same size, waiting in a queue once every thread is
+ * busy. Unlimited tasks may wait for limited tasks but must not wait for each other.
+ *
+ * Tasks may fork more tasks into the same scope. The first task to fail cancels the scope: running tasks are
+ * interrupted, tasks that have not started are skipped and {@link #join()} reports the failure. Tasks forked with
+ * {@link #fork(Task)} count against the in-flight limit and forking blocks while the limit is reached.
+ *
+ * @author Mike Gabelmann
+ */
+public final class TaskScope implements AutoCloseable {
+    /** Logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TaskScope.class);
+
+    /** Work performed by a task. */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * Perform the work.
+         * @throws IOException error performing work
+         */
+        void run() throws IOException;
+    }
+
+    /** Creates an executor that starts a virtual thread per task, null if the runtime has no virtual threads. */
+    private static final Method VIRTUAL_EXECUTOR = findVirtualExecutor();
+
+    /** Runs tasks forked with fork(Task). */
+    private final transient ExecutorService executor;
+
+    /** Runs tasks forked with forkUnlimited(Task), the same executor when virtual threads are used. */
+    private final transient ExecutorService unlimitedExecutor;
+
+    /** Limits the number of tasks forked with fork(Task). */
+    private final transient Semaphore inFlight;
+
+    /** Threads running tasks, interrupted when the scope is cancelled. */
+    private final transient Set<Thread> running;
+
+    /** Guards pending. */
+    private final Object lock = new Object();
+
+    /** Number of tasks forked that have not completed. */
+    private long pending = 0;
+
+    /** First failure, cancels the scope. */
+    private volatile Throwable failure;
+
+
+    /**
+     * Constructor.
+     * @param maxInFlight maximum number of limited tasks forked at once
+     */
+    public TaskScope(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+
+        this.executor = newExecutor(maxInFlight);
+        this.unlimitedExecutor = VIRTUAL_EXECUTOR != null ? executor : newExecutor(maxInFlight);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.running = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Fork a task that counts against the in-flight limit, blocks while the limit is reached.
+     * @param task task
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    public void fork(final Task task) throws InterruptedIOException {
+        try {
+            inFlight.acquire();
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to fork task");
+        }
+
+        this.submit(task, true);
+    }
+
+    /**
+     * Fork a task that does not count against the in-flight limit. Use for tasks that fork other tasks, so they
+     * never hold a permit while waiting for one. Without virtual threads at most maxInFlight of these run at once.
+     * @param task task
+     */
+    public void forkUnlimited(final Task task) {
+        this.submit(task, false);
+    }
+
+    /**
+     * Wait for every forked task, including tasks they forked, to complete.
+     * @throws IOException the first failure of any task
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    public void join() throws IOException {
+        synchronized (lock) {
+            try {
+                while (pending > 0) {
+                    lock.wait();
+                }
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                this.fail(ie);
+                throw new InterruptedIOException("interrupted waiting for tasks");
+            }
+        }
+
+        final Throwable t = failure;
+
+        if (t instanceof IOException) {
+            throw (IOException) t;
+
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+
+        } else if (t instanceof Error) {
+            throw (Error) t;
+
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * @return true if a task failed and the scope was cancelled
+     */
+    public boolean isCancelled() {
+        return failure != null;
+    }
+
+    /**
+     * Cancel any running tasks and stop the threads.
+     */
+    @Override
+    public void close() {
+        if (failure == null) {
+            synchronized (lock) {
+                if (pending > 0) {
+                    this.fail(new InterruptedIOException("scope closed"));
+                }
+            }
+        }
+
+        executor.shutdownNow();
+        unlimitedExecutor.shutdownNow();
+    }
+
+    /**
+     * Submit a task.
+     * @param task task
+     * @param limited true if the task holds an in-flight permit
+     */
+    private void submit(final Task task, final boolean limited) {
+        synchronized (lock) {
+            pending++;
+        }
+
+        try {
+            (limited ? executor : unlimitedExecutor).execute(() -> this.run(task, limited));
+
+        } catch (RuntimeException re) {
+            this.complete(limited);
+            throw re;
+        }
+    }
+
+    /**
+     * Run a task unless the scope was cancelled.
+     * @param task task
+     * @param limited true if the task holds an in-flight permit
+     */
+    private void run(final Task task, final boolean limited) {
+        final Thread thread = Thread.currentThread();
+        running.add(thread);
+
+        try {
+            if (failure == null) {
+                task.run();
+            }
+
+        } catch (Throwable t) {
+            this.fail(t);
+
+        } finally {
+            running.remove(thread);
+
+            //clear an interrupt from cancellation so a pooled thread is not left interrupted
+            Thread.interrupted();
+            this.complete(limited);
+        }
+    }
+
+    /**
+     * Record a completed task.
+     * @param limited true if the task held an in-flight permit
+     */
+    private void complete(final boolean limited) {
+        if (limited) {
+            inFlight.release();
+        }
+
+        synchronized (lock) {
+            pending--;
+
+            if (pending == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cancel the scope on the first failure.
+     * @param t failure
+     */
+    private void fail(final Throwable t) {
+        synchronized (lock) {
+            if (failure != null) {
+                return;
+            }
+
+            failure = t;
+        }
+
+        LOGGER.warn("task failed, cancelling - {}", t.toString());
+
+        for (Thread thread : running) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    static boolean isVirtual() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor that starts a virtual thread per task if the runtime supports it, otherwise a pool of
+     * platform threads that are stopped once idle.
+     * @param threads number of platform threads
+     * @return executor
+     */
+    private static ExecutorService newExecutor(final int threads) {
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+
+            } catch (ReflectiveOperationException roe) {
+                LOGGER.debug("virtual threads not available - {}", roe.toString());
+            }
+        }
+
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /**
+     * @return method creating an executor that starts a virtual thread per task, null if not supported
+     */
+    private static Method findVirtualExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+        } catch (NoSuchMethodException nsme) {
+            LOGGER.debug("virtual threads not available - using bounded platform threads");
+            return null;
+        }
+    }
+
+}
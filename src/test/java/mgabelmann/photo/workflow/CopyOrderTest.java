@@ -0,0 +1,95 @@
+package mgabelmann.photo.workflow;
+
+import mgabelmann.util.FileUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class CopyOrderTest {
+    @TempDir
+    private Path tempDir;
+
+    private List<Map.Entry<String, BasicFileAttributes>> entries;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Path oldDir = Files.createDirectory(tempDir.resolve("a_old"));
+        Path newDir = Files.createDirectory(tempDir.resolve("b_new"));
+        Path large = Files.writeString(tempDir.resolve("c_large.jpg"), "large data");
+        Path small = Files.writeString(tempDir.resolve("d_small.xmp"), "x");
+
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Files.setLastModifiedTime(oldDir, FileTime.from(now.minus(30, ChronoUnit.DAYS)));
+        Files.setLastModifiedTime(newDir, FileTime.from(now));
+        Files.setLastModifiedTime(large, FileTime.from(now.minus(1, ChronoUnit.DAYS)));
+        Files.setLastModifiedTime(small, FileTime.from(now.minus(2, ChronoUnit.DAYS)));
+
+        entries = new ArrayList<>(FileUtil.listAttributes(tempDir).entrySet());
+    }
+
+    @Test
+    public void testName() {
+        Assertions.assertEquals(List.of("a_old", "b_new", "c_large.jpg", "d_small.xmp"), this.sort(new CopyOrder()));
+        Assertions.assertEquals(CopyOrder.Policy.NAME, new CopyOrder().getPolicy());
+    }
+
+    @Test
+    public void testNewestFirst() {
+        Assertions.assertEquals(List.of("b_new", "c_large.jpg", "d_small.xmp", "a_old"), this.sort(new CopyOrder(CopyOrder.Policy.NEWEST_FIRST)));
+    }
+
+    @Test
+    public void testSmallestFirst() {
+        Assertions.assertEquals(List.of("d_small.xmp", "c_large.jpg", "a_old", "b_new"), this.sort(new CopyOrder(CopyOrder.Policy.SMALLEST_FIRST)));
+    }
+
+    @Test
+    public void testRecentDirectoriesFirst() {
+        Assertions.assertEquals(List.of("b_new", "a_old", "c_large.jpg", "d_small.xmp"), this.sort(new CopyOrder(CopyOrder.Policy.RECENT_DIRECTORIES_FIRST)));
+    }
+
+    @Test
+    public void testSerializable() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new CopyOrder(CopyOrder.Policy.SMALLEST_FIRST));
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            CopyOrder order = (CopyOrder) in.readObject();
+
+            Assertions.assertEquals(CopyOrder.Policy.SMALLEST_FIRST, order.getPolicy());
+            Assertions.assertEquals(List.of("d_small.xmp", "c_large.jpg", "a_old", "b_new"), this.sort(order));
+        }
+    }
+
+    @Test
+    public void testArguments() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CopyOrder(null));
+    }
+
+    private List<String> sort(CopyOrder order) {
+        entries.sort(order);
+
+        return entries.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+}
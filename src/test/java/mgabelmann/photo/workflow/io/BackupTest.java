@@ -1,6 +1,12 @@
 package mgabelmann.photo.workflow.io;
 
+import mgabelmann.photo.workflow.BackupPlan;
+import mgabelmann.photo.workflow.CopyOrder;
 import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.util.DeltaCopy;
+import mgabelmann.util.Durability;
+import mgabelmann.util.FanOutCopy;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.config.Configurator;
@@ -17,9 +23,22 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 /**
@@ -209,6 +228,763 @@ public class BackupTest {
         Assertions.assertEquals(srcFile1.toFile().lastModified(), dstFile1.toFile().lastModified());
     }
 
+    @Test
+    @DisplayName("copy nested directories in parallel")
+    void test16_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        for (int i = 0; i < 10; i++) {
+            Path dir = this.createDirectory(this.createDirectory(srcDir, "dir" + i), "subDir" + i);
+            this.createFileWithData(dir, "srcFile" + i + ".jpg", "data" + i);
+        }
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setParallelism(4);
+        b.process();
+
+        for (int i = 0; i < 10; i++) {
+            Path dstFile = Paths.get(dstDir.toString(), "dir" + i, "subDir" + i, "srcFile" + i + ".jpg");
+
+            Assertions.assertTrue(Files.exists(dstFile));
+            Assertions.assertEquals("data" + i, Files.readString(dstFile));
+        }
+    }
+
+    @Test
+    @DisplayName("manifest is used instead of remote files, reconcile examines remote files")
+    void test17_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        this.createFileWithData(srcDir, "srcFile1.jpg", "updated data");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.process();
+
+        Path manifest = dstDir.resolve(Backup.MANIFEST_FILENAME);
+        Path dstFile1 = dstDir.resolve("srcFile1.jpg");
+
+        Assertions.assertTrue(Files.exists(manifest));
+        Assertions.assertTrue(Files.readString(manifest).startsWith("srcFile1.jpg" + FileRecordCodec.SEPARATOR));
+
+        //manifest still has a record so the missing file is not noticed
+        Files.delete(dstFile1);
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+        Assertions.assertFalse(Files.exists(dstFile1));
+
+        Backup b2 = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b2.setReconcile(true);
+        b2.process();
+        Assertions.assertTrue(Files.exists(dstFile1));
+    }
+
+    @Test
+    @DisplayName("watch copies new files")
+    void test18_watch() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        BlockingQueue<Boolean> backups = new LinkedBlockingQueue<>();
+        AtomicReference<WorkflowException> error = new AtomicReference<>();
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setWatchListener(() -> backups.add(Boolean.TRUE));
+
+        Thread thread = new Thread(() -> {
+            try {
+                b.watch(Duration.ofMillis(100), Duration.ofSeconds(1));
+
+            } catch (WorkflowException we) {
+                error.set(we);
+                backups.add(Boolean.FALSE);
+            }
+        });
+        thread.start();
+
+        //wait for the initial backup to complete before changing files
+        Assertions.assertEquals(Boolean.TRUE, backups.poll(10, TimeUnit.SECONDS));
+
+        Path subDir = this.createDirectory(srcDir, "srcDir2");
+        this.createFileWithData(subDir, "srcFile1.jpg", "updated data");
+
+        Path dstFile1 = Paths.get(dstDir.toString(), "srcDir2", "srcFile1.jpg");
+
+        //the changes may be backed up in more than one batch
+        boolean watching = true;
+
+        while (watching && ! Files.exists(dstFile1)) {
+            watching = Boolean.TRUE.equals(backups.poll(10, TimeUnit.SECONDS));
+        }
+
+        b.stopWatching();
+        thread.join(5000);
+
+        Assertions.assertNull(error.get());
+        Assertions.assertTrue(Files.exists(dstFile1));
+        Assertions.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    @DisplayName("copy nested directories with a thread per file")
+    void test19_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        for (int i = 0; i < 10; i++) {
+            Path dir = this.createDirectory(srcDir, "dir" + i);
+
+            for (int j = 0; j < 10; j++) {
+                this.createFileWithData(dir, "srcFile" + j + ".jpg", "data" + i + j);
+            }
+        }
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, true, true);
+        b.setMaxInFlight(8);
+        b.process();
+
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                Assertions.assertEquals("data" + i + j, Files.readString(Paths.get(dstDir.toString(), "dir" + i, "srcFile" + j + ".jpg")));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("renamed directory is moved instead of copied")
+    void test20_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path shootDir = this.createDirectory(srcDir, "2024-01-26");
+
+        this.createFileWithData(shootDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(shootDir, "srcFile2.jpg", "data2");
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Files.move(shootDir, srcDir.resolve("2024-01-26 Wedding"));
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Assertions.assertEquals("data1", Files.readString(Paths.get(dstDir.toString(), "2024-01-26 Wedding", "srcFile1.jpg")));
+        Assertions.assertEquals("data2", Files.readString(Paths.get(dstDir.toString(), "2024-01-26 Wedding", "srcFile2.jpg")));
+
+        //moved rather than copied, so the old remote files are gone
+        Assertions.assertFalse(Files.exists(Paths.get(dstDir.toString(), "2024-01-26", "srcFile1.jpg")));
+        Assertions.assertFalse(Files.exists(Paths.get(dstDir.toString(), "2024-01-26", "srcFile2.jpg")));
+    }
+
+    @Test
+    @DisplayName("mirror moves deleted files into the trash")
+    void test21_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path subDir = this.createDirectory(srcDir, "srcDir2");
+
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+        this.createFileWithData(subDir, "srcFile3.jpg", "data3");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setMirror(true);
+        b.process();
+
+        Files.delete(srcFile1);
+        Files.delete(subDir.resolve("srcFile3.jpg"));
+        Files.delete(subDir);
+
+        //expired trash is purged
+        Path expired = this.createDirectory(this.createDirectory(dstDir, Trash.DIRECTORY), "2000-01-01");
+
+        b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setMirror(true);
+        b.process();
+
+        Path day = Paths.get(dstDir.toString(), Trash.DIRECTORY, LocalDate.now().toString());
+
+        Assertions.assertFalse(Files.exists(dstDir.resolve("srcFile1.jpg")));
+        Assertions.assertFalse(Files.exists(dstDir.resolve("srcDir2")));
+        Assertions.assertTrue(Files.exists(dstDir.resolve("srcFile2.jpg")));
+        Assertions.assertEquals("data1", Files.readString(day.resolve("srcFile1.jpg")));
+        Assertions.assertEquals("data3", Files.readString(day.resolve("srcDir2").resolve("srcFile3.jpg")));
+        Assertions.assertTrue(Files.exists(dstDir.resolve(Backup.MANIFEST_FILENAME)));
+        Assertions.assertFalse(Files.exists(expired));
+    }
+
+    @Test
+    @DisplayName("plan counts files and bytes without copying")
+    void test22_plan() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Files.writeString(srcFile1, "changed data1");
+        Path subDir = this.createDirectory(srcDir, "srcDir2");
+        this.createFileWithData(subDir, "srcFile3.jpg", "new data3");
+
+        BackupPlan plan = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).plan();
+
+        Assertions.assertEquals(1, plan.getNumFiles(BackupPlan.Category.NEW));
+        Assertions.assertEquals(9, plan.getSize(BackupPlan.Category.NEW));
+        Assertions.assertEquals(1, plan.getNumFiles(BackupPlan.Category.CHANGED));
+        Assertions.assertEquals(13, plan.getSize(BackupPlan.Category.CHANGED));
+        Assertions.assertEquals(1, plan.getNumFiles(BackupPlan.Category.IDENTICAL));
+        Assertions.assertEquals(22, plan.getTransferSize());
+        Assertions.assertTrue(plan.isSpaceAvailable());
+        Assertions.assertNotNull(plan.getEstimatedDuration());
+
+        //nothing was copied
+        Assertions.assertFalse(Files.exists(dstDir.resolve("srcDir2")));
+        Assertions.assertEquals("data1", Files.readString(dstDir.resolve("srcFile1.jpg")));
+    }
+
+    @Test
+    @DisplayName("restore a subtree to an alternate target")
+    void test23_restore() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path restoreDir = this.createDirectory(tempDir, "restoreDir");
+        Path subDir = this.createDirectory(srcDir, "srcDir2");
+
+        this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(subDir, "srcFile2.jpg", "data2");
+        this.createFileWithData(subDir, "srcFile3.jpg", "data3");
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, true, true);
+        b.restore(restoreDir.toFile(), "srcDir2");
+
+        Assertions.assertEquals("data2", Files.readString(restoreDir.resolve("srcDir2").resolve("srcFile2.jpg")));
+        Assertions.assertEquals("data3", Files.readString(restoreDir.resolve("srcDir2").resolve("srcFile3.jpg")));
+        Assertions.assertFalse(Files.exists(restoreDir.resolve("srcFile1.jpg")));
+        Assertions.assertFalse(Files.exists(restoreDir.resolve(Backup.MANIFEST_FILENAME)));
+
+        //a remote file that does not match the manifest is not restored
+        Files.writeString(dstDir.resolve("srcFile1.jpg"), "data9");
+        Assertions.assertThrows(WorkflowException.class, () -> b.restore(restoreDir.toFile(), null));
+        Assertions.assertFalse(Files.exists(restoreDir.resolve("srcFile1.jpg")));
+    }
+
+    @Test
+    @DisplayName("validate reports missing, corrupted and extra files")
+    void test24_validate() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+        this.createFileWithData(srcDir, "srcFile3.jpg", "data3");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.process();
+        b.validate();
+
+        Files.delete(dstDir.resolve("srcFile1.jpg"));
+        Files.writeString(dstDir.resolve("srcFile2.jpg"), "data9");
+        this.createFileWithData(dstDir, "srcFile4.jpg", "data4");
+
+        b.setValidateThreads(2);
+        ValidationReport report = b.checkIntegrity();
+
+        Assertions.assertEquals(1, report.getPassed());
+        Assertions.assertEquals(List.of("srcFile1.jpg"), report.getMissing());
+        Assertions.assertEquals(List.of("srcFile2.jpg"), report.getCorrupted());
+        Assertions.assertEquals(List.of("srcFile4.jpg"), report.getExtra());
+        Assertions.assertThrows(WorkflowException.class, b::validate);
+    }
+
+    @Test
+    @DisplayName("checksums stored in extended attributes rebuild the manifest")
+    void test25_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setChecksumAttributes(true);
+        b.process();
+
+        String checksum = FileRecordCodec.calculateChecksum(srcFile1.toFile(), HashType.SHA256);
+        String stored = ChecksumAttributes.read(dstDir.resolve("srcFile1.jpg"), HashType.SHA256);
+
+        //file system without extended attributes
+        Assumptions.assumeTrue(stored != null);
+        Assertions.assertEquals(checksum, stored);
+
+        Files.delete(dstDir.resolve(Backup.MANIFEST_FILENAME));
+
+        b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setChecksumAttributes(true);
+        b.setReconcile(true);
+        b.process();
+
+        ManifestIndex manifest = new ManifestIndex(dstDir.resolve(Backup.MANIFEST_FILENAME).toFile());
+        manifest.load();
+        Assertions.assertEquals(checksum, manifest.get("srcFile1.jpg").getSum());
+    }
+
+    @Test
+    @DisplayName("entries are backed up in the copy order")
+    void test26_process() throws Exception {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Map<CopyOrder.Policy, List<String>> copied = Map.of(
+            CopyOrder.Policy.NAME, List.of("a_large.jpg", "b_small.xmp"),
+            CopyOrder.Policy.NEWEST_FIRST, List.of("d_medium.jpg"),
+            CopyOrder.Policy.SMALLEST_FIRST, List.of("b_small.xmp"));
+
+        for (Map.Entry<CopyOrder.Policy, List<String>> entry : copied.entrySet()) {
+            Path srcDir = this.createDirectory(tempDir, "srcDir" + entry.getKey());
+            Path dstDir = this.createDirectory(tempDir, "dstDir" + entry.getKey());
+            Path large = this.createFileWithData(srcDir, "a_large.jpg", "large data");
+            Path small = this.createFileWithData(srcDir, "b_small.xmp", "x");
+            Path broken = this.createFileWithData(srcDir, "c_broken.jpg", "broken");
+            Path medium = this.createFileWithData(srcDir, "d_medium.jpg", "medium");
+
+            Files.setLastModifiedTime(large, FileTime.from(now.minus(3, ChronoUnit.DAYS)));
+            Files.setLastModifiedTime(small, FileTime.from(now.minus(2, ChronoUnit.DAYS)));
+            Files.setLastModifiedTime(broken, FileTime.from(now.minus(1, ChronoUnit.DAYS)));
+            Files.setLastModifiedTime(medium, FileTime.from(now));
+
+            //the copy of c_broken.jpg fails, the run is cut short after the files ordered before it
+            this.createFile(this.createDirectory(dstDir, "c_broken.jpg"), "blocker.jpg");
+
+            Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+            b.setParallelism(1);
+            b.setOrder(new CopyOrder(entry.getKey()));
+            Assertions.assertThrows(WorkflowException.class, b::process);
+
+            for (String name : List.of("a_large.jpg", "b_small.xmp", "d_medium.jpg")) {
+                Assertions.assertEquals(entry.getValue().contains(name), Files.exists(dstDir.resolve(name)), entry.getKey() + " " + name);
+            }
+
+            Assertions.assertThrows(IllegalArgumentException.class, () -> b.setOrder(null));
+        }
+    }
+
+    @Test
+    @DisplayName("files are read once and copied to every destination")
+    void test27_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir1 = this.createDirectory(tempDir, "dstDir1");
+        Path dstDir2 = this.createDirectory(tempDir, "dstDir2");
+        Path subDir = this.createDirectory(srcDir, "subDir");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(subDir, "srcFile2.jpg", "data2");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir1.toFile(), HashType.SHA256, true, true);
+        b.addDestination(dstDir2.toFile());
+        b.process();
+
+        for (Path dstDir : List.of(dstDir1, dstDir2)) {
+            Assertions.assertEquals("data1", Files.readString(dstDir.resolve("srcFile1.jpg")));
+            Assertions.assertEquals("data2", Files.readString(dstDir.resolve("subDir").resolve("srcFile2.jpg")));
+            Assertions.assertTrue(Files.exists(dstDir.resolve(Backup.MANIFEST_FILENAME)));
+        }
+
+        //each destination decides from its own manifest
+        Files.delete(dstDir2.resolve("srcFile1.jpg"));
+        Files.delete(dstDir2.resolve(Backup.MANIFEST_FILENAME));
+        Files.writeString(srcFile1, "updated data1");
+
+        b = new Backup(srcDir.toFile(), dstDir1.toFile(), HashType.SHA256, true, true);
+        b.addDestination(dstDir2.toFile());
+        b.setFanOutBuffers(1);
+        b.process();
+
+        String checksum = FileRecordCodec.calculateChecksum(srcFile1.toFile(), HashType.SHA256);
+
+        for (Path dstDir : List.of(dstDir1, dstDir2)) {
+            ManifestIndex manifest = new ManifestIndex(dstDir.resolve(Backup.MANIFEST_FILENAME).toFile());
+            manifest.load();
+
+            Assertions.assertEquals("updated data1", Files.readString(dstDir.resolve("srcFile1.jpg")));
+            Assertions.assertEquals(checksum, manifest.get("srcFile1.jpg").getSum());
+            Assertions.assertNotNull(manifest.get("subDir/srcFile2.jpg"));
+        }
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Backup(srcDir.toFile(), dstDir1.toFile(), true).addDestination(null));
+    }
+
+    @Test
+    @DisplayName("an interrupted run is resumed from its journal")
+    void test28_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        Path srcFile2 = this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.process();
+
+        FileTime modified = FileTime.from(Instant.now().truncatedTo(ChronoUnit.SECONDS).plusSeconds(60));
+        Files.writeString(srcFile1, "data11");
+        Files.writeString(srcFile2, "data22");
+        Files.setLastModifiedTime(srcFile1, modified);
+        Files.setLastModifiedTime(srcFile2, modified);
+
+        //interrupted run copied srcFile1 and was part way through srcFile2
+        Path dstFile1 = dstDir.resolve("srcFile1.jpg");
+        Path dstFile2 = dstDir.resolve("srcFile2.jpg");
+        Files.writeString(dstFile1, "DATA11");
+        Files.setLastModifiedTime(dstFile1, modified);
+        Files.writeString(dstFile2, "da");
+
+        RunJournal journal = new RunJournal(dstDir.resolve(Backup.JOURNAL_FILENAME).toFile());
+        journal.open();
+        journal.started("srcFile1.jpg", "srcFile1.jpg");
+        journal.copied(new FileRecord("srcFile1.jpg", "sum1", 6, Backup.toLocalDateTime(modified), HashType.SHA256));
+        journal.started("srcFile2.jpg", "srcFile2.jpg");
+        journal.close();
+
+        b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.process();
+
+        ManifestIndex manifest = new ManifestIndex(dstDir.resolve(Backup.MANIFEST_FILENAME).toFile());
+        manifest.load();
+
+        //completed copy is not copied again, the partial copy is
+        Assertions.assertEquals("DATA11", Files.readString(dstFile1));
+        Assertions.assertEquals("sum1", manifest.get("srcFile1.jpg").getSum());
+        Assertions.assertEquals("data22", Files.readString(dstFile2));
+        Assertions.assertEquals(6, manifest.get("srcFile2.jpg").getSize());
+        Assertions.assertFalse(journal.exists());
+    }
+
+    @Test
+    @DisplayName("copied files are made durable by the policy of each destination")
+    void test29_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir1 = this.createDirectory(tempDir, "dstDir1");
+        Path dstDir2 = this.createDirectory(tempDir, "dstDir2");
+        Path subDir = this.createDirectory(srcDir, "subDir");
+        this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(subDir, "srcFile2.jpg", "data2");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir1.toFile(), HashType.SHA256, false, true);
+        b.setDurability(Durability.FILE);
+        b.addDestination(dstDir2.toFile(), Durability.NONE);
+        b.process();
+
+        Map<File, Durability.Tracker> statistics = b.getDurabilityStatistics();
+        Durability.Tracker tracker1 = statistics.get(dstDir1.toFile());
+        Durability.Tracker tracker2 = statistics.get(dstDir2.toFile());
+
+        //both files and the manifest
+        Assertions.assertEquals(3, tracker1.getFiles());
+        Assertions.assertEquals(3, tracker1.getForced());
+        Assertions.assertEquals(3, tracker2.getFiles());
+        Assertions.assertEquals(0, tracker2.getForced());
+        Assertions.assertEquals("data2", Files.readString(dstDir2.resolve("subDir").resolve("srcFile2.jpg")));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> b.setDurability(null));
+    }
+
+    @Test
+    @DisplayName("a destination that fails keeps its copy, the others are written before the run stops")
+    void test30_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir1 = this.createDirectory(tempDir, "dstDir1");
+        Path dstDir2 = this.createDirectory(tempDir, "dstDir2");
+        this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir1.toFile(), HashType.SHA256, false, true);
+        b.addDestination(dstDir2.toFile());
+        b.process();
+
+        //a directory in the way, the destination keeps what it had
+        Files.writeString(srcDir.resolve("srcFile1.jpg"), "updated data1");
+        Files.delete(dstDir2.resolve("srcFile1.jpg"));
+        this.createFileWithData(this.createDirectory(dstDir2, "srcFile1.jpg"), "other.jpg", "other");
+
+        Backup b2 = new Backup(srcDir.toFile(), dstDir1.toFile(), HashType.SHA256, false, true);
+        b2.addDestination(dstDir2.toFile());
+
+        WorkflowException we = Assertions.assertThrows(WorkflowException.class, b2::process);
+        Assertions.assertTrue(we.getCause() instanceof IOException);
+        Assertions.assertEquals("updated data1", Files.readString(dstDir1.resolve("srcFile1.jpg")));
+        Assertions.assertEquals("other", Files.readString(dstDir2.resolve("srcFile1.jpg").resolve("other.jpg")));
+        Assertions.assertFalse(Files.exists(FanOutCopy.getTempFile(dstDir2.resolve("srcFile1.jpg").toFile())));
+    }
+
+    @Test
+    @DisplayName("mirror refuses to empty the backup when the local directory is empty")
+    void test31_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setMirror(true);
+        b.process();
+
+        //eg: the local drive is not mounted
+        Files.delete(srcFile1);
+
+        Backup b2 = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b2.setMirror(true);
+
+        WorkflowException we = Assertions.assertThrows(WorkflowException.class, b2::process);
+        Assertions.assertTrue(we.getMessage().contains("refusing to mirror"));
+        Assertions.assertEquals("data1", Files.readString(dstDir.resolve("srcFile1.jpg")));
+        Assertions.assertFalse(Files.exists(dstDir.resolve(Trash.DIRECTORY)));
+    }
+
+    @Test
+    @DisplayName("only backing up applies the journal, copies recovered are verified before it is removed")
+    void test32_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.process();
+
+        FileTime modified = FileTime.from(Instant.now().truncatedTo(ChronoUnit.SECONDS).plusSeconds(60));
+        Files.writeString(srcFile1, "data11");
+        Files.setLastModifiedTime(srcFile1, modified);
+
+        //interrupted run copied srcFile1 but did not verify it, the copy is damaged
+        Path dstFile1 = dstDir.resolve("srcFile1.jpg");
+        Files.writeString(dstFile1, "DATA11");
+        Files.setLastModifiedTime(dstFile1, modified);
+
+        RunJournal journal = new RunJournal(dstDir.resolve(Backup.JOURNAL_FILENAME).toFile());
+        journal.open();
+        journal.started("srcFile1.jpg", "srcFile1.jpg");
+        journal.copied(new FileRecord("srcFile1.jpg", "sum1", 6, Backup.toLocalDateTime(modified), HashType.SHA256));
+        journal.close();
+
+        byte[] entries = Files.readAllBytes(journal.getFile().toPath());
+        byte[] manifest = Files.readAllBytes(dstDir.resolve(Backup.MANIFEST_FILENAME));
+
+        b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, true, true);
+        b.setRepairAttempts(1);
+        b.plan();
+        b.checkIntegrity();
+
+        Assertions.assertArrayEquals(entries, Files.readAllBytes(journal.getFile().toPath()));
+        Assertions.assertArrayEquals(manifest, Files.readAllBytes(dstDir.resolve(Backup.MANIFEST_FILENAME)));
+
+        b.process();
+
+        //the recovered copy was verified and repaired
+        Assertions.assertEquals("data11", Files.readString(dstFile1));
+        Assertions.assertFalse(journal.exists());
+    }
+
+    @Test
+    @DisplayName("changes below a directory being scanned are left to the scan")
+    void test33_watch() {
+        Path srcDir = tempDir.resolve("srcDir");
+        Path subDir = srcDir.resolve("subDir");
+        Set<Path> directories = Set.of(srcDir);
+
+        Assertions.assertTrue(Backup.isScanned(srcDir.resolve("srcFile1.jpg"), directories));
+        Assertions.assertTrue(Backup.isScanned(subDir.resolve("srcFile2.jpg"), directories));
+        Assertions.assertTrue(Backup.isScanned(subDir, directories));
+        Assertions.assertFalse(Backup.isScanned(srcDir, directories));
+        Assertions.assertFalse(Backup.isScanned(tempDir.resolve("srcDir2").resolve("srcFile1.jpg"), directories));
+    }
+
+    @Test
+    @DisplayName("symbolic links to files are copied once, links to directories are skipped")
+    void test34_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path otherDir = this.createDirectory(tempDir, "otherDir");
+        Path otherFile = this.createFileWithData(otherDir, "srcFile1.jpg", "data1");
+
+        boolean supported = true;
+
+        try {
+            Files.createSymbolicLink(srcDir.resolve("srcFile1.jpg"), otherFile);
+
+        } catch (UnsupportedOperationException | IOException e) {
+            supported = false;
+        }
+
+        Assumptions.assumeTrue(supported, "symbolic links not supported");
+        Files.createSymbolicLink(srcDir.resolve("srcDir2"), otherDir);
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Path dstFile1 = dstDir.resolve("srcFile1.jpg");
+        FileTime copied = Files.getLastModifiedTime(dstFile1);
+        Object fileKey = Files.readAttributes(dstFile1, BasicFileAttributes.class).fileKey();
+
+        Assertions.assertEquals("data1", Files.readString(dstFile1));
+        Assertions.assertFalse(Files.isSymbolicLink(dstFile1));
+        Assertions.assertFalse(Files.exists(dstDir.resolve("srcDir2")));
+
+        //second run finds nothing to copy
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Assertions.assertEquals(copied, Files.getLastModifiedTime(dstFile1));
+        Assertions.assertTrue(fileKey == null || fileKey.equals(Files.readAttributes(dstFile1, BasicFileAttributes.class).fileKey()));
+    }
+
+    @Test
+    @DisplayName("a file that can not be read is reported corrupted, the rest are still validated")
+    void test35_validate() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+
+        this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.process();
+
+        File dstFile1 = dstDir.resolve("srcFile1.jpg").toFile();
+        dstFile1.setReadable(false);
+
+        try {
+            //root can read every file
+            Assumptions.assumeFalse(Files.isReadable(dstFile1.toPath()));
+
+            ValidationReport report = b.checkIntegrity();
+
+            Assertions.assertEquals(1, report.getPassed());
+            Assertions.assertEquals(List.of("srcFile1.jpg"), report.getCorrupted());
+            Assertions.assertTrue(report.getMissing().isEmpty());
+
+        } finally {
+            dstFile1.setReadable(true);
+        }
+    }
+
+    @Test
+    @DisplayName("a file that can not be restored does not stop the others")
+    void test36_restore() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path restoreDir = this.createDirectory(tempDir, "restoreDir");
+
+        this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        //a directory is in the way of srcFile1
+        Path blocked = this.createDirectory(restoreDir, "srcFile1.jpg");
+        this.createFileWithData(blocked, "other.jpg", "other");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setResumableThreshold(1);
+        WorkflowException we = Assertions.assertThrows(WorkflowException.class, () -> b.restore(restoreDir.toFile(), null));
+
+        Assertions.assertEquals("restore failed for 1 files", we.getMessage());
+        Assertions.assertEquals("data2", Files.readString(restoreDir.resolve("srcFile2.jpg")));
+        Assertions.assertEquals("other", Files.readString(blocked.resolve("other.jpg")));
+
+        try (Stream<Path> files = Files.list(restoreDir)) {
+            Assertions.assertEquals(List.of("srcFile1.jpg", "srcFile2.jpg"), files.map(f -> f.getFileName().toString()).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    @DisplayName("a moved file keeps its delta signature, a new file of the same size is recorded with its own checksum")
+    void test37_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setDeltaThreshold(1);
+        b.process();
+
+        //the second copy is a delta update, which leaves a signature next to the remote file
+        Files.writeString(srcFile1, "data2");
+        Files.setLastModifiedTime(srcFile1, FileTime.from(Instant.now().truncatedTo(ChronoUnit.SECONDS).plusSeconds(60)));
+        b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setDeltaThreshold(1);
+        b.process();
+
+        Path signature1 = DeltaCopy.getSignatureFile(dstDir.resolve("srcFile1.jpg").toFile());
+        byte[] blocks = Files.readAllBytes(signature1);
+
+        Files.move(srcFile1, srcDir.resolve("srcFile3.jpg"));
+        this.createFileWithData(srcDir, "srcFile4.jpg", "data4");
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Assertions.assertFalse(Files.exists(signature1));
+        Assertions.assertArrayEquals(blocks, Files.readAllBytes(DeltaCopy.getSignatureFile(dstDir.resolve("srcFile3.jpg").toFile())));
+        Assertions.assertEquals("data2", Files.readString(dstDir.resolve("srcFile3.jpg")));
+
+        ManifestIndex manifest = new ManifestIndex(dstDir.resolve(Backup.MANIFEST_FILENAME).toFile());
+        manifest.load();
+
+        Assertions.assertEquals("data4", Files.readString(dstDir.resolve("srcFile4.jpg")));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(srcDir.resolve("srcFile4.jpg").toFile(), HashType.SHA256), manifest.get("srcFile4.jpg").getSum());
+    }
+
+    @Test
+    @DisplayName("files updated in place are copied to each destination on its own")
+    void test38_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir1 = this.createDirectory(tempDir, "dstDir1");
+        Path dstDir2 = this.createDirectory(tempDir, "dstDir2");
+        Path srcFile1 = this.createFileWithData(srcDir, "srcFile1.jpg", "data1");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "data2");
+
+        Backup b = new Backup(srcDir.toFile(), dstDir1.toFile(), HashType.SHA256, false, true);
+        b.addDestination(dstDir2.toFile());
+        b.setDeltaThreshold(1);
+        b.process();
+
+        //new files are written to both destinations together, changed files are delta updates on each
+        Files.writeString(srcFile1, "data3");
+        Files.setLastModifiedTime(srcFile1, FileTime.from(Instant.now().truncatedTo(ChronoUnit.SECONDS).plusSeconds(60)));
+        b.process();
+
+        for (Path dstDir : List.of(dstDir1, dstDir2)) {
+            Assertions.assertEquals("data3", Files.readString(dstDir.resolve("srcFile1.jpg")));
+            Assertions.assertTrue(Files.exists(DeltaCopy.getSignatureFile(dstDir.resolve("srcFile1.jpg").toFile())));
+            Assertions.assertFalse(Files.exists(DeltaCopy.getSignatureFile(dstDir.resolve("srcFile2.jpg").toFile())));
+        }
+    }
+
+    @Test
+    @DisplayName("moves are found for files with identical contents and for records rebuilt without a checksum")
+    void test39_process() throws Exception {
+        Path srcDir = this.createDirectory(tempDir, "srcDir");
+        Path dstDir = this.createDirectory(tempDir, "dstDir");
+        this.createFileWithData(srcDir, "srcFile1.jpg", "same");
+        this.createFileWithData(srcDir, "srcFile2.jpg", "same");
+
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        //the copy that is still in use is left alone
+        Files.move(srcDir.resolve("srcFile1.jpg"), srcDir.resolve("srcFile3.jpg"));
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Assertions.assertFalse(Files.exists(dstDir.resolve("srcFile1.jpg")));
+        Assertions.assertEquals("same", Files.readString(dstDir.resolve("srcFile2.jpg")));
+        Assertions.assertEquals("same", Files.readString(dstDir.resolve("srcFile3.jpg")));
+
+        //records rebuilt from the remote files have no checksum until the files are compared
+        Files.delete(dstDir.resolve(Backup.MANIFEST_FILENAME));
+        Backup b = new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true);
+        b.setReconcile(true);
+        b.process();
+
+        ManifestIndex manifest = new ManifestIndex(dstDir.resolve(Backup.MANIFEST_FILENAME).toFile());
+        manifest.load();
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(srcDir.resolve("srcFile2.jpg").toFile(), HashType.SHA256), manifest.get("srcFile2.jpg").getSum());
+
+        Files.move(srcDir.resolve("srcFile2.jpg"), srcDir.resolve("srcFile4.jpg"));
+        new Backup(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false, true).process();
+
+        Assertions.assertFalse(Files.exists(dstDir.resolve("srcFile2.jpg")));
+        Assertions.assertEquals("same", Files.readString(dstDir.resolve("srcFile4.jpg")));
+    }
+
     @Disabled("requires refactoring")
     @Test
     @DisplayName("can't create destination directory")
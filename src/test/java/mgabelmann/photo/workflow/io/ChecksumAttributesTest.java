@@ -0,0 +1,56 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+public class ChecksumAttributesTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    @DisplayName("stored checksum is read back")
+    void test1_read() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("image.jpg"), "abc");
+        Instant verified = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+        Assumptions.assumeTrue(ChecksumAttributes.write(file, HashType.SHA256, "abc123", verified));
+
+        ChecksumAttributes.StoredChecksum stored = ChecksumAttributes.read(file);
+        Assertions.assertEquals(HashType.SHA256, stored.getType());
+        Assertions.assertEquals("abc123", stored.getChecksum());
+        Assertions.assertEquals(verified, stored.getVerified());
+
+        Assertions.assertEquals("abc123", ChecksumAttributes.read(file, HashType.SHA256));
+        Assertions.assertNull(ChecksumAttributes.read(file, HashType.MD5));
+    }
+
+    @Test
+    @DisplayName("checksum is ignored once the file changes")
+    void test2_changed() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("image.jpg"), "abc");
+
+        Assumptions.assumeTrue(ChecksumAttributes.write(file, HashType.SHA256, "abc123", Instant.now()));
+
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS)));
+        Assertions.assertNull(ChecksumAttributes.read(file));
+    }
+
+    @Test
+    @DisplayName("file without a checksum")
+    void test3_missing() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("image.jpg"), "abc");
+
+        Assertions.assertNull(ChecksumAttributes.read(file));
+    }
+}
@@ -0,0 +1,161 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ChecksumCacheTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    @DisplayName("unchanged file is not read again")
+    void test1_hit() throws IOException {
+        File file = this.createFile("image.jpg", "abc");
+        String expected = FileRecordCodec.calculateChecksum(file, HashType.SHA256);
+
+        try (ChecksumCache cache = this.createCache(10)) {
+            Assertions.assertEquals(expected, cache.getChecksum(file, HashType.SHA256));
+            Assertions.assertEquals(expected, cache.getChecksum(file, HashType.SHA256));
+            Assertions.assertEquals(1, cache.getHits());
+            Assertions.assertEquals(1, cache.getMisses());
+        }
+
+        //loaded from the log
+        try (ChecksumCache cache = this.createCache(10)) {
+            Assertions.assertEquals(expected, cache.getChecksum(file, HashType.SHA256));
+            Assertions.assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    @DisplayName("changed file is hashed again")
+    void test2_changed() throws IOException {
+        File file = this.createFile("image.jpg", "abc");
+
+        try (ChecksumCache cache = this.createCache(10)) {
+            cache.getChecksum(file, HashType.SHA256);
+
+            //same size, different last modified
+            Files.writeString(file.toPath(), "xyz");
+            Files.setLastModifiedTime(file.toPath(), FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+
+            Assertions.assertEquals(FileRecordCodec.calculateChecksum(file, HashType.SHA256), cache.getChecksum(file, HashType.SHA256));
+            Assertions.assertEquals(0, cache.getHits());
+
+            //different checksum type
+            cache.getChecksum(file, HashType.MD5);
+            Assertions.assertEquals(0, cache.getHits());
+        }
+    }
+
+    @Test
+    @DisplayName("recently modified file is not remembered")
+    void test3_recent() throws IOException {
+        File file = tempDir.resolve("image.jpg").toFile();
+        Files.writeString(file.toPath(), "abc");
+
+        try (ChecksumCache cache = this.createCache(10)) {
+            cache.getChecksum(file, HashType.SHA256);
+            cache.getChecksum(file, HashType.SHA256);
+
+            Assertions.assertEquals(0, cache.getHits());
+            Assertions.assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    @DisplayName("least recently used entries are evicted and compacted away")
+    void test4_evict() throws IOException {
+        Path log = tempDir.resolve("checksums.txt");
+
+        try (ChecksumCache cache = this.createCache(2)) {
+            for (int i = 0; i < 6; i++) {
+                cache.getChecksum(this.createFile("image" + i + ".jpg", "abc" + i), HashType.SHA256);
+            }
+
+            Assertions.assertEquals(2, cache.size());
+        }
+
+        Assertions.assertEquals(2, Files.readAllLines(log).size());
+
+        try (ChecksumCache cache = this.createCache(2)) {
+            cache.getChecksum(tempDir.resolve("image5.jpg").toFile(), HashType.SHA256);
+            cache.getChecksum(tempDir.resolve("image0.jpg").toFile(), HashType.SHA256);
+
+            Assertions.assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    @DisplayName("many threads share the cache and the log")
+    void test5_concurrent() throws Exception {
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            files.add(this.createFile("image" + i + ".jpg", "abc" + i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try (ChecksumCache cache = this.createCache(100)) {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (File file : files) {
+                        Assertions.assertEquals(FileRecordCodec.calculateChecksum(file, HashType.SHA256), cache.getChecksum(file, HashType.SHA256));
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            Assertions.assertEquals(50, cache.size());
+            Assertions.assertEquals(8 * 50, cache.getHits() + cache.getMisses());
+
+        } finally {
+            executor.shutdown();
+        }
+
+        //every line in the log is complete
+        try (ChecksumCache cache = this.createCache(100)) {
+            for (File file : files) {
+                cache.getChecksum(file, HashType.SHA256);
+            }
+
+            Assertions.assertEquals(50, cache.getHits());
+        }
+    }
+
+    private ChecksumCache createCache(final int maxEntries) throws IOException {
+        ChecksumCache cache = new ChecksumCache(tempDir.resolve("checksums.txt").toFile(), maxEntries);
+        cache.load();
+        return cache;
+    }
+
+    private File createFile(final String name, final String content) throws IOException {
+        Path file = Files.writeString(tempDir.resolve(name), content);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS)));
+        return file.toFile();
+    }
+}
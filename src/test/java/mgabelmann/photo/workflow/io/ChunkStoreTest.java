@@ -0,0 +1,104 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.exception.WorkflowException;
+import mgabelmann.util.ContentChunker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class ChunkStoreTest {
+    @TempDir
+    private Path tempDir;
+
+    private Path srcDir;
+    private Path dstDir;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        srcDir = Files.createDirectory(tempDir.resolve("src"));
+        dstDir = Files.createDirectory(tempDir.resolve("dst"));
+    }
+
+    @Test
+    @DisplayName("changed file only stores new chunks")
+    void test1_process() throws IOException, WorkflowException {
+        byte[] data = this.createData(200_000);
+        Path file = Files.write(Files.createDirectory(srcDir.resolve("2024")).resolve("catalog.lrcat"), data);
+
+        ChunkStore store = this.createStore();
+        store.process();
+
+        long size1 = this.getChunkBytes();
+        Assertions.assertTrue(size1 >= data.length);
+
+        //insert data in the middle of the file
+        byte[] changed = new byte[data.length + 100];
+        System.arraycopy(data, 0, changed, 0, 100_000);
+        System.arraycopy(data, 100_000, changed, 100_100, 100_000);
+        Files.write(file, changed);
+
+        store = this.createStore();
+        store.process();
+
+        Assertions.assertEquals(2, store.getVersions("2024/catalog.lrcat").size());
+        Assertions.assertTrue(this.getChunkBytes() - size1 < 50_000, "only chunks around the change are stored");
+
+        store.validate();
+    }
+
+    @Test
+    @DisplayName("restore newest version")
+    void test2_restore() throws IOException, WorkflowException {
+        byte[] data = this.createData(50_000);
+        Path file = Files.write(srcDir.resolve("image.tif"), data);
+
+        this.createStore().process();
+        Files.delete(file);
+
+        this.createStore().restore();
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    @DisplayName("corrupted chunk fails validation")
+    void test3_validate() throws IOException, WorkflowException {
+        Files.write(srcDir.resolve("image.tif"), this.createData(50_000));
+        this.createStore().process();
+
+        try (Stream<Path> chunks = Files.walk(dstDir.resolve(ChunkStore.CHUNK_DIRECTORY))) {
+            Path chunk = chunks.filter(Files::isRegularFile).findFirst().orElseThrow();
+            Files.write(chunk, new byte[] {1, 2, 3});
+        }
+
+        Assertions.assertThrows(WorkflowException.class, () -> this.createStore().validate());
+    }
+
+    private ChunkStore createStore() {
+        ChunkStore store = new ChunkStore(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, true);
+        store.setChunker(new ContentChunker(1024, 4096, 16384));
+        return store;
+    }
+
+    private long getChunkBytes() throws IOException {
+        try (Stream<Path> chunks = Files.walk(dstDir.resolve(ChunkStore.CHUNK_DIRECTORY))) {
+            return chunks.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,76 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+
+
+public class ManifestIndexTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    @DisplayName("records with identical contents are all found")
+    void test1_findContent() throws Exception {
+        ManifestIndex manifest = new ManifestIndex(tempDir.resolve("manifest.txt").toFile());
+        manifest.put(this.createRecord("a/file1.jpg", "abc", 10));
+        manifest.put(this.createRecord("b/file2.jpg", "abc", 10));
+        manifest.put(this.createRecord("b/file3.jpg", "def", 10));
+
+        Assertions.assertEquals(List.of("a/file1.jpg", "b/file2.jpg"), this.findContent(manifest, "abc", 10));
+
+        //removing one leaves the other
+        Assertions.assertTrue(manifest.remove(manifest.get("a/file1.jpg")));
+        Assertions.assertEquals(List.of("b/file2.jpg"), this.findContent(manifest, "abc", 10));
+
+        //a replaced record is found by its new content only
+        manifest.put(this.createRecord("b/file2.jpg", "def", 10));
+        Assertions.assertEquals(List.of(), this.findContent(manifest, "abc", 10));
+        Assertions.assertEquals(List.of("b/file2.jpg", "b/file3.jpg"), this.findContent(manifest, "def", 10));
+
+        //the index is rebuilt when the manifest is loaded again
+        manifest.save();
+        manifest.load();
+        Assertions.assertEquals(List.of("b/file2.jpg", "b/file3.jpg"), this.findContent(manifest, "def", 10));
+    }
+
+    @Test
+    @DisplayName("sizes are removed with their last record")
+    void test2_containsSize() throws Exception {
+        ManifestIndex manifest = new ManifestIndex(tempDir.resolve("manifest.txt").toFile());
+        manifest.put(this.createRecord("file1.jpg", "abc", 10));
+        manifest.put(this.createRecord("file2.jpg", "abc", 10));
+        manifest.put(this.createRecord("dir/file3.jpg", "def", 20));
+        manifest.put(this.createRecord("file4.jpg", FileRecordCodec.UNKNOWN_CHECKSUM, 30));
+
+        Assertions.assertTrue(manifest.containsSize(10));
+        Assertions.assertTrue(manifest.containsSize(20));
+        Assertions.assertFalse(manifest.containsSize(30));
+
+        manifest.remove("file1.jpg");
+        Assertions.assertTrue(manifest.containsSize(10));
+
+        manifest.remove("file2.jpg");
+        Assertions.assertFalse(manifest.containsSize(10));
+
+        Assertions.assertEquals(1, manifest.removeDirectory("dir"));
+        Assertions.assertFalse(manifest.containsSize(20));
+        Assertions.assertEquals(List.of(), this.findContent(manifest, "def", 20));
+    }
+
+    private FileRecord createRecord(String path, String sum, long size) {
+        return new FileRecord(path, sum, size, LocalDateTime.of(2024, 1, 26, 12, 0), HashType.SHA256);
+    }
+
+    private List<String> findContent(ManifestIndex manifest, String sum, long size) {
+        return manifest.findContent(size, HashType.SHA256, sum).stream().map(FileRecord::getPath).collect(Collectors.toList());
+    }
+
+}
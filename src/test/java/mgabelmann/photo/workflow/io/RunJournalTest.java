@@ -0,0 +1,144 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+public class RunJournalTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    @DisplayName("last state of each file is recovered")
+    void test1_recover() throws IOException {
+        RunJournal journal = new RunJournal(this.getFile());
+
+        journal.open();
+        journal.started("a.jpg", "a.jpg");
+        journal.copied(this.createRecord("a.jpg", "sum1"));
+        journal.started("b.jpg", "b.jpg");
+        journal.copied(this.createRecord("b.jpg", "sum2"));
+        journal.verified("b.jpg", true);
+        journal.started("c.jpg", "c.jpg");
+        journal.copied(this.createRecord("c.jpg", "sum3"));
+        journal.verified("c.jpg", false);
+        journal.started("d.jpg", "d.jpg");
+        journal.close();
+
+        Assertions.assertTrue(journal.exists());
+
+        Map<String, RunJournal.Entry> entries = new RunJournal(this.getFile()).recover();
+
+        Assertions.assertEquals(List.of("a.jpg", "b.jpg", "c.jpg", "d.jpg"), List.copyOf(entries.keySet()));
+        Assertions.assertEquals(RunJournal.State.COPIED, entries.get("a.jpg").getState());
+        Assertions.assertEquals("sum1", entries.get("a.jpg").getRecord().getSum());
+        Assertions.assertEquals(RunJournal.State.VERIFIED, entries.get("b.jpg").getState());
+        Assertions.assertEquals("sum2", entries.get("b.jpg").getRecord().getSum());
+        Assertions.assertEquals(RunJournal.State.FAILED, entries.get("c.jpg").getState());
+        Assertions.assertEquals(RunJournal.State.STARTED, entries.get("d.jpg").getState());
+        Assertions.assertNull(entries.get("d.jpg").getRecord());
+
+        journal.delete();
+        Assertions.assertFalse(journal.exists());
+        Assertions.assertTrue(journal.recover().isEmpty());
+    }
+
+    @Test
+    @DisplayName("entries are forced to disk in batches")
+    void test2_batch() throws IOException {
+        RunJournal journal = new RunJournal(this.getFile(), 3, Duration.ofHours(1));
+
+        journal.open();
+        journal.started("a.jpg", "a.jpg");
+        journal.started("b.jpg", "b.jpg");
+        Assertions.assertEquals(0, this.getFile().length());
+
+        journal.started("c.jpg", "c.jpg");
+        Assertions.assertEquals(3, Files.readAllLines(this.getFile().toPath()).size());
+
+        journal.started("d.jpg", "d.jpg");
+        journal.sync();
+        Assertions.assertEquals(4, Files.readAllLines(this.getFile().toPath()).size());
+
+        journal.close();
+        Assertions.assertThrows(IOException.class, () -> journal.started("e.jpg", "e.jpg"));
+    }
+
+    @Test
+    @DisplayName("torn entry at the end is ignored")
+    void test3_torn() throws IOException {
+        RunJournal journal = new RunJournal(this.getFile());
+
+        journal.open();
+        journal.copied(this.createRecord("a.jpg", "sum1"));
+        journal.close();
+
+        //crash part way through writing a copied entry
+        String torn = "COPIED\t" + FileRecordCodec.formatFileRecord(this.createRecord("b.jpg", "sum2"));
+        Files.writeString(this.getFile().toPath(), torn.substring(0, torn.length() - 2), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        Assertions.assertEquals(List.of("a.jpg"), List.copyOf(journal.recover().keySet()));
+
+        //appending starts a new line
+        journal.open();
+        journal.copied(this.createRecord("c.jpg", "sum3"));
+        journal.close();
+
+        Assertions.assertEquals(List.of("a.jpg", "c.jpg"), List.copyOf(journal.recover().keySet()));
+    }
+
+    @Test
+    @DisplayName("journal is rewritten with only the copies still to verify")
+    void test5_rewrite() throws IOException {
+        RunJournal journal = new RunJournal(this.getFile());
+
+        journal.open();
+        journal.started("a.jpg", "a.jpg");
+        journal.copied(this.createRecord("a.jpg", "sum1"));
+        journal.started("b.jpg", "b.jpg");
+        journal.rewrite(List.of(this.createRecord("a.jpg", "sum1")));
+
+        Map<String, RunJournal.Entry> entries = new RunJournal(this.getFile()).recover();
+
+        Assertions.assertEquals(List.of("a.jpg"), List.copyOf(entries.keySet()));
+        Assertions.assertEquals(RunJournal.State.COPIED, entries.get("a.jpg").getState());
+        Assertions.assertEquals("sum1", entries.get("a.jpg").getRecord().getSum());
+        Assertions.assertFalse(new File(this.getFile().getPath() + ".tmp").exists());
+
+        //a later run appends to it
+        journal.open();
+        journal.verified("a.jpg", true);
+        journal.close();
+
+        Assertions.assertEquals(RunJournal.State.VERIFIED, new RunJournal(this.getFile()).recover().get("a.jpg").getState());
+    }
+
+    @Test
+    @DisplayName("invalid arguments")
+    void test4_arguments() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RunJournal(null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RunJournal(this.getFile(), 0, Duration.ofSeconds(1)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RunJournal(this.getFile(), 1, Duration.ZERO));
+    }
+
+    private File getFile() {
+        return tempDir.resolve("manifest.txt" + RunJournal.SUFFIX).toFile();
+    }
+
+    private FileRecord createRecord(String path, String sum) {
+        return new FileRecord(path, sum, 10, LocalDateTime.of(2024, 1, 26, 10, 15, 30), HashType.SHA256);
+    }
+}
@@ -0,0 +1,99 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScrubberTest {
+    @TempDir
+    private Path tempDir;
+
+    private Path state;
+    private List<FileRecord> records;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        state = tempDir.resolve("scrub.txt");
+        records = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            records.add(this.createRecord("file" + i + ".jpg", 1000));
+        }
+    }
+
+    @Test
+    @DisplayName("byte budget rotates through every record")
+    void test1_rotate() throws Exception {
+        Scrubber.Report report1 = this.createScrubber(2000).scrub(records);
+        Assertions.assertEquals(2, report1.getVerified());
+        Assertions.assertEquals(2000, report1.getBytes());
+        Assertions.assertEquals(0.5, report1.getCoverage());
+
+        Scrubber.Report report2 = this.createScrubber(2000).scrub(records);
+        Assertions.assertEquals(2, report2.getVerified());
+        Assertions.assertEquals(1.0, report2.getCoverage());
+        Assertions.assertTrue(report2.isSuccessful());
+        Assertions.assertEquals(4, Files.readAllLines(state).size());
+
+        //oldest record is verified next
+        Scrubber.Report report3 = this.createScrubber(1000).scrub(records);
+        Assertions.assertEquals(1, report3.getVerified());
+    }
+
+    @Test
+    @DisplayName("at least one file is verified even if it exceeds the budget")
+    void test2_budget() throws Exception {
+        Scrubber.Report report = this.createScrubber(10).scrub(records);
+
+        Assertions.assertEquals(1, report.getVerified());
+    }
+
+    @Test
+    @DisplayName("corrupted and missing files are reported")
+    void test3_failures() throws Exception {
+        Files.write(tempDir.resolve("file1.jpg"), new byte[] {1, 2, 3});
+        Files.delete(tempDir.resolve("file2.jpg"));
+
+        Scrubber.Report report = this.createScrubber(0).scrub(records);
+
+        Assertions.assertFalse(report.isSuccessful());
+        Assertions.assertEquals(List.of("file1.jpg"), report.getFailed());
+        Assertions.assertEquals(List.of("file2.jpg"), report.getMissing());
+        Assertions.assertEquals(2, report.getPassed());
+    }
+
+    @Test
+    @DisplayName("records without a checksum are ignored")
+    void test4_unknown() throws Exception {
+        records.add(new FileRecord("new.jpg", FileRecordCodec.UNKNOWN_CHECKSUM, 10, LocalDateTime.now(), HashType.SHA256));
+
+        Scrubber.Report report = this.createScrubber(0).scrub(records);
+
+        Assertions.assertEquals(4, report.getVerified());
+        Assertions.assertEquals(1.0, report.getCoverage());
+    }
+
+    private Scrubber createScrubber(final long byteBudget) {
+        Scrubber scrubber = new Scrubber(tempDir.toFile(), state.toFile());
+        scrubber.setThreads(1);
+        scrubber.setByteBudget(byteBudget);
+        return scrubber;
+    }
+
+    private FileRecord createRecord(final String name, final int size) throws IOException {
+        Path file = Files.write(tempDir.resolve(name), new byte[size]);
+        String sum = FileRecordCodec.calculateChecksum(file.toFile(), HashType.SHA256);
+
+        return new FileRecord(name, sum, size, LocalDateTime.now(), HashType.SHA256);
+    }
+}
@@ -0,0 +1,98 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.exception.WorkflowException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class SnapshotTest {
+    @TempDir
+    private Path tempDir;
+
+    private Path srcDir;
+    private Path dstDir;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        srcDir = Files.createDirectory(tempDir.resolve("src"));
+        dstDir = Files.createDirectory(tempDir.resolve("dst"));
+    }
+
+    @Test
+    @DisplayName("unchanged files are linked to the previous snapshot")
+    void test1_process() throws IOException, WorkflowException {
+        Path subDir = Files.createDirectory(srcDir.resolve("2024"));
+        Files.writeString(srcDir.resolve("image1.jpg"), "data1");
+        Path file2 = Files.writeString(subDir.resolve("image2.jpg"), "data2");
+
+        Snapshot snapshot = new Snapshot(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, true);
+        snapshot.process();
+
+        Files.writeString(file2, "changed");
+        snapshot.process();
+
+        List<String> snapshots = snapshot.getSnapshots();
+        Assertions.assertEquals(2, snapshots.size());
+
+        Path first = dstDir.resolve(snapshots.get(0));
+        Path second = dstDir.resolve(snapshots.get(1));
+
+        Assertions.assertTrue(Files.isSameFile(first.resolve("image1.jpg"), second.resolve("image1.jpg")));
+        Assertions.assertFalse(Files.isSameFile(first.resolve("2024/image2.jpg"), second.resolve("2024/image2.jpg")));
+        Assertions.assertEquals("data2", Files.readString(first.resolve("2024/image2.jpg")));
+        Assertions.assertEquals("changed", Files.readString(second.resolve("2024/image2.jpg")));
+
+        snapshot.validate();
+    }
+
+    @Test
+    @DisplayName("restore an earlier snapshot")
+    void test2_restore() throws IOException, WorkflowException {
+        Path file = Files.writeString(srcDir.resolve("image1.jpg"), "data1");
+
+        Snapshot snapshot = new Snapshot(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false);
+        snapshot.process();
+
+        Files.writeString(file, "bad edit");
+        snapshot.process();
+
+        Path restoreDir = Files.createDirectory(tempDir.resolve("restore"));
+        snapshot.restore(snapshot.getSnapshots().get(0), restoreDir.toFile());
+
+        Assertions.assertEquals("data1", Files.readString(restoreDir.resolve("image1.jpg")));
+    }
+
+    @Test
+    @DisplayName("partial snapshot is not linked to and is removed")
+    void test3_partial() throws IOException, WorkflowException {
+        Files.writeString(srcDir.resolve("image1.jpg"), "data1");
+        Path partial = Files.createDirectory(dstDir.resolve(".2024-01-26_101530" + Snapshot.PARTIAL_SUFFIX));
+
+        Snapshot snapshot = new Snapshot(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false);
+        snapshot.process();
+
+        Assertions.assertFalse(Files.exists(partial));
+        Assertions.assertEquals(1, snapshot.getSnapshots().size());
+    }
+
+    @Test
+    @DisplayName("damaged file fails validation")
+    void test4_validate() throws IOException, WorkflowException {
+        Files.writeString(srcDir.resolve("image1.jpg"), "data1");
+
+        Snapshot snapshot = new Snapshot(srcDir.toFile(), dstDir.toFile(), HashType.SHA256, false);
+        snapshot.process();
+
+        Files.writeString(dstDir.resolve(snapshot.getSnapshots().get(0)).resolve("image1.jpg"), "data9");
+
+        Assertions.assertThrows(WorkflowException.class, snapshot::validate);
+    }
+}
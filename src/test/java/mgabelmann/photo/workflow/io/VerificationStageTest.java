@@ -0,0 +1,73 @@
+package mgabelmann.photo.workflow.io;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.util.FileUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+public class VerificationStageTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    @DisplayName("every verification is counted")
+    void test1_finish() throws Exception {
+        Path source = Files.writeString(tempDir.resolve("source.jpg"), "source data");
+        Path dest = tempDir.resolve("dest.jpg");
+        String checksum = FileUtil.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256);
+
+        Path corrupt = Files.writeString(tempDir.resolve("corrupt.jpg"), "other data");
+
+        VerificationStage stage = new VerificationStage(HashType.SHA256, 1, 0, 0);
+        stage.submit(source.toFile(), dest.toFile(), checksum);
+        stage.submit(source.toFile(), corrupt.toFile(), checksum);
+        stage.submit(source.toFile(), tempDir.resolve("missing.jpg").toFile(), checksum);
+
+        VerificationStage.Summary summary = stage.finish();
+
+        Assertions.assertEquals(1, summary.getPassed());
+        Assertions.assertEquals(1, summary.getFailed());
+        Assertions.assertEquals(1, summary.getSkipped());
+        Assertions.assertEquals(2, summary.getProblems().size());
+        Assertions.assertFalse(summary.isSuccessful());
+    }
+
+    @Test
+    @DisplayName("failed file is copied again")
+    void test2_finish() throws Exception {
+        Path source = Files.writeString(tempDir.resolve("source.jpg"), "source data");
+        Path corrupt = Files.writeString(tempDir.resolve("corrupt.jpg"), "other data");
+
+        VerificationStage stage = new VerificationStage(HashType.SHA256, 2, 2, 1);
+        VerificationStage.Result result = stage.submit(source.toFile(), corrupt.toFile(), null).get();
+
+        Assertions.assertEquals(VerificationStage.Status.REPAIRED, result.getStatus());
+        Assertions.assertEquals("source data", Files.readString(corrupt));
+        Assertions.assertFalse(Files.exists(VerificationStage.getRepairFile(corrupt.toFile())));
+        Assertions.assertTrue(stage.finish().isSuccessful());
+    }
+
+    @Test
+    @DisplayName("a repair that fails leaves the copy as it was")
+    void test3_finish() throws Exception {
+        Path source = Files.writeString(tempDir.resolve("source.jpg"), "source data");
+        Path corrupt = Files.writeString(tempDir.resolve("corrupt.jpg"), "other data");
+
+        //the repair cannot be written
+        Files.createDirectory(VerificationStage.getRepairFile(corrupt.toFile()));
+
+        VerificationStage stage = new VerificationStage(HashType.SHA256, 1, 1, 1);
+        VerificationStage.Result result = stage.submit(source.toFile(), corrupt.toFile(), null).get();
+
+        Assertions.assertEquals(VerificationStage.Status.SKIPPED, result.getStatus());
+        Assertions.assertEquals("other data", Files.readString(corrupt));
+        Assertions.assertFalse(stage.finish().isSuccessful());
+    }
+
+}
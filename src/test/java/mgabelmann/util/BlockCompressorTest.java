@@ -0,0 +1,91 @@
+package mgabelmann.util;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class BlockCompressorTest {
+    private static final int BLOCK_SIZE = 8192;
+
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testCompress() throws IOException {
+        byte[] data = this.createText(100_000);
+        Path source = Files.write(tempDir.resolve("catalog.lrcat"), data);
+        Path dest = tempDir.resolve("catalog.lrcat.gz");
+
+        BlockCompressor compressor = new BlockCompressor(BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, BlockCompressor.DEFAULT_RATIO);
+        String checksum = compressor.compress(source.toFile(), dest.toFile(), true, HashType.SHA256);
+
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+        Assertions.assertTrue(Files.size(dest) < data.length / 2);
+        Assertions.assertEquals(source.toFile().lastModified(), dest.toFile().lastModified());
+
+        //every block is a gzip member, readable as one gzip file
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(dest))) {
+            Assertions.assertArrayEquals(data, in.readAllBytes());
+        }
+
+        Assertions.assertEquals(checksum, BlockCompressor.calculateChecksum(dest.toFile(), HashType.SHA256));
+    }
+
+    @Test
+    public void testDecompress() throws IOException {
+        byte[] data = this.createText(50_000);
+        Path source = Files.write(tempDir.resolve("image.tif"), data);
+        Path compressed = tempDir.resolve("image.tif.gz");
+        Path restored = tempDir.resolve("restored.tif");
+
+        new BlockCompressor(BLOCK_SIZE, Deflater.BEST_SPEED, BlockCompressor.DEFAULT_RATIO).compress(source.toFile(), compressed.toFile(), false, HashType.SHA256);
+        String checksum = BlockCompressor.decompress(compressed.toFile(), restored.toFile(), false, HashType.SHA256);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(restored));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+    }
+
+    @Test
+    public void testIsCompressible() throws IOException {
+        BlockCompressor compressor = new BlockCompressor();
+        byte[] random = new byte[100_000];
+        new Random(1).nextBytes(random);
+
+        //known extensions are not sampled
+        Assertions.assertFalse(compressor.isCompressible(Files.write(tempDir.resolve("image.jpg"), this.createText(100_000)).toFile()));
+        Assertions.assertTrue(compressor.isCompressible(Files.write(tempDir.resolve("image.xmp"), random).toFile()));
+
+        Assertions.assertTrue(compressor.isCompressible(Files.write(tempDir.resolve("text.bin"), this.createText(100_000)).toFile()));
+        Assertions.assertFalse(compressor.isCompressible(Files.write(tempDir.resolve("random.bin"), random).toFile()));
+        Assertions.assertFalse(compressor.isCompressible(Files.write(tempDir.resolve("small.xmp"), this.createText(100)).toFile()));
+    }
+
+    @Test
+    public void testConstructor() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new BlockCompressor(100, Deflater.DEFAULT_COMPRESSION, 0.9));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new BlockCompressor(BLOCK_SIZE, 10, 0.9));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new BlockCompressor(BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, 0));
+    }
+
+    private byte[] createText(final int size) {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(0);
+
+        while (builder.length() < size) {
+            builder.append("<rdf:li xml:lang=\"x-default\">photo ").append(random.nextInt(1000)).append("</rdf:li>\n");
+        }
+
+        return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,68 @@
+package mgabelmann.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ContentChunkerTest {
+    private final ContentChunker chunker = new ContentChunker(1024, 4096, 16384);
+
+    @Test
+    public void testSplit() throws IOException {
+        byte[] data = this.createData(500_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Integer> sizes = new ArrayList<>();
+
+        chunker.split(new ByteArrayInputStream(data), (b, off, len) -> {
+            out.write(b, off, len);
+            sizes.add(len);
+        });
+
+        Assertions.assertArrayEquals(data, out.toByteArray());
+
+        for (int i = 0; i < sizes.size() - 1; i++) {
+            Assertions.assertTrue(sizes.get(i) >= 1024 && sizes.get(i) <= 16384);
+        }
+    }
+
+    @Test
+    public void testSplitInsert() throws IOException {
+        byte[] data = this.createData(500_000);
+        byte[] changed = new byte[data.length + 10];
+        System.arraycopy(data, 0, changed, 10, data.length);
+
+        List<String> before = this.split(data);
+        Set<String> after = new HashSet<>(this.split(changed));
+
+        long shared = before.stream().filter(after::contains).count();
+        Assertions.assertTrue(shared >= before.size() - 2, "chunks after the insert are unchanged");
+    }
+
+    @Test
+    public void testInvalidSizes() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ContentChunker(1024, 3000, 16384));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ContentChunker(8192, 4096, 16384));
+    }
+
+    private List<String> split(byte[] data) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        chunker.split(new ByteArrayInputStream(data), (b, off, len) -> chunks.add(Arrays.toString(Arrays.copyOfRange(b, off, off + len))));
+        return chunks;
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+}
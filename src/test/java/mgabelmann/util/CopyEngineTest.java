@@ -0,0 +1,139 @@
+package mgabelmann.util;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CopyEngineTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testStrategies() throws IOException {
+        byte[] data = this.createData(3 * 1024 * 1024 + 17);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        String expected = FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256);
+
+        for (CopyEngine.Strategy strategy : List.of(CopyEngine.TRANSFER, CopyEngine.FILES_COPY, CopyEngine.STREAM, CopyEngine.SMALL)) {
+            CopyEngine engine = new CopyEngine();
+            engine.setStrategy(0, strategy);
+            engine.setStrategy(CopyEngine.DEFAULT_SMALL_SIZE, strategy);
+
+            //an existing destination is replaced
+            Path dest = Files.write(tempDir.resolve(strategy.getName() + ".bin"), this.createData(4 * 1024 * 1024));
+            CopyEngine.Result result = engine.copy(source.toFile(), dest.toFile(), true, HashType.SHA256);
+
+            Assertions.assertArrayEquals(data, Files.readAllBytes(dest), strategy.getName());
+            Assertions.assertEquals(expected, result.getChecksum(), strategy.getName());
+            Assertions.assertEquals(strategy.getName(), result.getStrategy());
+            Assertions.assertEquals(data.length, result.getBytes());
+            Assertions.assertEquals(source.toFile().lastModified(), dest.toFile().lastModified());
+
+            Assertions.assertNull(engine.copy(source.toFile(), dest.toFile(), false, null).getChecksum());
+        }
+    }
+
+    @Test
+    public void testSizeClasses() throws IOException {
+        CopyEngine engine = new CopyEngine();
+        engine.setStrategy(1024 * 1024 * 1024, CopyEngine.TRANSFER);
+
+        Assertions.assertSame(CopyEngine.SMALL, engine.getStrategy(0));
+        Assertions.assertSame(CopyEngine.SMALL, engine.getStrategy(CopyEngine.DEFAULT_SMALL_SIZE - 1));
+        Assertions.assertSame(CopyEngine.STREAM, engine.getStrategy(CopyEngine.DEFAULT_SMALL_SIZE));
+        Assertions.assertSame(CopyEngine.TRANSFER, engine.getStrategy(1024L * 1024 * 1024 * 5));
+
+        Path small = Files.write(tempDir.resolve("small.xmp"), this.createData(1000));
+        Path large = Files.write(tempDir.resolve("large.cr2"), this.createData(1024 * 1024));
+
+        engine.copy(small.toFile(), tempDir.resolve("small.copy").toFile(), false, null);
+        engine.copy(small.toFile(), tempDir.resolve("small.copy2").toFile(), false, null);
+        engine.copy(large.toFile(), tempDir.resolve("large.copy").toFile(), false, HashType.MD5);
+
+        Assertions.assertEquals(2, engine.getStatistics().get("small").getFiles());
+        Assertions.assertEquals(2000, engine.getStatistics().get("small").getBytes());
+        Assertions.assertEquals(1, engine.getStatistics().get("stream").getFiles());
+
+        engine.resetStatistics();
+        Assertions.assertTrue(engine.getStatistics().isEmpty());
+    }
+
+    @Test
+    public void testSizeClassesWithoutChecksum() throws IOException {
+        CopyEngine engine = new CopyEngine();
+
+        Assertions.assertSame(CopyEngine.SMALL, engine.getStrategy(0, false));
+        Assertions.assertSame(CopyEngine.TRANSFER, engine.getStrategy(CopyEngine.DEFAULT_SMALL_SIZE, false));
+        Assertions.assertSame(CopyEngine.STREAM, engine.getStrategy(CopyEngine.DEFAULT_SMALL_SIZE, true));
+
+        Path large = Files.write(tempDir.resolve("large.cr2"), this.createData(1024 * 1024));
+
+        engine.copy(large.toFile(), tempDir.resolve("large.copy").toFile(), false, null);
+        engine.copy(large.toFile(), tempDir.resolve("large.copy2").toFile(), false, HashType.MD5);
+
+        Assertions.assertEquals(1, engine.getStatistics().get("transfer").getFiles());
+        Assertions.assertEquals(1, engine.getStatistics().get("stream").getFiles());
+
+        //only copies without a checksum use the strategy
+        engine.setStrategy(0, CopyEngine.FILES_COPY, false);
+        Assertions.assertSame(CopyEngine.FILES_COPY, engine.getStrategy(1000, false));
+        Assertions.assertSame(CopyEngine.SMALL, engine.getStrategy(1000, true));
+    }
+
+    @Test
+    public void testSmallWaitsBeforeReading() throws Exception {
+        Path source = Files.write(tempDir.resolve("small.xmp"), this.createData(1000));
+        Path dest = tempDir.resolve("small.copy");
+        byte[] data = this.createData(2000);
+
+        IoScheduler scheduler = new IoScheduler();
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        try (IoScheduler.Permit permit = scheduler.acquire(source, dest)) {
+            scheduler.pause();
+
+            Thread thread = new Thread(() -> {
+                try {
+                    CopyEngine.SMALL.copy(source.toFile(), dest.toFile(), null, permit);
+
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            });
+            thread.start();
+
+            //the copy waits for the scheduler before it reads anything, so it copies what the source is then
+            TimeUnit.MILLISECONDS.sleep(200);
+            Files.write(source, data);
+            scheduler.resume();
+            thread.join(5000);
+        }
+
+        Assertions.assertNull(error.get());
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+    }
+
+    @Test
+    public void testSetStrategy() {
+        CopyEngine engine = new CopyEngine();
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> engine.setStrategy(-1, CopyEngine.STREAM));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> engine.setStrategy(0, null));
+    }
+
+    private byte[] createData(final int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
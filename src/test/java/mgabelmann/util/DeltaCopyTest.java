@@ -0,0 +1,156 @@
+package mgabelmann.util;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class DeltaCopyTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testCopyFileNew() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        String checksum = DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+        Assertions.assertEquals(source.toFile().lastModified(), dest.toFile().lastModified());
+        Assertions.assertTrue(Files.exists(DeltaCopy.getSignatureFile(dest.toFile())));
+    }
+
+    @Test
+    public void testCopyFileChanged() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = Files.write(tempDir.resolve("dest.bin"), data);
+
+        //change one block and shorten the file
+        data[3 * BLOCK_SIZE + 7] ^= 1;
+        data = Arrays.copyOf(data, 9_000);
+        Files.write(source, data);
+
+        //the destination is updated in place
+        Object oldKey = Files.readAttributes(dest, BasicFileAttributes.class).fileKey();
+        String checksum = DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+        Assertions.assertEquals(oldKey, Files.readAttributes(dest, BasicFileAttributes.class).fileKey());
+        Assertions.assertFalse(Files.exists(DeltaCopy.getUndoFile(dest.toFile())));
+
+        //the strong checksums of the changed blocks, including the shorter last block, are left until they match
+        List<String> signature = Files.readAllLines(DeltaCopy.getSignatureFile(dest.toFile()));
+        Assertions.assertEquals(10, signature.size());
+        Assertions.assertTrue(signature.get(4).endsWith("\t-"));
+        Assertions.assertTrue(signature.get(9).endsWith("\t-"));
+        Assertions.assertEquals(2, signature.stream().filter(line -> line.endsWith("\t-")).count());
+
+        //signature is used by the next update, grow the file
+        data = Arrays.copyOf(data, 12_000);
+        data[11_000] = 1;
+        Files.write(source, data);
+
+        DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+    }
+
+    @Test
+    public void testCopyFileStaleSignature() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        //destination changed without updating its signature
+        byte[] other = data.clone();
+        other[5 * BLOCK_SIZE] ^= 1;
+        Files.write(dest, other);
+
+        DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+    }
+
+    @Test
+    public void testCopyFileUnknownStrongChecksum() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = Files.write(tempDir.resolve("dest.bin"), data);
+
+        data[2 * BLOCK_SIZE] ^= 1;
+        Files.write(source, data);
+        DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        //the block is unchanged this time, it is compared with the destination and its strong checksum is recorded
+        data[5 * BLOCK_SIZE] ^= 1;
+        Files.write(source, data);
+        DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        List<String> signature = Files.readAllLines(DeltaCopy.getSignatureFile(dest.toFile()));
+        Assertions.assertFalse(signature.get(3).endsWith("\t-"));
+        Assertions.assertTrue(signature.get(6).endsWith("\t-"));
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        DeltaCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+        long modified = dest.toFile().lastModified();
+
+        //interrupted after one block was overwritten and the file was extended
+        try (DeltaCopy.Undo undo = new DeltaCopy.Undo(DeltaCopy.getUndoFile(dest.toFile()), data.length, modified)) {
+            undo.save(BLOCK_SIZE, ByteBuffer.wrap(data, BLOCK_SIZE, BLOCK_SIZE).slice());
+        }
+
+        byte[] partial = Arrays.copyOf(data, 12_000);
+        Arrays.fill(partial, BLOCK_SIZE, 2 * BLOCK_SIZE, (byte) 7);
+        Files.write(dest, partial);
+
+        Assertions.assertTrue(DeltaCopy.recover(dest.toFile()));
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(modified, dest.toFile().lastModified());
+        Assertions.assertFalse(Files.exists(DeltaCopy.getUndoFile(dest.toFile())));
+        Assertions.assertFalse(DeltaCopy.recover(dest.toFile()));
+
+        //a file that did not exist before the update is deleted, the next update rolls back first
+        Path created = Files.write(tempDir.resolve("created.bin"), partial);
+
+        try (DeltaCopy.Undo undo = new DeltaCopy.Undo(DeltaCopy.getUndoFile(created.toFile()), 0, -1)) {
+            undo.save(0, ByteBuffer.allocate(0));
+        }
+
+        DeltaCopy.copyFile(source.toFile(), created.toFile(), true, HashType.SHA256, BLOCK_SIZE);
+        Assertions.assertArrayEquals(data, Files.readAllBytes(created));
+        Assertions.assertFalse(Files.exists(DeltaCopy.getUndoFile(created.toFile())));
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+}
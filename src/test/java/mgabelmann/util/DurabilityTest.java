@@ -0,0 +1,86 @@
+package mgabelmann.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+public class DurabilityTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testNone() throws IOException {
+        Durability.Tracker tracker = Durability.NONE.open(tempDir.toFile());
+
+        for (int i = 0; i < 3; i++) {
+            tracker.written(Files.writeString(tempDir.resolve("file" + i + ".xmp"), "data").toFile());
+        }
+
+        tracker.close();
+
+        Assertions.assertEquals(3, tracker.getFiles());
+        Assertions.assertEquals(12, tracker.getBytes());
+        Assertions.assertEquals(0, tracker.getForced());
+        Assertions.assertEquals(0, tracker.getSyncs());
+        Assertions.assertEquals(0, tracker.getSyncNanos());
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        Path subDir = Files.createDirectory(tempDir.resolve("subDir"));
+        Durability.Tracker tracker = Durability.FILE.open(tempDir.toFile());
+
+        for (int i = 0; i < 3; i++) {
+            tracker.written(Files.writeString(subDir.resolve("file" + i + ".xmp"), "data").toFile());
+            Assertions.assertEquals(i + 1, tracker.getSyncs());
+        }
+
+        tracker.close();
+
+        Assertions.assertEquals(3, tracker.getForced());
+        Assertions.assertEquals(3, tracker.getSyncs());
+        Assertions.assertTrue(tracker.getSyncNanos() > 0);
+        Assertions.assertTrue(tracker.getElapsedNanos() >= tracker.getSyncNanos());
+    }
+
+    @Test
+    public void testGroup() throws IOException {
+        Durability.Tracker tracker = Durability.group(3, 1024, Duration.ofHours(1)).open(tempDir.toFile());
+
+        for (int i = 0; i < 7; i++) {
+            tracker.written(Files.writeString(tempDir.resolve("file" + i + ".xmp"), "data").toFile());
+        }
+
+        //two full groups, one file waiting
+        Assertions.assertEquals(6, tracker.getForced());
+        Assertions.assertEquals(2, tracker.getSyncs());
+
+        tracker.flush();
+        Assertions.assertEquals(7, tracker.getForced());
+        Assertions.assertEquals(3, tracker.getSyncs());
+
+        //a group is also forced once enough bytes are waiting
+        tracker.written(Files.write(tempDir.resolve("large.cr2"), new byte[2048]).toFile());
+        Assertions.assertEquals(8, tracker.getForced());
+
+        tracker.close();
+        Assertions.assertEquals(8, tracker.getFiles());
+        Assertions.assertEquals(4, tracker.getSyncs());
+    }
+
+    @Test
+    public void testArguments() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Durability.group(0, 1024, Duration.ofSeconds(1)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Durability.group(1, 0, Duration.ofSeconds(1)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Durability.group(1, 1024, Duration.ZERO));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Durability.group(1, 1024, null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Durability.FILE.open(null));
+        Assertions.assertEquals(Durability.Policy.GROUP, Durability.group().getPolicy());
+    }
+
+}
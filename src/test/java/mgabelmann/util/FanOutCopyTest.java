@@ -0,0 +1,106 @@
+package mgabelmann.util;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+public class FanOutCopyTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testCopyFile() throws IOException {
+        byte[] data = this.createData(5 * 4096 + 123);
+        Path source = Files.write(tempDir.resolve("source.tif"), data);
+        List<File> dests = List.of(tempDir.resolve("dest1.tif").toFile(), tempDir.resolve("dest2.tif").toFile(), tempDir.resolve("dest3.tif").toFile());
+
+        //a single small buffer, every destination must write each block before the next is read
+        FanOutCopy.Result result = FanOutCopy.copyFile(source.toFile(), dests, true, HashType.SHA256, 4096, 1);
+
+        Assertions.assertTrue(result.isSuccessful());
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), result.getChecksum());
+
+        for (File dest : dests) {
+            Assertions.assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+            Assertions.assertEquals(source.toFile().lastModified(), dest.lastModified());
+        }
+    }
+
+    @Test
+    public void testCopyFileEmpty() throws IOException {
+        Path source = Files.write(tempDir.resolve("empty.xmp"), new byte[0]);
+        List<File> dests = List.of(tempDir.resolve("dest1.xmp").toFile(), tempDir.resolve("dest2.xmp").toFile());
+
+        FanOutCopy.Result result = FanOutCopy.copyFile(source.toFile(), dests, false, HashType.MD5, 4096, 2);
+
+        Assertions.assertTrue(result.isSuccessful());
+        Assertions.assertEquals(0, dests.get(0).length());
+        Assertions.assertTrue(dests.get(1).isFile());
+    }
+
+    @Test
+    public void testCopyFileFailure() throws IOException {
+        byte[] data = this.createData(3 * 4096);
+        Path source = Files.write(tempDir.resolve("source.cr2"), data);
+        File good = tempDir.resolve("good.cr2").toFile();
+        File bad = tempDir.resolve("missing").resolve("bad.cr2").toFile();
+
+        //the failed destination keeps releasing buffers so the other one completes
+        FanOutCopy.Result result = FanOutCopy.copyFile(source.toFile(), List.of(bad, good), true, HashType.SHA256, 4096, 1);
+
+        Assertions.assertFalse(result.isSuccessful());
+        Assertions.assertEquals(List.of(bad), List.copyOf(result.getFailures().keySet()));
+        Assertions.assertArrayEquals(data, Files.readAllBytes(good.toPath()));
+        Assertions.assertFalse(Files.exists(FanOutCopy.getTempFile(good)));
+
+        //a destination that cannot be replaced keeps what it had
+        File kept = Files.createDirectory(tempDir.resolve("kept.cr2")).toFile();
+        Files.writeString(kept.toPath().resolve("file.txt"), "data");
+        result = FanOutCopy.copyFile(source.toFile(), List.of(kept, good), true, HashType.SHA256, 4096, 1);
+
+        Assertions.assertEquals(List.of(kept), List.copyOf(result.getFailures().keySet()));
+        Assertions.assertEquals("data", Files.readString(kept.toPath().resolve("file.txt")));
+        Assertions.assertFalse(Files.exists(FanOutCopy.getTempFile(kept)));
+    }
+
+    @Test
+    public void testCopyFileKeepsResumablePart() throws IOException {
+        byte[] data = this.createData(3 * 4096);
+        Path source = Files.write(tempDir.resolve("source.cr2"), data);
+        File dest = tempDir.resolve("dest.cr2").toFile();
+
+        //an interrupted resumable copy is left for the copy that resumes it
+        Path part = Files.writeString(ResumableCopy.getTempFile(dest), "partial");
+        FanOutCopy.Result result = FanOutCopy.copyFile(source.toFile(), List.of(dest, tempDir.resolve("other.cr2").toFile()), true, HashType.SHA256, 4096, 1);
+
+        Assertions.assertTrue(result.isSuccessful());
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+        Assertions.assertEquals("partial", Files.readString(part));
+        Assertions.assertFalse(Files.exists(FanOutCopy.getTempFile(dest)));
+    }
+
+    @Test
+    public void testCopyFileArguments() {
+        File source = tempDir.resolve("source.jpg").toFile();
+        List<File> dests = List.of(tempDir.resolve("dest.jpg").toFile());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FanOutCopy.copyFile(source, List.of(), true, HashType.SHA256, 4096, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FanOutCopy.copyFile(source, dests, true, HashType.SHA256, 0, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> FanOutCopy.copyFile(source, dests, true, HashType.SHA256, 4096, 0));
+    }
+
+    private byte[] createData(final int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -1,15 +1,28 @@
 package mgabelmann.util;
 
 
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 
 public class FileUtilTest {
-    
+    @TempDir
+    private Path tempDir;
     
     @BeforeEach
     public void setUp() throws Exception {
@@ -61,4 +74,44 @@ public class FileUtilTest {
         Assertions.assertEquals("", FileUtil.getFileExtension(s));
     }
 
+    @Test
+    public void testCopyFileChecksum() throws IOException {
+        Path source = Files.writeString(tempDir.resolve("source.txt"), "some data to copy");
+        Path dest = tempDir.resolve("dest.txt");
+
+        String checksum = FileUtil.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256);
+
+        Assertions.assertEquals("some data to copy", Files.readString(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+        Assertions.assertEquals(source.toFile().lastModified(), dest.toFile().lastModified());
+    }
+
+    @Test
+    public void testListAttributesSymbolicLinks() throws IOException {
+        Path file = Files.writeString(tempDir.resolve("file.jpg"), "some data");
+        Path dir = Files.createDirectory(tempDir.resolve("dir"));
+
+        boolean supported = true;
+
+        try {
+            Files.createSymbolicLink(tempDir.resolve("linkFile.jpg"), file);
+
+        } catch (UnsupportedOperationException | IOException e) {
+            supported = false;
+        }
+
+        Assumptions.assumeTrue(supported, "symbolic links not supported");
+
+        Files.createSymbolicLink(tempDir.resolve("linkDir"), dir);
+        Files.createSymbolicLink(tempDir.resolve("linkBroken.jpg"), tempDir.resolve("missing.jpg"));
+
+        Map<Path, IOException> failures = new HashMap<>();
+        SortedMap<String, BasicFileAttributes> entries = FileUtil.listAttributes(tempDir, failures);
+
+        Assertions.assertEquals(List.of("dir", "file.jpg", "linkFile.jpg"), List.copyOf(entries.keySet()));
+        Assertions.assertTrue(entries.get("linkFile.jpg").isRegularFile());
+        Assertions.assertEquals(9, entries.get("linkFile.jpg").size());
+        Assertions.assertTrue(failures.isEmpty());
+    }
+
 }
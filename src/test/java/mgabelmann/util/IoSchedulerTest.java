@@ -0,0 +1,95 @@
+package mgabelmann.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class IoSchedulerTest {
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testConcurrency() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.configure(tempDir, 1, IoScheduler.UNLIMITED, IoScheduler.UNLIMITED);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        IoScheduler.Permit permit = scheduler.acquire(tempDir.resolve("file1.jpg"));
+
+        Thread thread = new Thread(() -> {
+            try (IoScheduler.Permit p = scheduler.acquire(tempDir.resolve("file2.jpg"))) {
+                acquired.countDown();
+
+            } catch (Exception e) {
+                Assertions.fail(e);
+            }
+        });
+        thread.start();
+
+        Assertions.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        permit.close();
+        Assertions.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnconfiguredPath() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.configure(tempDir.resolve("device"), 1, IoScheduler.UNLIMITED, IoScheduler.UNLIMITED);
+
+        try (IoScheduler.Permit p1 = scheduler.acquire(tempDir.resolve("file1.jpg"));
+             IoScheduler.Permit p2 = scheduler.acquire(tempDir.resolve("file2.jpg"))) {
+            Assertions.assertNotNull(p1);
+            Assertions.assertNotNull(p2);
+        }
+    }
+
+    @Test
+    public void testBandwidth() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.configure(tempDir, IoScheduler.UNLIMITED, ByteConversion.MEGABYTES.getSize(), IoScheduler.UNLIMITED);
+
+        Path file = tempDir.resolve("file1.jpg");
+        long start = System.nanoTime();
+
+        try (IoScheduler.Permit permit = scheduler.acquire(file)) {
+            //first megabyte is available immediately, the rest must wait
+            permit.read(file, ByteConversion.MEGABYTES.getSize());
+            permit.read(file, ByteConversion.MEGABYTES.getSize() / 2);
+            permit.write(file, ByteConversion.MEGABYTES.getSize() * 10);
+        }
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assertions.assertTrue(elapsed >= 400, "elapsed " + elapsed);
+        Assertions.assertTrue(elapsed < 2000, "elapsed " + elapsed);
+    }
+
+    @Test
+    public void testPause() throws Exception {
+        IoScheduler scheduler = new IoScheduler();
+        scheduler.pause();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+
+        Thread thread = new Thread(() -> {
+            try (IoScheduler.Permit p = scheduler.acquire(tempDir.resolve("file1.jpg"))) {
+                acquired.countDown();
+
+            } catch (Exception e) {
+                Assertions.fail(e);
+            }
+        });
+        thread.start();
+
+        Assertions.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        Assertions.assertTrue(scheduler.isPaused());
+
+        scheduler.resume();
+        Assertions.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+}
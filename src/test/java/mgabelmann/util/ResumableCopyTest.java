@@ -0,0 +1,112 @@
+package mgabelmann.util;
+
+import mgabelmann.photo.workflow.HashType;
+import mgabelmann.photo.workflow.io.FileRecordCodec;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ResumableCopyTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir
+    private Path tempDir;
+
+    @Test
+    public void testCopyFile() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        String checksum = ResumableCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, CHUNK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+        Assertions.assertEquals(source.toFile().lastModified(), dest.toFile().lastModified());
+        Assertions.assertFalse(Files.exists(ResumableCopy.getTempFile(dest.toFile())));
+        Assertions.assertFalse(Files.exists(ResumableCopy.getProgressFile(dest.toFile())));
+    }
+
+    @Test
+    public void testCopyFileResume() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        //interrupted after 5 chunks were recorded and part of the 6th was written
+        Files.write(ResumableCopy.getTempFile(dest.toFile()), Arrays.copyOf(data, 5 * CHUNK_SIZE + 500));
+        Files.writeString(ResumableCopy.getProgressFile(dest.toFile()), this.createProgress(source.toFile(), data, 5));
+
+        String checksum = ResumableCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, CHUNK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+    }
+
+    @Test
+    public void testCopyFileResumeCorrupt() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        byte[] partial = Arrays.copyOf(data, 5 * CHUNK_SIZE);
+        partial[4 * CHUNK_SIZE + 10] ^= 1;
+
+        Files.write(ResumableCopy.getTempFile(dest.toFile()), partial);
+        Files.writeString(ResumableCopy.getProgressFile(dest.toFile()), this.createProgress(source.toFile(), data, 5));
+
+        ResumableCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, CHUNK_SIZE);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+    }
+
+    @Test
+    public void testCopyFileBufferSmallerThanChunk() throws IOException {
+        byte[] data = this.createData(10_000);
+        Path source = Files.write(tempDir.resolve("source.bin"), data);
+        Path dest = tempDir.resolve("dest.bin");
+
+        //chunks are read in pieces that do not divide them evenly
+        Files.write(ResumableCopy.getTempFile(dest.toFile()), Arrays.copyOf(data, 5 * CHUNK_SIZE + 500));
+        Files.writeString(ResumableCopy.getProgressFile(dest.toFile()), this.createProgress(source.toFile(), data, 5));
+
+        String checksum = ResumableCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, CHUNK_SIZE, 300);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+
+        Files.delete(dest);
+        checksum = ResumableCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, CHUNK_SIZE, 300);
+
+        Assertions.assertArrayEquals(data, Files.readAllBytes(dest));
+        Assertions.assertEquals(FileRecordCodec.calculateChecksum(source.toFile(), HashType.SHA256), checksum);
+        Assertions.assertFalse(Files.exists(ResumableCopy.getProgressFile(dest.toFile())));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ResumableCopy.copyFile(source.toFile(), dest.toFile(), true, HashType.SHA256, CHUNK_SIZE, 0));
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private String createProgress(File source, byte[] data, int chunks) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(source.length()).append('\t').append(source.lastModified()).append('\t').append(CHUNK_SIZE).append('\t').append(HashType.SHA256).append('\n');
+
+        for (int i = 0; i < chunks; i++) {
+            sb.append(i).append('\t').append(DigestUtils.sha256Hex(Arrays.copyOfRange(data, i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE))).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+}
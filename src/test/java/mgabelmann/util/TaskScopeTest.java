@@ -0,0 +1,85 @@
+package mgabelmann.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TaskScopeTest {
+
+    @Test
+    public void testJoin() throws IOException {
+        AtomicInteger count = new AtomicInteger();
+
+        try (TaskScope scope = new TaskScope(4)) {
+            for (int i = 0; i < 10; i++) {
+                scope.forkUnlimited(() -> {
+                    for (int j = 0; j < 10; j++) {
+                        scope.fork(count::incrementAndGet);
+                    }
+                });
+            }
+
+            scope.join();
+        }
+
+        Assertions.assertEquals(100, count.get());
+    }
+
+    @Test
+    public void testPlatformThreadsBounded() throws IOException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger count = new AtomicInteger();
+
+        try (TaskScope scope = new TaskScope(2)) {
+            for (int i = 0; i < 20; i++) {
+                scope.forkUnlimited(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+                    try {
+                        Thread.sleep(10);
+
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException("interrupted");
+                    }
+
+                    scope.fork(count::incrementAndGet);
+                    running.decrementAndGet();
+                });
+            }
+
+            scope.join();
+        }
+
+        Assertions.assertEquals(20, count.get());
+
+        if (! TaskScope.isVirtual()) {
+            Assertions.assertTrue(maxRunning.get() <= 2);
+        }
+    }
+
+    @Test
+    public void testFailureCancels() throws IOException {
+        try (TaskScope scope = new TaskScope(2)) {
+            scope.forkUnlimited(() -> {
+                try {
+                    Thread.sleep(60_000);
+
+                } catch (InterruptedException ie) {
+                    throw new IOException("interrupted");
+                }
+            });
+            scope.fork(() -> {
+                throw new IOException("failed");
+            });
+
+            IOException ie = Assertions.assertThrows(IOException.class, scope::join);
+            Assertions.assertEquals("failed", ie.getMessage());
+            Assertions.assertTrue(scope.isCancelled());
+        }
+    }
+
+}